@@ -0,0 +1,15 @@
+$(window).load(function() {
+	w = new widget("update", 1000, function(data) {
+		$("#loading").detach();
+		$("p").show();
+		$(".error").hide();
+		$("#fleetId").text(data.fleetId);
+		$("#houses").text(data.houses);
+		$("#meanSoc").text(data.meanSoc.toFixed(1) + " %");
+		$("#receiving").text(data.receiving);
+		$("#providing").text(data.providing);
+		$("#noExchange").text(data.noExchange);
+		$("#exchangeWatt").text(data.exchangeWatt.toFixed(0) + " W");
+	});
+	
+});
\ No newline at end of file
@@ -0,0 +1,61 @@
+package jp.oist.unit.ios.dcoes.houseagent;
+
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.BaseAgentEndpoint;
+
+/**
+ * The agent of one house of a {@link HouseFleet}. It only knows the index of its house; the state of the house is kept
+ * in the arrays of the fleet and its bids come from the {@link HouseBidTable}.
+ */
+public class FleetHouseAgent extends BaseAgentEndpoint implements AgentEndpoint {
+
+	private final HouseFleet fleet;
+	private final int house;
+	private volatile BidUpdate lastBidUpdate;
+
+	public FleetHouseAgent(HouseFleet fleet, int house) {
+		this.fleet = fleet;
+		this.house = house;
+	}
+
+	@Override
+	protected void init(String agentId, String desiredParentId) {
+		super.init(agentId, desiredParentId);
+	}
+
+	@Override
+	public void handlePriceUpdate(PriceUpdate priceUpdate) {
+		super.handlePriceUpdate(priceUpdate);
+		BidUpdate lastBidUpdate = this.lastBidUpdate;
+		if (lastBidUpdate == null || priceUpdate.getBidNumber() != lastBidUpdate.getBidNumber()) {
+			// This price is NOT based on our last bid, ignore!
+			return;
+		}
+		fleet.setExchange(house, lastBidUpdate.getBid().getDemandAt(priceUpdate.getPrice()));
+	}
+
+	@Override
+	public void matcherEndpointDisconnected(Session session) {
+		lastBidUpdate = null;
+		super.matcherEndpointDisconnected(session);
+	}
+
+	/**
+	 * Publishes the bid of the band of the house, unless it was already published.
+	 */
+	void notifyBand(int band) {
+		AgentEndpoint.Status status = getStatus();
+		if (status.isConnected()) {
+			Bid newBid = fleet.getBidTable(status.getMarketBasis()).getBid(band);
+			BidUpdate lastBidUpdate = this.lastBidUpdate;
+			if (lastBidUpdate == null || lastBidUpdate.getBid() != newBid) {
+				this.lastBidUpdate = publishBid(newBid);
+			}
+		}
+	}
+
+}
@@ -48,12 +48,15 @@ public class HouseAgent extends BaseAgentEndpoint implements AgentEndpoint {
 		this.soc = soc;
 		net.powermatcher.api.AgentEndpoint.Status status = this.getStatus();
 		if (status.isConnected()) {
-			Bid newBid = constructBid(status.getMarketBasis());
+			Bid newBid = constructBid(status.getMarketBasis(), soc, exchangeRateWatt);
 			lastBidUpdate = publishBid(newBid);
 		}
 	}
 
-	private Bid constructBid(MarketBasis marketBasis) {
+	/**
+	 * Constructs the bid of a house. Shared with the {@link HouseBidTable} of a {@link HouseFleet}.
+	 */
+	static Bid constructBid(MarketBasis marketBasis, double soc, double exchangeRateWatt) {
 		double normalizedSoC = (soc - 20d) / (95d - 20d);
 		if (normalizedSoC < 0) {
 			// I NEED energy
@@ -81,7 +84,7 @@ public class HouseAgent extends BaseAgentEndpoint implements AgentEndpoint {
 		}
 	}
 
-	private double transformPrice(MarketBasis marketBasis, double priceBetweenZeroAndOne) {
+	private static double transformPrice(MarketBasis marketBasis, double priceBetweenZeroAndOne) {
 		return marketBasis.getMinimumPrice()
 				+ (priceBetweenZeroAndOne * (marketBasis.getMaximumPrice() - marketBasis.getMinimumPrice()));
 	}
@@ -0,0 +1,73 @@
+package jp.oist.unit.ios.dcoes.houseagent;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+
+/**
+ * The bids of the houses of a {@link HouseFleet}, calculated once per market basis for every band of the state of
+ * charge. A house looks up its bid by its band instead of constructing one, and houses in the same band share the same
+ * {@link Bid} instance.
+ */
+public class HouseBidTable {
+
+	/** Band of a state of charge below the minimum, where the house needs energy */
+	public static final int EMPTY = -1;
+
+	private static final double MIN_SOC = 20;
+	private static final double MAX_SOC = 95;
+
+	private final MarketBasis marketBasis;
+	private final int socBands;
+	private final Bid emptyBid;
+	private final Bid fullBid;
+	/** The bid of every band, constructed at the lower edge of the band */
+	private final Bid[] bids;
+
+	public HouseBidTable(MarketBasis marketBasis, int socBands, double exchangeRateWatt) {
+		this.marketBasis = marketBasis;
+		this.socBands = socBands;
+		emptyBid = HouseAgent.constructBid(marketBasis, MIN_SOC - 1, exchangeRateWatt);
+		fullBid = HouseAgent.constructBid(marketBasis, MAX_SOC, exchangeRateWatt);
+		bids = new Bid[socBands];
+		for (int band = 0; band < socBands; band++) {
+			// The lower edge, so a band never crosses a boundary of the bid strategy when those fall on an edge
+			double soc = MIN_SOC + (MAX_SOC - MIN_SOC) * band / socBands;
+			bids[band] = HouseAgent.constructBid(marketBasis, soc, exchangeRateWatt);
+		}
+	}
+
+	/**
+	 * @return The band of the state of charge: {@link #EMPTY}, a band between 0 and the number of bands, or the number
+	 *         of bands when the battery is full
+	 */
+	public static int bandOf(double soc, int socBands) {
+		double normalizedSoC = (soc - MIN_SOC) / (MAX_SOC - MIN_SOC);
+		if (normalizedSoC < 0) {
+			return EMPTY;
+		} else if (normalizedSoC >= 1) {
+			return socBands;
+		} else {
+			return Math.min((int) (normalizedSoC * socBands), socBands - 1);
+		}
+	}
+
+	public MarketBasis getMarketBasis() {
+		return marketBasis;
+	}
+
+	/**
+	 * @param band
+	 *            A band as returned by {@link #bandOf(double, int)}
+	 * @return The bid of the band
+	 */
+	public Bid getBid(int band) {
+		if (band == EMPTY) {
+			return emptyBid;
+		} else if (band >= socBands) {
+			return fullBid;
+		} else {
+			return bids[band];
+		}
+	}
+
+}
@@ -0,0 +1,247 @@
+package jp.oist.unit.ios.dcoes.houseagent;
+
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.ui.Widget;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.AttributeType;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.monitoring.ObservableAgent;
+
+/**
+ * Simulates many houses in one component, for exchange scenarios with thousands of houses. The state of the houses is
+ * kept in primitive arrays and all houses are updated in one task. Every house only has a {@link FleetHouseAgent},
+ * which looks up its bid in a {@link HouseBidTable}.
+ */
+@Component
+@Designate(ocd = HouseFleet.Config.class, factory = true)
+public class HouseFleet {
+
+	@ObjectClassDefinition
+	public @interface Config {
+		@AttributeDefinition(description = "Prefix of the agent IDs of the houses, followed by their number")
+		String agentIdPrefix() default "house";
+
+		@AttributeDefinition(description = "Agent ID for the desired parent")
+		String desiredParentId() default "auctioneer";
+
+		@AttributeDefinition(type = AttributeType.INTEGER, description = "The number of houses in the fleet")
+		int numberOfHouses() default 1000;
+
+		@AttributeDefinition(type = AttributeType.INTEGER,
+                             description = "Lowest initial state of charge for the batteries (between 20 and 95)")
+		int minimumInitialSoC() default 40;
+
+		@AttributeDefinition(type = AttributeType.INTEGER,
+                             description = "Highest initial state of charge for the batteries (between 20 and 95)")
+		int maximumInitialSoC() default 85;
+
+		@AttributeDefinition(type = AttributeType.DOUBLE,
+                             description = "The power when electricity is exchanged with neighbours")
+		double exchangeRateWatt() default 700d;
+
+		@AttributeDefinition(type = AttributeType.INTEGER,
+                             description = "The number of bands of the state of charge with their own bid")
+		int socBands() default 75;
+
+		@AttributeDefinition(type = AttributeType.INTEGER,
+                             description = "Seconds between updates of the state of charge")
+		int updateIntervalSeconds() default 10;
+
+		@AttributeDefinition(type = AttributeType.LONG,
+                             description = "Seed of the random walk of the state of charge, 0 for a random seed")
+		long randomSeed() default 0;
+	}
+
+	private final static Logger LOG = LoggerFactory.getLogger(HouseFleet.class);
+
+	private Config config;
+	private FlexiblePowerContext context;
+	private Random random;
+	private ScheduledFuture<?> socTask;
+
+	private double[] soc;
+	private byte[] command;
+	/** The power that every house exchanges according to the last price, positive when receiving */
+	private double[] exchangeWatt;
+	private int[] band;
+
+	private FleetHouseAgent[] agents;
+	private ServiceRegistration<?>[] agentServiceRegistrations;
+	private ServiceRegistration<Widget> widgetServiceRegistration;
+
+	private final ConcurrentMap<MarketBasis, HouseBidTable> bidTables = new ConcurrentHashMap<>();
+
+	@Activate
+	public void activate(BundleContext bundleContext, final Config config) {
+		this.config = config;
+		int size = config.numberOfHouses();
+
+		random = config.randomSeed() == 0 ? new Random() : new Random(config.randomSeed());
+		soc = new double[size];
+		command = new byte[size];
+		exchangeWatt = new double[size];
+		band = new int[size];
+		int socRange = Math.max(0, config.maximumInitialSoC() - config.minimumInitialSoC());
+		for (int i = 0; i < size; i++) {
+			soc[i] = config.minimumInitialSoC() + random.nextDouble() * socRange;
+			command[i] = (byte) HouseCommand.NO_EXCHANGE.ordinal();
+			band[i] = HouseBidTable.bandOf(soc[i], config.socBands());
+		}
+
+		agents = new FleetHouseAgent[size];
+		agentServiceRegistrations = new ServiceRegistration<?>[size];
+		String[] agentInterfaces = new String[] { AgentEndpoint.class.getName(), ObservableAgent.class.getName() };
+		for (int i = 0; i < size; i++) {
+			agents[i] = new FleetHouseAgent(this, i);
+			agents[i].init(config.agentIdPrefix() + i, config.desiredParentId());
+			agentServiceRegistrations[i] = bundleContext.registerService(agentInterfaces, agents[i],
+					new Hashtable<>());
+		}
+
+		socTask = context.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				updateSoC();
+			}
+		}, Measure.zero(SI.SECOND), Measure.valueOf(config.updateIntervalSeconds(), SI.SECOND));
+
+		// Register the widget
+		widgetServiceRegistration = bundleContext.registerService(Widget.class, new HouseFleetWidget(this),
+				new Hashtable<>());
+		LOG.info("Started a fleet of " + size + " houses with agent IDs " + config.agentIdPrefix() + "0 to "
+				+ config.agentIdPrefix() + (size - 1));
+	}
+
+	@Deactivate
+	public void deactivate() {
+		socTask.cancel(false);
+		for (ServiceRegistration<?> registration : agentServiceRegistrations) {
+			registration.unregister();
+		}
+		widgetServiceRegistration.unregister();
+	}
+
+	@Reference(cardinality = ReferenceCardinality.MANDATORY, policy = ReferencePolicy.STATIC)
+	public void setContext(FlexiblePowerContext context) {
+		this.context = context;
+	}
+
+	private void updateSoC() {
+		int socBands = config.socBands();
+		for (int i = 0; i < soc.length; i++) {
+			double newSoc = soc[i] + (random.nextDouble() * 2) - 1;
+			soc[i] = Math.max(20, Math.min(95, newSoc));
+			band[i] = HouseBidTable.bandOf(soc[i], socBands);
+			// Only publishes when the band changed or the agent has not bid yet
+			agents[i].notifyBand(band[i]);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("The mean SoC of fleet " + config.agentIdPrefix() + " is " + getMeanSoC() + "%");
+		}
+	}
+
+	/**
+	 * @return The bid table of the market basis, created when it is first needed
+	 */
+	HouseBidTable getBidTable(MarketBasis marketBasis) {
+		HouseBidTable bidTable = bidTables.get(marketBasis);
+		if (bidTable == null) {
+			HouseBidTable newBidTable = new HouseBidTable(marketBasis, config.socBands(), config.exchangeRateWatt());
+			bidTable = bidTables.putIfAbsent(marketBasis, newBidTable);
+			if (bidTable == null) {
+				bidTable = newBidTable;
+			}
+		}
+		return bidTable;
+	}
+
+	/**
+	 * Stores the power the house promised in its last bid at the current price and derives its command.
+	 */
+	void setExchange(int house, double promisedPowerValue) {
+		exchangeWatt[house] = promisedPowerValue;
+		HouseCommand houseCommand;
+		if (promisedPowerValue > 1) {
+			houseCommand = HouseCommand.RECEIVE;
+		} else if (promisedPowerValue < -1) {
+			houseCommand = HouseCommand.PROVIDE;
+		} else {
+			houseCommand = HouseCommand.NO_EXCHANGE;
+		}
+		command[house] = (byte) houseCommand.ordinal();
+	}
+
+	public String getAgentIdPrefix() {
+		return config.agentIdPrefix();
+	}
+
+	public int getNumberOfHouses() {
+		return soc.length;
+	}
+
+	public double getSoC(int house) {
+		return soc[house];
+	}
+
+	public HouseCommand getCommand(int house) {
+		return HouseCommand.values()[command[house]];
+	}
+
+	public double getExchangeWatt(int house) {
+		return exchangeWatt[house];
+	}
+
+	public double getMeanSoC() {
+		double sum = 0;
+		for (double houseSoc : soc) {
+			sum += houseSoc;
+		}
+		return soc.length == 0 ? 0 : sum / soc.length;
+	}
+
+	/**
+	 * @return The number of houses with every command, indexed by the ordinal of the command
+	 */
+	public int[] getCommandCounts() {
+		int[] counts = new int[HouseCommand.values().length];
+		for (byte houseCommand : command) {
+			counts[houseCommand]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return The total power that the houses exchange, positive when they receive more than they provide
+	 */
+	public double getTotalExchangeWatt() {
+		double sum = 0;
+		for (double houseExchange : exchangeWatt) {
+			sum += houseExchange;
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,78 @@
+package jp.oist.unit.ios.dcoes.houseagent;
+
+import java.util.Locale;
+
+import org.flexiblepower.ui.Widget;
+
+public class HouseFleetWidget implements Widget {
+
+	public static class Update {
+		private final String fleetId;
+		private final int houses;
+		private final double meanSoc;
+		private final int receiving;
+		private final int providing;
+		private final int noExchange;
+		private final double exchangeWatt;
+
+		public Update(String fleetId, int houses, double meanSoc, int receiving, int providing, int noExchange,
+				double exchangeWatt) {
+			super();
+			this.fleetId = fleetId;
+			this.houses = houses;
+			this.meanSoc = meanSoc;
+			this.receiving = receiving;
+			this.providing = providing;
+			this.noExchange = noExchange;
+			this.exchangeWatt = exchangeWatt;
+		}
+
+		public String getFleetId() {
+			return fleetId;
+		}
+
+		public int getHouses() {
+			return houses;
+		}
+
+		public double getMeanSoc() {
+			return meanSoc;
+		}
+
+		public int getReceiving() {
+			return receiving;
+		}
+
+		public int getProviding() {
+			return providing;
+		}
+
+		public int getNoExchange() {
+			return noExchange;
+		}
+
+		public double getExchangeWatt() {
+			return exchangeWatt;
+		}
+
+	}
+
+	private HouseFleet fleet;
+
+	@Override
+	public String getTitle(Locale locale) {
+		return "DCOES House Fleet";
+	}
+
+	public HouseFleetWidget(HouseFleet fleet) {
+		this.fleet = fleet;
+	}
+
+	public Update update() {
+		int[] commandCounts = fleet.getCommandCounts();
+		return new Update(fleet.getAgentIdPrefix(), fleet.getNumberOfHouses(), fleet.getMeanSoC(),
+				commandCounts[HouseCommand.RECEIVE.ordinal()], commandCounts[HouseCommand.PROVIDE.ordinal()],
+				commandCounts[HouseCommand.NO_EXCHANGE.ordinal()], fleet.getTotalExchangeWatt());
+	}
+
+}
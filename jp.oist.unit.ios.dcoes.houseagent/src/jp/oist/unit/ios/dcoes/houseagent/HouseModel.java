@@ -106,12 +106,12 @@ public class HouseModel {
 		double newSoc = soc + (random.nextDouble() * 2) - 1;
 		soc = Math.max(20, Math.min(95, newSoc));
 		agent.notifyNewSoc(soc);
-		LOG.info("The new SoC for house " + config.agentId() + " is " + soc + "%");
+		LOG.debug("The new SoC for house " + config.agentId() + " is " + soc + "%");
 	}
 
 	public void setCommand(HouseCommand command) {
 		this.command = command;
-		LOG.info("The command for house " + config.agentId() + " is " + command.toString());
+		LOG.debug("The command for house " + config.agentId() + " is " + command.toString());
 		// TODO actually do something!
 	}
 
@@ -0,0 +1,79 @@
+package jp.oist.unit.ios.dcoes.houseagent;
+
+import junit.framework.TestCase;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+
+public class HouseBidTableTest extends TestCase {
+
+	private static final int SOC_BANDS = 75;
+	private static final double EXCHANGE_RATE = 700;
+
+	// Prices between 0 and 1, so the cutoff prices of the bid strategy stay on the scale
+	private final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 101, 0, 1);
+	private final Price minimumPrice = new Price(marketBasis, marketBasis.getMinimumPrice());
+	private final Price maximumPrice = new Price(marketBasis, marketBasis.getMaximumPrice());
+	private final HouseBidTable table = new HouseBidTable(marketBasis, SOC_BANDS, EXCHANGE_RATE);
+
+	/**
+	 * Test: The state of charge is mapped on a band
+	 *
+	 * Expected behavior: Every band covers 1% between 20% and 95%, with separate bands below and at the limits
+	 */
+	public void testBandOf() {
+		assertEquals(HouseBidTable.EMPTY, HouseBidTable.bandOf(19.9, SOC_BANDS));
+		assertEquals(0, HouseBidTable.bandOf(20, SOC_BANDS));
+		assertEquals(14, HouseBidTable.bandOf(34.9, SOC_BANDS));
+		assertEquals(15, HouseBidTable.bandOf(35, SOC_BANDS));
+		assertEquals(59, HouseBidTable.bandOf(79.9, SOC_BANDS));
+		assertEquals(60, HouseBidTable.bandOf(80, SOC_BANDS));
+		assertEquals(74, HouseBidTable.bandOf(94.9, SOC_BANDS));
+		assertEquals(SOC_BANDS, HouseBidTable.bandOf(95, SOC_BANDS));
+	}
+
+	/**
+	 * Test: The bids at the limits of the state of charge
+	 *
+	 * Expected behavior: An empty battery receives at any price, a full one provides at any price, and at 20% the
+	 * house receives at the lowest price
+	 */
+	public void testLimits() {
+		assertDemand(EXCHANGE_RATE, EXCHANGE_RATE, table.getBid(HouseBidTable.bandOf(19.9, SOC_BANDS)));
+		Bid atMinimum = table.getBid(HouseBidTable.bandOf(20, SOC_BANDS));
+		assertEquals(HouseAgent.constructBid(marketBasis, 20, EXCHANGE_RATE), atMinimum);
+		assertEquals(EXCHANGE_RATE, atMinimum.getDemandAt(minimumPrice), 0.001);
+		assertDemand(-EXCHANGE_RATE, -EXCHANGE_RATE, table.getBid(HouseBidTable.bandOf(95, SOC_BANDS)));
+	}
+
+	/**
+	 * Test: The bids around the boundaries of the bid strategy at 0.2 and 0.8 of the range
+	 *
+	 * Expected behavior: The house starts to provide from 35% and stops receiving from 80%, like a {@link HouseAgent}
+	 */
+	public void testStrategyBoundaries() {
+		assertDemand(EXCHANGE_RATE, 0, table.getBid(HouseBidTable.bandOf(34.9, SOC_BANDS)));
+		assertDemand(EXCHANGE_RATE, -EXCHANGE_RATE, table.getBid(HouseBidTable.bandOf(35, SOC_BANDS)));
+		assertDemand(EXCHANGE_RATE, -EXCHANGE_RATE, table.getBid(HouseBidTable.bandOf(79.9, SOC_BANDS)));
+		assertDemand(0, -EXCHANGE_RATE, table.getBid(HouseBidTable.bandOf(80, SOC_BANDS)));
+
+		assertEquals(HouseAgent.constructBid(marketBasis, 35, EXCHANGE_RATE), table.getBid(15));
+		assertEquals(HouseAgent.constructBid(marketBasis, 80, EXCHANGE_RATE), table.getBid(60));
+	}
+
+	/**
+	 * Test: Two houses in the same band
+	 *
+	 * Expected behavior: They share the same bid
+	 */
+	public void testSharedBid() {
+		assertSame(table.getBid(HouseBidTable.bandOf(50.1, SOC_BANDS)),
+				table.getBid(HouseBidTable.bandOf(50.9, SOC_BANDS)));
+	}
+
+	private void assertDemand(double atMinimumPrice, double atMaximumPrice, Bid bid) {
+		assertEquals(atMinimumPrice, bid.getDemandAt(minimumPrice), 0.001);
+		assertEquals(atMaximumPrice, bid.getDemandAt(maximumPrice), 0.001);
+	}
+
+}
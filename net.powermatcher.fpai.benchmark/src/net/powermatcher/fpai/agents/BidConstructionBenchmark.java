@@ -0,0 +1,84 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+import net.powermatcher.fpai.agents.UnconstrainedBid.UnconstrainedBidElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of {@link BufferBid}s and {@link UnconstrainedBid}s, including their conversion to a
+ * {@link Bid}, for different sizes of the {@link MarketBasis} and different numbers of running modes. This benchmark is
+ * in the agents package, because the bid elements are not visible outside of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BidConstructionBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int priceSteps;
+
+    @Param({ "2", "8", "32" })
+    public int runningModes;
+
+    /** The priority of the buffer bids, between -1 (must off) and 1 (must on) */
+    @Param({ "0", "0.5" })
+    public double priority;
+
+    private MarketBasis marketBasis;
+    private List<BufferBidElement> bufferElements;
+    private List<UnconstrainedBidElement> unconstrainedElements;
+    private BufferBidShaper shaper;
+
+    @Setup
+    public void setUp() {
+        marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 99);
+
+        // Running modes from producing to consuming, like a battery with several charge and discharge levels
+        bufferElements = new ArrayList<BufferBidElement>(runningModes);
+        unconstrainedElements = new ArrayList<UnconstrainedBidElement>(runningModes);
+        for (int i = 0; i < runningModes; i++) {
+            double demand = (i - runningModes / 2) * 250d;
+            bufferElements.add(new BufferBidElement(0, i, demand));
+            unconstrainedElements.add(new UnconstrainedBidElement(i, demand));
+        }
+        shaper = new BufferBidShaper();
+    }
+
+    @Benchmark
+    public Bid bufferBid() {
+        return new BufferBid(marketBasis, bufferElements, priority).toBid();
+    }
+
+    /**
+     * The way a {@link BufferAgent} constructs its bids, reusing the scratch buffers of its shaper
+     */
+    @Benchmark
+    public Bid bufferBidWithShaper() {
+        return new BufferBid(marketBasis, bufferElements, priority, shaper).toBid();
+    }
+
+    @Benchmark
+    public Bid unconstrainedBid() {
+        return new UnconstrainedBid(unconstrainedElements, marketBasis).toBid();
+    }
+}
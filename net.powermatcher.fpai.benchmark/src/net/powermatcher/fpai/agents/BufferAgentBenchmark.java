@@ -0,0 +1,210 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Temperature;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.fpai.benchmark.BenchmarkContext;
+import net.powermatcher.fpai.benchmark.BenchmarkSession;
+import net.powermatcher.fpai.controller.AgentMessageSender;
+
+import org.flexiblepower.efi.buffer.Actuator;
+import org.flexiblepower.efi.buffer.ActuatorBehaviour;
+import org.flexiblepower.efi.buffer.ActuatorUpdate;
+import org.flexiblepower.efi.buffer.BufferRegistration;
+import org.flexiblepower.efi.buffer.BufferStateUpdate;
+import org.flexiblepower.efi.buffer.BufferSystemDescription;
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.buffer.RunningModeBehaviour;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.TimerUpdate;
+import org.flexiblepower.efi.util.Transition;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BufferAgent#createBid(net.powermatcher.api.AgentEndpoint.Status)} and the handling of a price update
+ * by a {@link BufferAgent} that controls a heat pump like buffer with one or more on/off actuators.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferAgentBenchmark {
+
+    private static final String RESOURCE_ID = "buffer";
+
+    /** Exposes the bid creation of the agent to the benchmark */
+    static class BenchmarkBufferAgent extends BufferAgent<Temperature> {
+        BenchmarkBufferAgent(AgentMessageSender messageSender) {
+            super(messageSender, "buffer-agent", "matcher");
+        }
+
+        Bid createBid() {
+            return createBid(getStatus());
+        }
+    }
+
+    @Param({ "100", "1000" })
+    public int priceSteps;
+
+    @Param({ "1", "4" })
+    public int actuators;
+
+    /** Maximum number of cached bids, 0 disables the {@link BufferBidCache} */
+    @Param({ "0", "64" })
+    public int bidCacheSize;
+
+    private MarketBasis marketBasis;
+    private BenchmarkContext context;
+    private BenchmarkSession session;
+    private BenchmarkBufferAgent agent;
+    /** The last allocation sent by the agent */
+    private Object lastMessage;
+    private PriceUpdate[] priceUpdates;
+    private int priceUpdateIndex;
+
+    @Setup
+    public void setUp() {
+        marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 99);
+        context = new BenchmarkContext(System.currentTimeMillis());
+        session = new BenchmarkSession(marketBasis);
+
+        agent = new BenchmarkBufferAgent(new AgentMessageSender() {
+            @Override
+            public void sendMessage(Object message) {
+                lastMessage = message;
+            }
+
+            @Override
+            public void destroyAgent() {
+            }
+        });
+        if (bidCacheSize > 0) {
+            agent.setBidCache(new BufferBidCache(bidCacheSize, 0.1, 0.01));
+        }
+        agent.setContext(context);
+        agent.connectToMatcher(session);
+
+        BufferRegistration<Temperature> registration = registration();
+        agent.handleControlSpaceRegistration(registration);
+        agent.handleControlSpaceUpdate(systemDescription(registration));
+        agent.handleControlSpaceUpdate(stateUpdate(registration));
+
+        // Walk through all prices, so every running mode gets allocated
+        int bidNumber = session.getLastBid().getBidNumber();
+        priceUpdates = new PriceUpdate[priceSteps];
+        for (int i = 0; i < priceSteps; i++) {
+            priceUpdates[i] = new PriceUpdate(Price.fromPriceIndex(marketBasis, i), bidNumber);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        agent.deactivate();
+    }
+
+    private BufferRegistration<Temperature> registration() {
+        List<Actuator> actuatorList = new ArrayList<Actuator>();
+        for (int i = 0; i < actuators; i++) {
+            actuatorList.add(new Actuator(i, "HeatPump" + i, CommoditySet.onlyElectricity));
+        }
+        return new BufferRegistration<Temperature>(RESOURCE_ID,
+                                                   context.currentTime(),
+                                                   Measure.zero(SI.SECOND),
+                                                   "Temperature",
+                                                   SI.CELSIUS,
+                                                   actuatorList);
+    }
+
+    private BufferSystemDescription systemDescription(BufferRegistration<Temperature> registration) {
+        Set<ActuatorBehaviour> behaviours = new HashSet<ActuatorBehaviour>();
+        for (int i = 0; i < actuators; i++) {
+            List<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = new ArrayList<RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
+            runningModes.add(runningMode(0, "off", 0, 0, 1));
+            runningModes.add(runningMode(1, "on", 0.0016, 1000 + 100 * i, 0));
+            behaviours.add(new ActuatorBehaviour(i, runningModes));
+        }
+        FillLevelFunction<LeakageRate> leakage = FillLevelFunction.<LeakageRate> create(20)
+                                                                  .add(120, new LeakageRate(0.01))
+                                                                  .build();
+        return new BufferSystemDescription(registration,
+                                           context.currentTime(),
+                                           context.currentTime(),
+                                           behaviours,
+                                           leakage);
+    }
+
+    private static RunningMode<FillLevelFunction<RunningModeBehaviour>> runningMode(int id,
+                                                                                    String label,
+                                                                                    double fillingRate,
+                                                                                    double demandWatt,
+                                                                                    int transitionTo) {
+        FillLevelFunction<RunningModeBehaviour> function = FillLevelFunction.<RunningModeBehaviour> create(20)
+                                                                            .add(120,
+                                                                                 new RunningModeBehaviour(fillingRate,
+                                                                                                          CommodityMeasurables.electricity(Measure.valueOf(demandWatt,
+                                                                                                                                                           SI.WATT)),
+                                                                                                          Measure.valueOf(0,
+                                                                                                                          NonSI.EUR_PER_HOUR)))
+                                                                            .build();
+        return new RunningMode<FillLevelFunction<RunningModeBehaviour>>(id,
+                                                                        label,
+                                                                        function,
+                                                                        Collections.singleton(Transition.create(transitionTo)
+                                                                                                        .build()));
+    }
+
+    private BufferStateUpdate<Temperature> stateUpdate(BufferRegistration<Temperature> registration) {
+        Set<ActuatorUpdate> updates = new HashSet<ActuatorUpdate>();
+        for (int i = 0; i < actuators; i++) {
+            updates.add(new ActuatorUpdate(i, 0, Collections.<TimerUpdate> emptySet()));
+        }
+        Date now = context.currentTime();
+        return new BufferStateUpdate<Temperature>(registration,
+                                                  now,
+                                                  now,
+                                                  Measure.valueOf(60, SI.CELSIUS),
+                                                  updates);
+    }
+
+    @Benchmark
+    public Bid createBid() {
+        return agent.createBid();
+    }
+
+    @Benchmark
+    public Object handlePriceUpdate() {
+        agent.handlePriceUpdate(priceUpdates[priceUpdateIndex]);
+        priceUpdateIndex = (priceUpdateIndex + 1) % priceUpdates.length;
+        return lastMessage;
+    }
+}
@@ -0,0 +1,174 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.fpai.benchmark.BenchmarkContext;
+import net.powermatcher.fpai.benchmark.BenchmarkSession;
+import net.powermatcher.fpai.controller.AgentMessageSender;
+
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.efi.timeshifter.TimeShifterRegistration;
+import org.flexiblepower.efi.timeshifter.TimeShifterUpdate;
+import org.flexiblepower.ral.messages.AllocationStatus;
+import org.flexiblepower.ral.messages.AllocationStatusUpdate;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.UncertainMeasure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the bids of a {@link TimeshifterAgent} in its flexible period and while its program is running, and the
+ * handling of a price update in the flexible period.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeshifterAgentBenchmark {
+
+    private static final String RESOURCE_ID = "timeshifter";
+    private static final long ONE_HOUR_MS = 60 * 60 * 1000;
+
+    /** Exposes the bid creation of the agent to the benchmark */
+    static class BenchmarkTimeshifterAgent extends TimeshifterAgent {
+        BenchmarkTimeshifterAgent(AgentMessageSender messageSender) {
+            super(messageSender, "timeshifter-agent", "matcher");
+        }
+
+        Bid createBid() {
+            return createBid(getStatus());
+        }
+    }
+
+    @Param({ "100", "1000" })
+    public int priceSteps;
+
+    /** Number of one minute elements of the program */
+    @Param({ "60", "1440" })
+    public int profileElements;
+
+    private BenchmarkContext context;
+    private BenchmarkTimeshifterAgent flexibleAgent;
+    private BenchmarkTimeshifterAgent runningAgent;
+    /** The last allocation sent by the flexible agent */
+    private Object lastMessage;
+    private PriceUpdate[] priceUpdates;
+    private int priceUpdateIndex;
+
+    @Setup
+    public void setUp() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 99);
+        context = new BenchmarkContext(System.currentTimeMillis());
+
+        BenchmarkSession flexibleSession = new BenchmarkSession(marketBasis);
+        flexibleAgent = createAgent(flexibleSession);
+        flexibleAgent.handleControlSpaceUpdate(timeShifterUpdate());
+
+        runningAgent = createAgent(new BenchmarkSession(marketBasis));
+        runningAgent.handleControlSpaceUpdate(timeShifterUpdate());
+        // The program started half an hour ago
+        runningAgent.handleAllocationStatusUpdate(new AllocationStatusUpdate(RESOURCE_ID,
+                                                                             new Date(context.currentTimeMillis() - ONE_HOUR_MS
+                                                                                      / 2),
+                                                                             UUID.randomUUID(),
+                                                                             AllocationStatus.STARTED,
+                                                                             ""));
+
+        // Walk through all prices, so the agent both starts and waits
+        int bidNumber = flexibleSession.getLastBid().getBidNumber();
+        priceUpdates = new PriceUpdate[priceSteps];
+        for (int i = 0; i < priceSteps; i++) {
+            priceUpdates[i] = new PriceUpdate(Price.fromPriceIndex(marketBasis, i), bidNumber);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        flexibleAgent.deactivate();
+        runningAgent.deactivate();
+    }
+
+    private BenchmarkTimeshifterAgent createAgent(BenchmarkSession session) {
+        BenchmarkTimeshifterAgent agent = new BenchmarkTimeshifterAgent(new AgentMessageSender() {
+            @Override
+            public void sendMessage(Object message) {
+                lastMessage = message;
+            }
+
+            @Override
+            public void destroyAgent() {
+            }
+        });
+        agent.setContext(context);
+        agent.connectToMatcher(session);
+        agent.handleControlSpaceRegistration(new TimeShifterRegistration(RESOURCE_ID,
+                                                                         context.currentTime(),
+                                                                         Measure.zero(SI.SECOND),
+                                                                         CommoditySet.onlyElectricity));
+        return agent;
+    }
+
+    /**
+     * @return An update of which the flexible period started an hour ago, with eight hours of slack left
+     */
+    private TimeShifterUpdate timeShifterUpdate() {
+        CommodityForecast.Builder builder = CommodityForecast.create();
+        builder.duration(Measure.valueOf(60, SI.SECOND));
+        for (int i = 0; i < profileElements; i++) {
+            // A washing machine like profile with heating and spinning phases
+            builder.electricity(new UncertainMeasure<Power>(i % 30 < 10 ? 2000 : 200, SI.WATT)).next();
+        }
+        List<SequentialProfile> profiles = new ArrayList<SequentialProfile>();
+        profiles.add(new SequentialProfile(0, Measure.zero(SI.SECOND), builder.build()));
+
+        long now = context.currentTimeMillis();
+        return new TimeShifterUpdate(RESOURCE_ID,
+                                     new Date(now),
+                                     new Date(now - ONE_HOUR_MS),
+                                     new Date(now + 8 * ONE_HOUR_MS + profileElements * 60000L),
+                                     Collections.unmodifiableList(profiles));
+    }
+
+    @Benchmark
+    public Bid flexibleBid() {
+        return flexibleAgent.createBid();
+    }
+
+    @Benchmark
+    public Bid runningBid() {
+        return runningAgent.createBid();
+    }
+
+    @Benchmark
+    public Object handlePriceUpdate() {
+        flexibleAgent.handlePriceUpdate(priceUpdates[priceUpdateIndex]);
+        priceUpdateIndex = (priceUpdateIndex + 1) % priceUpdates.length;
+        return lastMessage;
+    }
+}
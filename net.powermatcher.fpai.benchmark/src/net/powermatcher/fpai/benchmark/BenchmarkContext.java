@@ -0,0 +1,120 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * A {@link FlexiblePowerContext} with a virtual clock that never runs scheduled tasks, so a benchmark only measures the
+ * code it calls itself.
+ */
+public class BenchmarkContext implements FlexiblePowerContext {
+
+    /** A future of a task that will never run */
+    private static final class IdleFuture<V> implements ScheduledFuture<V> {
+        private volatile boolean cancelled = false;
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled;
+        }
+
+        @Override
+        public V get() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private volatile long now;
+
+    public BenchmarkContext(long now) {
+        this.now = now;
+    }
+
+    public void setCurrentTimeMillis(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(now);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return new IdleFuture<V>();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return new IdleFuture<Object>();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return new IdleFuture<Object>();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return new IdleFuture<Object>();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return new IdleFuture<T>();
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return new IdleFuture<Object>();
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return new IdleFuture<T>();
+    }
+}
@@ -0,0 +1,66 @@
+package net.powermatcher.fpai.benchmark;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+
+/**
+ * A {@link Session} that only remembers the last bid, standing in for the matcher of an agent.
+ */
+public class BenchmarkSession implements Session {
+
+    private final MarketBasis marketBasis;
+    private volatile BidUpdate lastBid;
+
+    public BenchmarkSession(MarketBasis marketBasis) {
+        this.marketBasis = marketBasis;
+    }
+
+    @Override
+    public void updateBid(BidUpdate newBid) {
+        lastBid = newBid;
+    }
+
+    @Override
+    public String getAgentId() {
+        return "agent-id";
+    }
+
+    @Override
+    public String getMatcherId() {
+        return "matcher-id";
+    }
+
+    @Override
+    public String getClusterId() {
+        return "cluster-id";
+    }
+
+    @Override
+    public String getSessionId() {
+        return "session-id";
+    }
+
+    @Override
+    public MarketBasis getMarketBasis() {
+        return marketBasis;
+    }
+
+    @Override
+    public void setMarketBasis(MarketBasis marketBasis) {
+    }
+
+    @Override
+    public void updatePrice(PriceUpdate newPrice) {
+    }
+
+    @Override
+    public void disconnect() {
+        lastBid = null;
+    }
+
+    public BidUpdate getLastBid() {
+        return lastBid;
+    }
+}
@@ -0,0 +1,145 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.fpai.agents.FpaiAgent;
+
+/**
+ * An in-process stand-in for the concentrator and auctioneer of a cluster. It keeps the aggregated demand of the last
+ * bids of all agents up to date, and on every {@link #clear()} it sends the equilibrium price to every agent while
+ * measuring how long each agent takes to turn the price into an allocation.
+ */
+public class HarnessAuctioneer {
+
+    /** The session of a single agent */
+    private final class AgentSession implements Session {
+        private final SimulatedResource resource;
+        private final String sessionId;
+        private double[] demand;
+        private int bidNumber;
+
+        AgentSession(SimulatedResource resource, String sessionId) {
+            this.resource = resource;
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void updateBid(BidUpdate newBid) {
+            double[] newDemand = newBid.getBid().getDemand();
+            for (int i = 0; i < aggregatedDemand.length; i++) {
+                aggregatedDemand[i] += newDemand[i] - (demand == null ? 0 : demand[i]);
+            }
+            demand = newDemand;
+            bidNumber = newBid.getBidNumber();
+            bids++;
+        }
+
+        @Override
+        public String getAgentId() {
+            return resource.getAgent().getAgentId();
+        }
+
+        @Override
+        public String getMatcherId() {
+            return AUCTIONEER_ID;
+        }
+
+        @Override
+        public String getClusterId() {
+            return "harness";
+        }
+
+        @Override
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        @Override
+        public MarketBasis getMarketBasis() {
+            return marketBasis;
+        }
+
+        @Override
+        public void setMarketBasis(MarketBasis marketBasis) {
+        }
+
+        @Override
+        public void updatePrice(PriceUpdate newPrice) {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+
+    public static final String AUCTIONEER_ID = "auctioneer";
+
+    private final MarketBasis marketBasis;
+    private final double[] aggregatedDemand;
+    private final List<AgentSession> sessions = new ArrayList<AgentSession>();
+    private final LatencyRecorder allocationLatency;
+
+    private long bids = 0;
+    private long priceUpdates = 0;
+
+    public HarnessAuctioneer(MarketBasis marketBasis, LatencyRecorder allocationLatency) {
+        this.marketBasis = marketBasis;
+        aggregatedDemand = new double[marketBasis.getPriceSteps()];
+        this.allocationLatency = allocationLatency;
+    }
+
+    /**
+     * Connects the agent of the resource to this auctioneer.
+     */
+    public void connect(SimulatedResource resource) {
+        AgentSession session = new AgentSession(resource, "session-" + sessions.size());
+        sessions.add(session);
+        resource.getAgent().connectToMatcher(session);
+    }
+
+    /**
+     * Determines the equilibrium price of the last bids and sends it to all agents.
+     *
+     * @return The equilibrium price
+     */
+    public Price clear() {
+        // The aggregated demand is descending, find the first price at which the cluster does not consume
+        int priceIndex = aggregatedDemand.length - 1;
+        for (int i = 0; i < aggregatedDemand.length; i++) {
+            if (aggregatedDemand[i] <= 0) {
+                priceIndex = i;
+                break;
+            }
+        }
+        Price price = Price.fromPriceIndex(marketBasis, priceIndex);
+
+        for (AgentSession session : sessions) {
+            if (session.demand == null || session.resource.isDestroyed()) {
+                continue;
+            }
+            FpaiAgent agent = session.resource.getAgent();
+            long allocationsBefore = session.resource.getAllocations();
+            long start = System.nanoTime();
+            agent.handlePriceUpdate(new PriceUpdate(price, session.bidNumber));
+            priceUpdates++;
+            if (session.resource.getAllocations() != allocationsBefore) {
+                allocationLatency.record(session.resource.getLastAllocationNs() - start);
+            }
+        }
+        return price;
+    }
+
+    public long getBids() {
+        return bids;
+    }
+
+    public long getPriceUpdates() {
+        return priceUpdates;
+    }
+}
@@ -0,0 +1,74 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Records latencies in nanoseconds. The percentiles are calculated from a uniform sample of fixed size (reservoir
+ * sampling), so a long run does not need memory for every latency. The count and the maximum are exact.
+ */
+public class LatencyRecorder {
+
+    private final long[] reservoir;
+    private final Random random;
+    private long count = 0;
+    private long maximum = 0;
+    private long total = 0;
+
+    /**
+     * @param sampleSize
+     *            The number of latencies that are kept to calculate the percentiles
+     * @param random
+     *            The source of randomness for the sampling
+     */
+    public LatencyRecorder(int sampleSize, Random random) {
+        reservoir = new long[sampleSize];
+        this.random = random;
+    }
+
+    public void record(long latencyNs) {
+        if (count < reservoir.length) {
+            reservoir[(int) count] = latencyNs;
+        } else {
+            long index = (long) (random.nextDouble() * (count + 1));
+            if (index < reservoir.length) {
+                reservoir[(int) index] = latencyNs;
+            }
+        }
+        count++;
+        total += latencyNs;
+        maximum = Math.max(maximum, latencyNs);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaximum() {
+        return maximum;
+    }
+
+    public long getAverage() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * @param percentiles
+     *            The requested percentiles, between 0 and 100
+     * @return The latency in nanoseconds at each of the percentiles, or zeros when nothing has been recorded
+     */
+    public long[] getPercentiles(double... percentiles) {
+        long[] result = new long[percentiles.length];
+        int size = (int) Math.min(count, reservoir.length);
+        if (size == 0) {
+            return result;
+        }
+        long[] sorted = Arrays.copyOf(reservoir, size);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.ceil(percentiles[i] / 100 * size) - 1;
+            result[i] = sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+        return result;
+    }
+}
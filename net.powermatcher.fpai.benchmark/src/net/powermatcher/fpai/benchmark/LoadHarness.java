@@ -0,0 +1,139 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.powermatcher.api.data.MarketBasis;
+
+/**
+ * Runs thousands of agents without the OSGi runtime to find out how many devices a single controller can sustain. The
+ * agents are fed synthetic EFI message streams by {@link SimulatedResource}s on a {@link VirtualTimeContext}, and a
+ * {@link HarnessAuctioneer} clears the market at a fixed (virtual) interval. Everything runs on the calling thread, so
+ * the wall clock time is the processing time of the agents.
+ *
+ * Arguments are given as <code>-name value</code> pairs, see {@link #DEFAULTS} for the names and default values.
+ */
+public class LoadHarness {
+
+    private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+
+    static {
+        DEFAULTS.put("buffers", "1000");
+        DEFAULTS.put("unconstrained", "1000");
+        DEFAULTS.put("timeshifters", "1000");
+        DEFAULTS.put("uncontrolled", "1000");
+        DEFAULTS.put("hours", "24");
+        DEFAULTS.put("updateIntervalS", "60");
+        DEFAULTS.put("clearIntervalS", "10");
+        DEFAULTS.put("priceSteps", "100");
+        DEFAULTS.put("seed", "1");
+    }
+
+    private final Map<String, String> settings;
+
+    public LoadHarness(Map<String, String> settings) {
+        this.settings = settings;
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(settings.get(name));
+    }
+
+    public void run() {
+        Random random = new Random(Long.parseLong(settings.get("seed")));
+        long startTime = 0;
+        VirtualTimeContext context = new VirtualTimeContext(startTime);
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", getInt("priceSteps"), 0, 1);
+        LatencyRecorder allocationLatency = new LatencyRecorder(1 << 20, random);
+        HarnessAuctioneer auctioneer = new HarnessAuctioneer(marketBasis, allocationLatency);
+
+        List<SimulatedResource> resources = new ArrayList<SimulatedResource>();
+        for (int i = 0; i < getInt("buffers"); i++) {
+            resources.add(new SimulatedBuffer("buffer-" + i, context, random));
+        }
+        for (int i = 0; i < getInt("unconstrained"); i++) {
+            resources.add(new SimulatedUnconstrained("unconstrained-" + i, context, random));
+        }
+        for (int i = 0; i < getInt("timeshifters"); i++) {
+            resources.add(new SimulatedTimeshifter("timeshifter-" + i, context, random));
+        }
+        for (int i = 0; i < getInt("uncontrolled"); i++) {
+            resources.add(new SimulatedUncontrolled("uncontrolled-" + i, context, random, i % 2 == 0));
+        }
+        int agents = resources.size();
+        if (agents == 0) {
+            System.out.println("No agents configured");
+            return;
+        }
+
+        // Measure the heap of the agents after they have received their first messages
+        long heapBefore = usedHeap();
+        long updateIntervalMs = getInt("updateIntervalS") * 1000L;
+        for (int i = 0; i < agents; i++) {
+            SimulatedResource resource = resources.get(i);
+            resource.createAgent("agent-" + i, HarnessAuctioneer.AUCTIONEER_ID);
+            auctioneer.connect(resource);
+            resource.start(updateIntervalMs);
+        }
+        context.advanceTo(startTime + updateIntervalMs);
+        long heapPerAgent = (usedHeap() - heapBefore) / agents;
+
+        long clearIntervalMs = getInt("clearIntervalS") * 1000L;
+        long endTime = startTime + getInt("hours") * 3600000L;
+        long bidsBefore = auctioneer.getBids();
+        long wallStart = System.nanoTime();
+        long clearingNs = 0;
+        for (long time = context.currentTimeMillis() + clearIntervalMs; time <= endTime; time += clearIntervalMs) {
+            context.advanceTo(time);
+            long clearStart = System.nanoTime();
+            auctioneer.clear();
+            clearingNs += System.nanoTime() - clearStart;
+        }
+        double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+        long bids = auctioneer.getBids() - bidsBefore;
+
+        long[] percentiles = allocationLatency.getPercentiles(50, 90, 99, 99.9);
+        System.out.println("Agents:                " + agents);
+        System.out.println("Simulated hours:       " + getInt("hours"));
+        System.out.println("Wall time:             " + String.format("%.1f s (%.0fx real time)",
+                                                                     wallSeconds,
+                                                                     (endTime - startTime) / 1000d / wallSeconds));
+        System.out.println("Bids:                  " + bids + String.format(" (%.0f bids/s)", bids / wallSeconds));
+        System.out.println("Scheduled tasks run:   " + context.getExecutedTasks());
+        System.out.println("Price updates:         " + auctioneer.getPriceUpdates()
+                           + String.format(" (%.0f price updates/s while clearing)",
+                                           auctioneer.getPriceUpdates() / (Math.max(1, clearingNs) / 1e9)));
+        System.out.println("Allocations:           " + allocationLatency.getCount());
+        System.out.println("Price to allocation:   " + String.format("p50=%d us, p90=%d us, p99=%d us, p99.9=%d us, max=%d us",
+                                                                     percentiles[0] / 1000,
+                                                                     percentiles[1] / 1000,
+                                                                     percentiles[2] / 1000,
+                                                                     percentiles[3] / 1000,
+                                                                     allocationLatency.getMaximum() / 1000));
+        System.out.println("Heap per agent:        " + heapPerAgent + " bytes (including its last messages)");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> settings = new HashMap<String, String>(DEFAULTS);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i].replaceFirst("^-+", "");
+            if (!DEFAULTS.containsKey(name)) {
+                System.err.println("Unknown argument " + args[i] + ", known arguments are " + DEFAULTS);
+                System.exit(1);
+            }
+            settings.put(name, args[i + 1]);
+        }
+        new LoadHarness(settings).run();
+    }
+}
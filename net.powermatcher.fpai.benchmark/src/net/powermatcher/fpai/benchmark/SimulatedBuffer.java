@@ -0,0 +1,153 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Temperature;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import net.powermatcher.fpai.agents.BufferAgent;
+import net.powermatcher.fpai.agents.FpaiAgent;
+
+import org.flexiblepower.efi.buffer.Actuator;
+import org.flexiblepower.efi.buffer.ActuatorAllocation;
+import org.flexiblepower.efi.buffer.ActuatorBehaviour;
+import org.flexiblepower.efi.buffer.ActuatorUpdate;
+import org.flexiblepower.efi.buffer.BufferAllocation;
+import org.flexiblepower.efi.buffer.BufferRegistration;
+import org.flexiblepower.efi.buffer.BufferStateUpdate;
+import org.flexiblepower.efi.buffer.BufferSystemDescription;
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.buffer.RunningModeBehaviour;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.TimerUpdate;
+import org.flexiblepower.efi.util.Transition;
+import org.flexiblepower.ral.messages.Allocation;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.CommoditySet;
+
+/**
+ * A hot water boiler with an on/off heat pump. It heats 7.2 degrees per hour when on and loses 3.6 degrees per hour.
+ */
+public class SimulatedBuffer extends SimulatedResource {
+
+    private static final double MINIMUM_TEMPERATURE = 40;
+    private static final double MAXIMUM_TEMPERATURE = 60;
+    /** Degrees per second */
+    private static final double HEATING_RATE = 0.002;
+    /** Degrees per second */
+    private static final double LEAKAGE_RATE = 0.001;
+    private static final double POWER_ON_WATT = 1500;
+
+    private BufferRegistration<Temperature> registration;
+    private double temperature;
+    private int runningModeId = 0;
+    private long lastUpdateTime;
+
+    public SimulatedBuffer(String resourceId, VirtualTimeContext context, Random random) {
+        super(resourceId, context, random);
+    }
+
+    @Override
+    protected FpaiAgent newAgent(String agentId, String desiredParentId) {
+        return new BufferAgent<Temperature>(this, agentId, desiredParentId);
+    }
+
+    @Override
+    public void start(long updateIntervalMs) {
+        Date now = context.currentTime();
+        registration = new BufferRegistration<Temperature>(resourceId,
+                                                           now,
+                                                           Measure.zero(SI.SECOND),
+                                                           "Temperature",
+                                                           SI.CELSIUS,
+                                                           Collections.singletonList(new Actuator(0,
+                                                                                                  "HeatPump",
+                                                                                                  CommoditySet.onlyElectricity)));
+        deliver(registration);
+        deliver(systemDescription(now));
+
+        temperature = MINIMUM_TEMPERATURE + random.nextDouble() * (MAXIMUM_TEMPERATURE - MINIMUM_TEMPERATURE);
+        lastUpdateTime = context.currentTimeMillis();
+        context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sendStateUpdate();
+            }
+        }, initialDelay(updateIntervalMs), millis(updateIntervalMs));
+    }
+
+    private BufferSystemDescription systemDescription(Date now) {
+        List<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = new ArrayList<RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
+        runningModes.add(runningMode(0, "off", 0, 0, 1));
+        runningModes.add(runningMode(1, "on", HEATING_RATE, POWER_ON_WATT, 0));
+        FillLevelFunction<LeakageRate> leakage = FillLevelFunction.<LeakageRate> create(MINIMUM_TEMPERATURE)
+                                                                  .add(MAXIMUM_TEMPERATURE,
+                                                                       new LeakageRate(LEAKAGE_RATE))
+                                                                  .build();
+        return new BufferSystemDescription(registration,
+                                           now,
+                                           now,
+                                           Collections.singleton(new ActuatorBehaviour(0, runningModes)),
+                                           leakage);
+    }
+
+    private static RunningMode<FillLevelFunction<RunningModeBehaviour>> runningMode(int id,
+                                                                                    String label,
+                                                                                    double fillingRate,
+                                                                                    double demandWatt,
+                                                                                    int transitionTo) {
+        FillLevelFunction<RunningModeBehaviour> function = FillLevelFunction.<RunningModeBehaviour> create(MINIMUM_TEMPERATURE)
+                                                                            .add(MAXIMUM_TEMPERATURE,
+                                                                                 new RunningModeBehaviour(fillingRate,
+                                                                                                          CommodityMeasurables.electricity(Measure.valueOf(demandWatt,
+                                                                                                                                                           SI.WATT)),
+                                                                                                          Measure.valueOf(0,
+                                                                                                                          NonSI.EUR_PER_HOUR)))
+                                                                            .build();
+        return new RunningMode<FillLevelFunction<RunningModeBehaviour>>(id,
+                                                                        label,
+                                                                        function,
+                                                                        Collections.singleton(Transition.create(transitionTo)
+                                                                                                        .build()));
+    }
+
+    /**
+     * Brings the temperature up to date with the running mode since the last change
+     */
+    private void integrate() {
+        long now = context.currentTimeMillis();
+        double seconds = (now - lastUpdateTime) / 1000d;
+        lastUpdateTime = now;
+        temperature += ((runningModeId == 1 ? HEATING_RATE : 0) - LEAKAGE_RATE) * seconds;
+        temperature = Math.max(MINIMUM_TEMPERATURE, Math.min(MAXIMUM_TEMPERATURE, temperature));
+    }
+
+    private void sendStateUpdate() {
+        integrate();
+        long now = context.currentTimeMillis();
+        ActuatorUpdate actuatorUpdate = new ActuatorUpdate(0, runningModeId, Collections.<TimerUpdate> emptySet());
+        Date date = new Date(now);
+        deliver(new BufferStateUpdate<Temperature>(registration,
+                                                   date,
+                                                   date,
+                                                   Measure.valueOf(temperature, SI.CELSIUS),
+                                                   Collections.singleton(actuatorUpdate)));
+    }
+
+    @Override
+    protected void allocationReceived(Allocation allocation) {
+        if (allocation instanceof BufferAllocation) {
+            integrate();
+            for (ActuatorAllocation actuatorAllocation : ((BufferAllocation) allocation).getActuatorAllocations()) {
+                runningModeId = actuatorAllocation.getRunningModeId();
+            }
+        }
+    }
+}
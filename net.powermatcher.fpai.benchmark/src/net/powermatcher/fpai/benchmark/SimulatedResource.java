@@ -0,0 +1,130 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Random;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+
+import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.controller.AgentMessageSender;
+
+import org.flexiblepower.ral.messages.Allocation;
+import org.flexiblepower.ral.messages.AllocationStatusUpdate;
+import org.flexiblepower.ral.messages.ControlSpaceRegistration;
+import org.flexiblepower.ral.messages.ControlSpaceRevoke;
+import org.flexiblepower.ral.messages.ControlSpaceUpdate;
+
+/**
+ * An in-process stand-in for a resource manager. It creates the agent for the resource, feeds it a synthetic stream of
+ * EFI messages on a {@link VirtualTimeContext} and reacts to the allocations of the agent.
+ */
+public abstract class SimulatedResource implements AgentMessageSender {
+
+    protected final String resourceId;
+    protected final VirtualTimeContext context;
+    protected final Random random;
+
+    private FpaiAgent agent;
+    private boolean destroyed = false;
+    private long allocations = 0;
+    private long lastAllocationNs = 0;
+
+    protected SimulatedResource(String resourceId, VirtualTimeContext context, Random random) {
+        this.resourceId = resourceId;
+        this.context = context;
+        this.random = random;
+    }
+
+    /**
+     * Creates the agent of this resource.
+     *
+     * @param agentId
+     *            The identifier of the agent
+     * @param desiredParentId
+     *            The identifier of the matcher the agent connects to
+     * @return The agent, which still has to be connected
+     */
+    public FpaiAgent createAgent(String agentId, String desiredParentId) {
+        agent = newAgent(agentId, desiredParentId);
+        agent.setContext(context);
+        return agent;
+    }
+
+    protected abstract FpaiAgent newAgent(String agentId, String desiredParentId);
+
+    /**
+     * Sends the registration and schedules the message stream of the resource.
+     *
+     * @param updateIntervalMs
+     *            The interval between two state updates in milliseconds
+     */
+    public abstract void start(long updateIntervalMs);
+
+    /**
+     * Handles an allocation of the agent. Called on the thread that delivered the price.
+     */
+    protected abstract void allocationReceived(Allocation allocation);
+
+    /**
+     * @return A random delay before the first update, so the updates of the resources are spread over the interval
+     */
+    protected Measurable<Duration> initialDelay(long updateIntervalMs) {
+        return Measure.valueOf((long) (random.nextDouble() * updateIntervalMs), SI.MILLI(SI.SECOND));
+    }
+
+    protected static Measurable<Duration> millis(long ms) {
+        return Measure.valueOf(ms, SI.MILLI(SI.SECOND));
+    }
+
+    /**
+     * Delivers a message to the agent, like the messaging framework would.
+     */
+    protected void deliver(Object message) {
+        if (agent == null || destroyed) {
+            return;
+        } else if (message instanceof ControlSpaceRegistration) {
+            agent.handleControlSpaceRegistration((ControlSpaceRegistration) message);
+        } else if (message instanceof ControlSpaceUpdate) {
+            agent.handleControlSpaceUpdate((ControlSpaceUpdate) message);
+        } else if (message instanceof ControlSpaceRevoke) {
+            agent.handleControlSpaceRevoke((ControlSpaceRevoke) message);
+        } else if (message instanceof AllocationStatusUpdate) {
+            agent.handleAllocationStatusUpdate((AllocationStatusUpdate) message);
+        }
+    }
+
+    @Override
+    public void sendMessage(Object message) {
+        if (message instanceof Allocation) {
+            lastAllocationNs = System.nanoTime();
+            allocations++;
+            allocationReceived((Allocation) message);
+        }
+    }
+
+    @Override
+    public void destroyAgent() {
+        destroyed = true;
+    }
+
+    public FpaiAgent getAgent() {
+        return agent;
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    public long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the last allocation was received
+     */
+    public long getLastAllocationNs() {
+        return lastAllocationNs;
+    }
+}
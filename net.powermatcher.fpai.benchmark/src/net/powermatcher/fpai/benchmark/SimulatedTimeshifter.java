@@ -0,0 +1,110 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+import javax.measure.unit.SI;
+
+import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.agents.TimeshifterAgent;
+
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.efi.timeshifter.TimeShifterAllocation;
+import org.flexiblepower.efi.timeshifter.TimeShifterRegistration;
+import org.flexiblepower.efi.timeshifter.TimeShifterUpdate;
+import org.flexiblepower.ral.messages.Allocation;
+import org.flexiblepower.ral.messages.AllocationStatus;
+import org.flexiblepower.ral.messages.AllocationStatusUpdate;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+/**
+ * A washing machine. It offers a program of two hours that should end within a few hours, runs it when it is allocated
+ * and offers the next program after a random pause.
+ */
+public class SimulatedTimeshifter extends SimulatedResource {
+
+    private static final long ONE_MINUTE_MS = 60 * 1000;
+    private static final long ONE_HOUR_MS = 60 * ONE_MINUTE_MS;
+    private static final int PROGRAM_MINUTES = 120;
+
+    private final CommodityForecast program;
+    private boolean running = false;
+
+    public SimulatedTimeshifter(String resourceId, VirtualTimeContext context, Random random) {
+        super(resourceId, context, random);
+        CommodityForecast.Builder builder = CommodityForecast.create();
+        builder.duration(Measure.valueOf(60, SI.SECOND));
+        for (int minute = 0; minute < PROGRAM_MINUTES; minute++) {
+            // Heating at the start, then washing, then spinning at the end
+            double watt = minute < 20 ? 2000 : (minute < 100 ? 200 : 600);
+            builder.electricity(new UncertainMeasure<Power>(watt, SI.WATT)).next();
+        }
+        program = builder.build();
+    }
+
+    @Override
+    protected FpaiAgent newAgent(String agentId, String desiredParentId) {
+        return new TimeshifterAgent(this, agentId, desiredParentId);
+    }
+
+    @Override
+    public void start(long updateIntervalMs) {
+        deliver(new TimeShifterRegistration(resourceId,
+                                            context.currentTime(),
+                                            Measure.zero(SI.SECOND),
+                                            CommoditySet.onlyElectricity));
+        scheduleNextProgram((long) (random.nextDouble() * 4 * ONE_HOUR_MS));
+    }
+
+    private void scheduleNextProgram(long delayMs) {
+        context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long now = context.currentTimeMillis();
+                long slackMs = (long) ((1 + random.nextDouble() * 7) * ONE_HOUR_MS);
+                SequentialProfile profile = new SequentialProfile(0, Measure.zero(SI.SECOND), program);
+                deliver(new TimeShifterUpdate(resourceId,
+                                              new Date(now),
+                                              new Date(now),
+                                              new Date(now + slackMs + PROGRAM_MINUTES * ONE_MINUTE_MS),
+                                              Collections.singletonList(profile)));
+            }
+        }, millis(delayMs));
+    }
+
+    @Override
+    protected void allocationReceived(Allocation allocation) {
+        if (!(allocation instanceof TimeShifterAllocation) || running) {
+            return;
+        }
+        running = true;
+        final UUID allocationId = allocation.getResourceMessageId();
+
+        // The resource manager answers asynchronously
+        context.submit(new Runnable() {
+            @Override
+            public void run() {
+                deliver(statusUpdate(allocationId, AllocationStatus.ACCEPTED));
+                deliver(statusUpdate(allocationId, AllocationStatus.STARTED));
+            }
+        });
+        context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                deliver(statusUpdate(allocationId, AllocationStatus.FINISHED));
+                scheduleNextProgram((long) ((1 + random.nextDouble() * 3) * ONE_HOUR_MS));
+            }
+        }, millis(PROGRAM_MINUTES * ONE_MINUTE_MS));
+    }
+
+    private AllocationStatusUpdate statusUpdate(UUID allocationId, AllocationStatus status) {
+        return new AllocationStatusUpdate(resourceId, context.currentTime(), allocationId, status, "");
+    }
+}
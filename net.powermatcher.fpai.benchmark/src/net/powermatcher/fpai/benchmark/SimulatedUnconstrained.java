@@ -0,0 +1,93 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.agents.UnconstrainedAgent;
+
+import org.flexiblepower.efi.unconstrained.RunningModeBehaviour;
+import org.flexiblepower.efi.unconstrained.RunningModeSelector;
+import org.flexiblepower.efi.unconstrained.UnconstrainedAllocation;
+import org.flexiblepower.efi.unconstrained.UnconstrainedRegistration;
+import org.flexiblepower.efi.unconstrained.UnconstrainedStateUpdate;
+import org.flexiblepower.efi.unconstrained.UnconstrainedSystemDescription;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.TimerUpdate;
+import org.flexiblepower.efi.util.Transition;
+import org.flexiblepower.ral.messages.Allocation;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.CommoditySet;
+
+/**
+ * A generator with an off, a half power and a full power running mode, of which the fuel costs more at full power.
+ */
+public class SimulatedUnconstrained extends SimulatedResource {
+
+    private static final double[] PRODUCTION_WATT = { 0, -1500, -3000 };
+    private static final double[] COST_EUR_PER_HOUR = { 0, 0.2, 0.5 };
+
+    private int runningModeId = 0;
+
+    public SimulatedUnconstrained(String resourceId, VirtualTimeContext context, Random random) {
+        super(resourceId, context, random);
+    }
+
+    @Override
+    protected FpaiAgent newAgent(String agentId, String desiredParentId) {
+        return new UnconstrainedAgent(this, agentId, desiredParentId);
+    }
+
+    @Override
+    public void start(long updateIntervalMs) {
+        Date now = context.currentTime();
+        deliver(new UnconstrainedRegistration(resourceId, now, Measure.zero(SI.SECOND), CommoditySet.onlyElectricity));
+
+        Collection<RunningMode<RunningModeBehaviour>> runningModes = new ArrayList<RunningMode<RunningModeBehaviour>>();
+        for (int id = 0; id < PRODUCTION_WATT.length; id++) {
+            // Every running mode can be reached from every other running mode
+            Set<Transition> transitions = new HashSet<Transition>();
+            for (int to = 0; to < PRODUCTION_WATT.length; to++) {
+                if (to != id) {
+                    transitions.add(Transition.create(to).build());
+                }
+            }
+            RunningModeBehaviour behaviour = new RunningModeBehaviour(CommodityMeasurables.electricity(Measure.valueOf(PRODUCTION_WATT[id],
+                                                                                                                       SI.WATT)),
+                                                                      Measure.valueOf(COST_EUR_PER_HOUR[id],
+                                                                                      NonSI.EUR_PER_HOUR));
+            runningModes.add(new RunningMode<RunningModeBehaviour>(id, "mode" + id, behaviour, transitions));
+        }
+        deliver(new UnconstrainedSystemDescription(resourceId, now, now, runningModes));
+
+        context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Date date = context.currentTime();
+                deliver(new UnconstrainedStateUpdate(resourceId,
+                                                     date,
+                                                     date,
+                                                     runningModeId,
+                                                     Collections.<TimerUpdate> emptySet()));
+            }
+        }, initialDelay(updateIntervalMs), millis(updateIntervalMs));
+    }
+
+    @Override
+    protected void allocationReceived(Allocation allocation) {
+        if (allocation instanceof UnconstrainedAllocation) {
+            for (RunningModeSelector selector : ((UnconstrainedAllocation) allocation).getRunningModeSelectors()) {
+                runningModeId = selector.getRunningModeId();
+            }
+        }
+    }
+}
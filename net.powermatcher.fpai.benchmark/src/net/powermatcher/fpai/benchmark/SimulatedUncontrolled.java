@@ -0,0 +1,74 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Date;
+import java.util.Random;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.agents.UncontrolledAgent;
+
+import org.flexiblepower.efi.uncontrolled.UncontrolledMeasurement;
+import org.flexiblepower.efi.uncontrolled.UncontrolledRegistration;
+import org.flexiblepower.ral.messages.Allocation;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.ConstraintListMap;
+
+/**
+ * A household base load, or a PV panel that produces around noon. Every update reports a noisy measurement.
+ */
+public class SimulatedUncontrolled extends SimulatedResource {
+
+    private static final long ONE_DAY_MS = 24 * 60 * 60 * 1000;
+
+    private final boolean pvPanel;
+
+    public SimulatedUncontrolled(String resourceId, VirtualTimeContext context, Random random, boolean pvPanel) {
+        super(resourceId, context, random);
+        this.pvPanel = pvPanel;
+    }
+
+    @Override
+    protected FpaiAgent newAgent(String agentId, String desiredParentId) {
+        return new UncontrolledAgent(this, agentId, desiredParentId);
+    }
+
+    @Override
+    public void start(long updateIntervalMs) {
+        deliver(new UncontrolledRegistration(resourceId,
+                                             context.currentTime(),
+                                             Measure.zero(SI.SECOND),
+                                             CommoditySet.onlyElectricity,
+                                             ConstraintListMap.EMPTY));
+
+        context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Date date = context.currentTime();
+                deliver(new UncontrolledMeasurement(resourceId,
+                                                    date,
+                                                    date,
+                                                    CommodityMeasurables.electricity(Measure.valueOf(demandWatt(date.getTime()),
+                                                                                                     SI.WATT))));
+            }
+        }, initialDelay(updateIntervalMs), millis(updateIntervalMs));
+    }
+
+    private double demandWatt(long time) {
+        if (pvPanel) {
+            // Half a sine wave between 6:00 and 18:00 UTC
+            double dayFraction = (time % ONE_DAY_MS) / (double) ONE_DAY_MS;
+            double sun = Math.max(0, Math.sin((dayFraction - 0.25) * 2 * Math.PI));
+            return -3000 * sun * (0.8 + 0.2 * random.nextDouble());
+        } else {
+            return 200 + 400 * random.nextDouble();
+        }
+    }
+
+    @Override
+    protected void allocationReceived(Allocation allocation) {
+        // Uncontrolled resources do not act on allocations
+    }
+}
@@ -0,0 +1,217 @@
+package net.powermatcher.fpai.benchmark;
+
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A discrete-event {@link FlexiblePowerContext}. Time only moves when {@link #advanceTo(long)} is called, which runs
+ * every scheduled task that is due, in the order of their scheduled time, on the calling thread. This lets a harness
+ * simulate hours of operation of many agents in seconds.
+ *
+ * This context is not thread-safe, it should only be used from the thread that advances the time.
+ */
+public class VirtualTimeContext implements FlexiblePowerContext {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualTimeContext.class);
+
+    private final class VirtualTask<V> implements ScheduledFuture<V> {
+        private final Callable<V> callable;
+        private final long periodMs;
+        private final long sequence;
+        private long time;
+        private boolean cancelled = false;
+        private boolean done = false;
+        private V result;
+
+        VirtualTask(Callable<V> callable, long time, long periodMs) {
+            this.callable = callable;
+            this.time = time;
+            this.periodMs = periodMs;
+            sequence = nextSequence++;
+        }
+
+        void run() {
+            try {
+                result = callable.call();
+            } catch (Exception e) {
+                logger.error("Error while running scheduled task: " + e.getMessage(), e);
+            }
+            done = periodMs <= 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o instanceof VirtualTask) {
+                VirtualTask<?> other = (VirtualTask<?>) o;
+                if (time != other.time) {
+                    return time < other.time ? -1 : 1;
+                }
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+            long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done || cancelled) {
+                return false;
+            }
+            // The task is skipped when it is due, which is cheaper than removing it from the queue
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public V get() {
+            if (!done) {
+                throw new IllegalStateException("The task has not run yet, it can not be waited for in virtual time");
+            }
+            return result;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) {
+            return get();
+        }
+    }
+
+    private final PriorityQueue<VirtualTask<?>> queue = new PriorityQueue<VirtualTask<?>>();
+    private long now;
+    private long nextSequence = 0;
+    private long executedTasks = 0;
+
+    public VirtualTimeContext(long startTime) {
+        now = startTime;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(now);
+    }
+
+    /**
+     * Runs all tasks that are due at or before the given time and moves the clock to that time.
+     *
+     * @param time
+     *            The new current time in milliseconds since the epoch
+     * @return The number of tasks that have been run
+     */
+    public int advanceTo(long time) {
+        int executed = 0;
+        while (!queue.isEmpty() && queue.peek().time <= time) {
+            VirtualTask<?> task = queue.poll();
+            if (task.cancelled) {
+                continue;
+            }
+            now = Math.max(now, task.time);
+            task.run();
+            executed++;
+            if (task.periodMs > 0 && !task.cancelled) {
+                task.time += task.periodMs;
+                queue.add(task);
+            }
+        }
+        now = Math.max(now, time);
+        executedTasks += executed;
+        return executed;
+    }
+
+    /**
+     * @return The number of scheduled tasks, including cancelled tasks that have not been skipped yet
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getExecutedTasks() {
+        return executedTasks;
+    }
+
+    private <V> VirtualTask<V> add(Callable<V> callable, long delayMs, long periodMs) {
+        VirtualTask<V> task = new VirtualTask<V>(callable, now + Math.max(0, delayMs), periodMs);
+        queue.add(task);
+        return task;
+    }
+
+    private static long toMillis(Measurable<Duration> duration) {
+        return duration.longValue(SI.MILLI(SI.SECOND));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return add(callable, toMillis(delay), 0);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return add(Executors.callable(command), toMillis(delay), 0);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        long periodMs = toMillis(period);
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        return add(Executors.callable(command), toMillis(initialDelay), periodMs);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        // Tasks take no virtual time, so a fixed delay is the same as a fixed rate
+        return scheduleAtFixedRate(command, initialDelay, delay);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return add(task, 0, 0);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return add(Executors.callable(task), 0, 0);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return add(Executors.callable(task, result), 0, 0);
+    }
+}
@@ -1,22 +1,54 @@
-$(window).load(function() {
-	w = new widget("update", 2000, function(data) {
-		$(".error").hide();
-		for(var agentId in data) {
-			var agentName = agentId.replace(/\./g, '_');
-			var div = $("#bid-"+agentName);
-			if(div.size() == 0) {
-				$("#bids").append('<div id="bid-'+agentName+'"><p>'+agentName+'</p><div style="width: 400px; height: 125px;"></div></div>');
-				var div = $("#bid-"+agentName);
-			}
-			$.plot("#bid-"+agentName+" div", [ data[agentId].coordinates, 
-			                                 [[data[agentId].price,-data[agentId].maxDemand],
-			                                  [data[agentId].price,data[agentId].maxDemand]
-			                                 ]]);
-		}
+var version = -1;
+
+function plot(agentId, agent) {
+	var agentName = agentId.replace(/\./g, '_');
+	var div = $("#bid-"+agentName);
+	if(div.size() == 0) {
+		$("#bids").append('<div id="bid-'+agentName+'"><p>'+agentName+'</p><div style="width: 400px; height: 125px;"></div></div>');
+	}
+	$.plot("#bid-"+agentName+" div", [ agent.coordinates,
+	                                 [[agent.price,-agent.maxDemand],
+	                                  [agent.price,agent.maxDemand]
+	                                 ]]);
+}
+
+function handleUpdate(data) {
+	$(".error").hide();
+	if(data.full) {
+		$("#bids").empty();
+	}
+	for(var i = 0; i < data.removed.length; i++) {
+		$("#bid-"+data.removed[i].replace(/\./g, '_')).remove();
+	}
+	for(var agentId in data.agents) {
+		plot(agentId, data.agents[agentId]);
+	}
+	version = data.version;
+}
+
+var polling = false;
+
+function poll() {
+	if(polling) {
+		return;
+	}
+	polling = true;
+	// Only fetch the agents that changed since the previous poll
+	w.call("updateSince", {version: version}, function(data) {
+		polling = false;
+		handleUpdate(data);
 	});
-	
+}
+
+$(window).load(function() {
+	// The periodic full update makes sure the dashboard recovers from missed deltas
+	w = new widget("update", 60000, handleUpdate);
+
 	w.error = function(msg) {
 		$(".error").show();
 		$(".error").text(msg);
+		polling = false;
 	}
-});
\ No newline at end of file
+
+	setInterval(poll, 2000);
+});
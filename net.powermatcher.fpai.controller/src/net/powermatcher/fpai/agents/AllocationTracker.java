@@ -0,0 +1,118 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+/**
+ * Keeps track of the running mode that has been allocated to each actuator, so an agent can skip allocations that
+ * would not change anything. The same allocation is still sent again when the re-assert period has passed, or when the
+ * resource manager reports a different running mode than the one that was allocated.
+ *
+ * Suppression is disabled until a positive re-assert period is set; in that case every allocation is sent.
+ */
+public class AllocationTracker {
+
+    /** Time after which an unchanged allocation is sent again. 0 means suppression is disabled. */
+    private long reassertPeriodMs = 0;
+    /** Allocated running mode for every actuator */
+    private final Map<Integer, Integer> allocatedRunningModes = new HashMap<Integer, Integer>();
+    private long lastSentMs;
+
+    private long sentAllocations, suppressedAllocations;
+
+    /**
+     * @param reassertPeriodMs
+     *            The time in milliseconds after which an unchanged allocation is sent again, or 0 to send every
+     *            allocation
+     */
+    public synchronized void setReassertPeriodMs(long reassertPeriodMs) {
+        if (reassertPeriodMs < 0) {
+            throw new IllegalArgumentException("The re-assert period may not be negative");
+        }
+        this.reassertPeriodMs = reassertPeriodMs;
+        allocatedRunningModes.clear();
+    }
+
+    public synchronized long getReassertPeriodMs() {
+        return reassertPeriodMs;
+    }
+
+    /**
+     * Decides whether an allocation should be sent, and remembers it when it should.
+     *
+     * @param runningModes
+     *            The running mode of every actuator in the allocation
+     * @param nowMs
+     *            The current time in milliseconds
+     * @return true when the allocation should be sent, false when it would not change the allocation in force
+     */
+    synchronized boolean shouldSend(BufferBidElement[] runningModes, long nowMs) {
+        if (reassertPeriodMs > 0 && nowMs - lastSentMs < reassertPeriodMs && isAllocated(runningModes)) {
+            suppressedAllocations++;
+            return false;
+        }
+
+        allocatedRunningModes.clear();
+        for (BufferBidElement runningMode : runningModes) {
+            allocatedRunningModes.put(runningMode.getActuatorId(), runningMode.getRunningModeId());
+        }
+        lastSentMs = nowMs;
+        sentAllocations++;
+        return true;
+    }
+
+    private boolean isAllocated(BufferBidElement[] runningModes) {
+        if (allocatedRunningModes.isEmpty() || allocatedRunningModes.size() != runningModes.length) {
+            return false;
+        }
+        for (BufferBidElement runningMode : runningModes) {
+            Integer allocated = allocatedRunningModes.get(runningMode.getActuatorId());
+            if (allocated == null || allocated.intValue() != runningMode.getRunningModeId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes the running mode that the resource manager reports for an actuator. When it differs from the allocated
+     * running mode, the next allocation for that actuator is sent again.
+     *
+     * @param actuatorId
+     *            The actuator
+     * @param runningModeId
+     *            The running mode the actuator is currently in
+     */
+    public synchronized void runningModeObserved(int actuatorId, int runningModeId) {
+        Integer allocated = allocatedRunningModes.get(actuatorId);
+        if (allocated != null && allocated.intValue() != runningModeId) {
+            allocatedRunningModes.remove(actuatorId);
+        }
+    }
+
+    /**
+     * Forgets the allocation in force, e.g. because the resource manager rejected it or sent a new system description.
+     * The next allocation is always sent.
+     */
+    public synchronized void reset() {
+        allocatedRunningModes.clear();
+    }
+
+    public synchronized long getSentAllocations() {
+        return sentAllocations;
+    }
+
+    public synchronized long getSuppressedAllocations() {
+        return suppressedAllocations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AllocationTracker [sentAllocations=" + sentAllocations
+               + ", suppressedAllocations="
+               + suppressedAllocations
+               + "]";
+    }
+}
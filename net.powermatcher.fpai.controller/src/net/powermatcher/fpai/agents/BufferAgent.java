@@ -2,9 +2,10 @@ package net.powermatcher.fpai.agents;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.measure.quantity.Quantity;
 import javax.measure.unit.SI;
@@ -12,6 +13,7 @@ import javax.measure.unit.SI;
 import org.flexiblepower.api.efi.bufferhelper.Buffer;
 import org.flexiblepower.api.efi.bufferhelper.BufferActuator;
 import org.flexiblepower.efi.buffer.ActuatorAllocation;
+import org.flexiblepower.efi.buffer.ActuatorUpdate;
 import org.flexiblepower.efi.buffer.BufferAllocation;
 import org.flexiblepower.efi.buffer.BufferRegistration;
 import org.flexiblepower.efi.buffer.BufferStateUpdate;
@@ -31,7 +33,6 @@ import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
-import net.powermatcher.api.data.PricePoint;
 import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
 import net.powermatcher.fpai.controller.AgentMessageSender;
 
@@ -47,9 +48,18 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
 
     private BufferRegistration<Q> registration;
     private Buffer<Q> bufferHelper;
-    private BufferBid lastBid;
+    private final BufferBidShaper bidShaper = new BufferBidShaper();
+    /** Optional cache of previously constructed bids. Null means caching is disabled. */
+    private BufferBidCache bidCache;
+    private final ReachableRunningModeCache<FillLevelFunction<RunningModeBehaviour>> reachableRunningModes = new ReachableRunningModeCache<FillLevelFunction<RunningModeBehaviour>>();
+    private final AllocationTracker allocationTracker = new AllocationTracker();
+    private CombinedBufferBid lastBid;
     private BufferTargetProfileUpdate<Q> lastBufferTargetProfile;
-    private BufferSystemDescription lastBufferSystemDescription;
+    private volatile BufferSystemDescription lastBufferSystemDescription;
+    /** Derived from the last system description, null when it has to be recalculated */
+    private BufferFillingRates fillingRates;
+    /** Derived from the last target profile and the filling rates, null when it has to be recalculated */
+    private TargetProfileHelper<Q> targetProfileHelper;
 
     /**
      * Constructs an BufferAgent based on the given messageSender.
@@ -65,9 +75,34 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
         super(messageSender, agentId, desiredParentId);
     }
 
+    /**
+     * Enables or disables the cache of previously constructed bids. When the fill level and priority only changed
+     * within the given quantization steps and the same running modes are reachable, the cached bid is reused.
+     *
+     * @param bidCache
+     *            The cache that should be used, or <code>null</code> to disable caching
+     */
+    public synchronized void setBidCache(BufferBidCache bidCache) {
+        this.bidCache = bidCache;
+    }
+
+    /**
+     * @return The cache that is used for bids, or <code>null</code> when caching is disabled
+     */
+    public BufferBidCache getBidCache() {
+        return bidCache;
+    }
+
+    /**
+     * @return The {@link AllocationTracker} that decides which allocations are sent to the resource manager
+     */
+    public AllocationTracker getAllocationTracker() {
+        return allocationTracker;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
-    public void handleControlSpaceRegistration(ControlSpaceRegistration message) {
+    public synchronized void handleControlSpaceRegistration(ControlSpaceRegistration message) {
         if (message instanceof BufferRegistration) {
             if (registration == null) {
                 registration = (BufferRegistration<Q>) message;
@@ -83,17 +118,32 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
 
     @SuppressWarnings("unchecked")
     @Override
-    public void handleControlSpaceUpdate(ControlSpaceUpdate message) {
+    public synchronized void handleControlSpaceUpdate(ControlSpaceUpdate message) {
         LOGGER.debug("Received update of type {}", message.getClass().getSimpleName());
         if (message instanceof BufferSystemDescription) {
             bufferHelper.processSystemDescription((BufferSystemDescription) message);
             lastBufferSystemDescription = (BufferSystemDescription) message;
+            fillingRates = null;
+            targetProfileHelper = null;
+            allocationTracker.reset();
+            reachableRunningModes.invalidate();
+            if (bidCache != null) {
+                bidCache.clear();
+            }
             // A new SystemDescription does not trigger a bid update.
         } else if (message instanceof BufferStateUpdate) {
-            bufferHelper.processStateUpdate((BufferStateUpdate<Q>) message);
+            BufferStateUpdate<Q> stateUpdate = (BufferStateUpdate<Q>) message;
+            bufferHelper.processStateUpdate(stateUpdate);
+            reachableRunningModes.invalidate();
+            for (ActuatorUpdate actuatorUpdate : stateUpdate.getCurrentRunningModes()) {
+                allocationTracker.runningModeObserved(actuatorUpdate.getActuatorId(),
+                                                      actuatorUpdate.getCurrentRunningModeId());
+                reachableRunningModes.setTimers(actuatorUpdate.getActuatorId(), actuatorUpdate.getTimerUpdates());
+            }
             doBidUpdate();
         } else if (message instanceof BufferTargetProfileUpdate) {
             lastBufferTargetProfile = (BufferTargetProfileUpdate<Q>) message;
+            targetProfileHelper = null;
             doBidUpdate();
         } else if (message instanceof BufferUsageForecast) {
             // TODO
@@ -104,13 +154,14 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
     }
 
     @Override
-    public void handleAllocationStatusUpdate(AllocationStatusUpdate message) {
+    public synchronized void handleAllocationStatusUpdate(AllocationStatusUpdate message) {
         switch (message.getStatus()) {
         case ACCEPTED:
             // No action
             break;
         case REJECTED:
-            // No action
+            // The allocation is not in force, so the next one should be sent
+            allocationTracker.reset();
             break;
         case PROCESSING:
             // No action
@@ -123,12 +174,17 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
             break;
         }
         LOGGER.info("handleAllocationStatusUpdate not yet implemented");
+        reachableRunningModes.invalidate();
         doBidUpdate();
     }
 
     @Override
-    public void handleControlSpaceRevoke(ControlSpaceRevoke message) {
+    public synchronized void handleControlSpaceRevoke(ControlSpaceRevoke message) {
         bufferHelper = new Buffer<Q>(registration); // Reset the helper
+        fillingRates = null;
+        targetProfileHelper = null;
+        allocationTracker.reset();
+        reachableRunningModes.clear();
         if (lastBufferSystemDescription != null) {
             bufferHelper.processSystemDescription(lastBufferSystemDescription);
         }
@@ -146,24 +202,59 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
                         bufferHelper.hasReceivedSystemDescription() ? "system description received"
                                                                     : "system description missing",
                         bufferHelper.hasReceivedStateUpdate() ? "state update received" : "state update missing");
-            return Bid.flatDemand(marketBasis, 0);
+            // No running mode may be allocated on a price for this bid
+            lastBid = null;
+            return SharedBids.of(marketBasis).zero();
         }
 
         double soc = bufferHelper.getCurrentFillFraction();
         double priority = calculatePriority(soc);
+        double fillLevel = bufferHelper.getCurrentFillLevel().doubleValue(registration.getFillLevelUnit());
+        Date now = now();
 
-        // TODO for now we only support one buffer actuator.
-        BufferActuator<Q> actuator = bufferHelper.getElectricalActuators().get(0);
+        List<BufferBid> actuatorBids = new ArrayList<BufferBid>();
+        for (BufferActuator<Q> actuator : bufferHelper.getElectricalActuators()) {
+            BufferBid actuatorBid = createActuatorBid(marketBasis, actuator, fillLevel, priority, now);
+            if (actuatorBid != null) {
+                actuatorBids.add(actuatorBid);
+            }
+        }
+        // The reachable running modes change when the next timer finishes
+        scheduleBidUpdateAt(reachableRunningModes.nextTimerExpiry(now.getTime() + 1));
 
-        Date now = now();
-        Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = actuator.getReachableRunningModes(now);
+        if (actuatorBids.isEmpty()) {
+            LOGGER.debug("No actuator has a reachable running mode, sending must off bid.");
+            lastBid = null;
+            return SharedBids.of(marketBasis).mustOff();
+        }
+
+        lastBid = new CombinedBufferBid(marketBasis, actuatorBids);
+        LOGGER.info("Sending bid");
+        return lastBid.toBid();
+    }
+
+    /**
+     * Creates the bid of a single actuator, which is later combined with the bids of the other actuators.
+     *
+     * @return The {@link BufferBid} of the actuator, or <code>null</code> when it has no reachable running mode
+     */
+    private BufferBid createActuatorBid(MarketBasis marketBasis,
+                                        BufferActuator<Q> actuator,
+                                        double fillLevel,
+                                        double priority,
+                                        Date now) {
+        Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = reachableRunningModes.get(actuator.getActuatorId(),
+                                                                                                                  now.getTime());
+        if (runningModes == null) {
+            runningModes = new ArrayList<RunningMode<FillLevelFunction<RunningModeBehaviour>>>(actuator.getReachableRunningModes(now));
+            reachableRunningModes.put(actuator.getActuatorId(), runningModes);
+        }
 
         if (runningModes.isEmpty()) {
-            LOGGER.error("No reachable running mode found, sending must off bid.");
-            return Bid.create(marketBasis).add(new PricePoint(marketBasis, 0, 0)).build();
+            LOGGER.error("No reachable running mode found for actuator {}", actuator.getActuatorId());
+            return null;
         }
 
-        double fillLevel = bufferHelper.getCurrentFillLevel().doubleValue(registration.getFillLevelUnit());
         final double minimum = actuator.getMinimumFillLevel();
         if (fillLevel < minimum) {
             LOGGER.info("Fill level is below minimum of this actuator's running modes. Assuming minimum fill level.");
@@ -176,6 +267,21 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
             fillLevel = maximum;
         }
 
+        BufferBidCache.Key cacheKey = null;
+        if (bidCache != null) {
+            int[] runningModeIds = new int[runningModes.size()];
+            int ix = 0;
+            for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : runningModes) {
+                runningModeIds[ix++] = rm.getId();
+            }
+            cacheKey = bidCache.key(marketBasis, actuator.getActuatorId(), runningModeIds, fillLevel, priority);
+            BufferBid cachedBid = bidCache.get(cacheKey);
+            if (cachedBid != null) {
+                LOGGER.debug("Using cached bid for actuator {}", actuator.getActuatorId());
+                return cachedBid;
+            }
+        }
+
         List<BufferBidElement> elements = new ArrayList<BufferBidElement>();
         for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : runningModes) {
             try {
@@ -197,23 +303,21 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
         }
 
         if (elements.isEmpty()) {
-            LOGGER.debug("Due to fill level no reachable running mode was found, sending must off bid.");
-            return Bid.create(marketBasis).add(new PricePoint(marketBasis, 0, 0)).build();
+            LOGGER.debug("Due to fill level no reachable running mode was found for actuator {}",
+                         actuator.getActuatorId());
+            return null;
         }
 
-        // TODO: Check for concurrency problems with lastBid...
-        lastBid = new BufferBid(marketBasis, elements, priority);
-        LOGGER.info("Sending bid");
-        return lastBid.toBid();
+        BufferBid actuatorBid = new BufferBid(marketBasis, elements, priority, bidShaper);
+        if (cacheKey != null) {
+            bidCache.put(cacheKey, actuatorBid);
+        }
+        return actuatorBid;
     }
 
     private double calculatePriority(double soc) {
         if (lastBufferTargetProfile != null) {
-            TargetProfileHelper<Q> target = new TargetProfileHelper<Q>(lastBufferTargetProfile,
-                                                                       lastBufferTargetProfile.getTargetProfile(),
-                                                                       registration,
-                                                                       lastBufferSystemDescription,
-                                                                       bufferHelper);
+            TargetProfileHelper<Q> target = getTargetProfileHelper();
             Date now = now();
             if (target.targetIsValid(now)) {
                 return target.calculatePriority(now);
@@ -225,20 +329,47 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
         return 1 - 2 * soc;
     }
 
+    private TargetProfileHelper<Q> getTargetProfileHelper() {
+        if (targetProfileHelper == null) {
+            if (fillingRates == null) {
+                fillingRates = new BufferFillingRates(lastBufferSystemDescription, bufferHelper);
+            }
+            targetProfileHelper = new TargetProfileHelper<Q>(lastBufferTargetProfile,
+                                                             registration,
+                                                             fillingRates,
+                                                             bufferHelper);
+        }
+        return targetProfileHelper;
+    }
+
+    @Override
+    protected Object getAllocationTable() {
+        return lastBid;
+    }
+
     @Override
-    protected void handlePriceUpdate(Price newPrice) {
-        if (lastBid != null && lastBufferSystemDescription != null) {
-            BufferBidElement runningMode = lastBid.runningModeForPrice(newPrice);
+    protected void handlePriceUpdate(Price newPrice, BidState bidState) {
+        CombinedBufferBid bid = (CombinedBufferBid) bidState.getAllocationTable();
+        BufferSystemDescription systemDescription = lastBufferSystemDescription;
+        if (bid != null && systemDescription != null) {
+            BufferBidElement[] runningModes = bid.runningModesForPrice(newPrice);
+            if (!allocationTracker.shouldSend(runningModes, context.currentTimeMillis())) {
+                LOGGER.debug("Running modes are already allocated, not sending allocation");
+                return;
+            }
             Date now = now();
-            ActuatorAllocation actuatorAllocation = new ActuatorAllocation(runningMode.getActuatorId(),
-                                                                           runningMode.getRunningModeId(),
-                                                                           now);
-            BufferAllocation allocation = new BufferAllocation(lastBufferSystemDescription,
+            Set<ActuatorAllocation> actuatorAllocations = new HashSet<ActuatorAllocation>();
+            for (BufferBidElement runningMode : runningModes) {
+                actuatorAllocations.add(new ActuatorAllocation(runningMode.getActuatorId(),
+                                                               runningMode.getRunningModeId(),
+                                                               now));
+            }
+            BufferAllocation allocation = new BufferAllocation(systemDescription,
                                                                now,
                                                                false,
-                                                               Collections.singleton(actuatorAllocation));
+                                                               actuatorAllocations);
             LOGGER.info("Sending allocation " + allocation);
-            messageSender.sendMessage(allocation);
+            sendAllocation(allocation);
         } else {
             LOGGER.info("Received price update, but don't have enough info to construct allocation");
         }
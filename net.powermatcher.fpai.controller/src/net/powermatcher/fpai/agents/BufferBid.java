@@ -1,8 +1,8 @@
 package net.powermatcher.fpai.agents;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.TreeSet;
 
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
@@ -95,10 +95,11 @@ public class BufferBid {
         }
     }
 
-    private final TreeSet<BufferBidElement> elements;
     private final MarketBasis marketBasis;
-    private BufferBidElement[] bufferBid;
     private final double priority;
+    private final BufferBidElement[] elements;
+    private final int[] elementForPriceIndex;
+    private Bid bid;
 
     /**
      * Construct a BufferBid with a single {@link BufferBidElement}
@@ -131,25 +132,47 @@ public class BufferBid {
      *            with minimal consumption (or maximal production)
      */
     public BufferBid(MarketBasis marketBasis, Collection<BufferBidElement> elements, double priority) {
+        this(marketBasis, elements, priority, new BufferBidShaper());
+    }
+
+    /**
+     * Construct a BufferBid with a set of {@link BufferBidElement}s, using the scratch buffers of the given
+     * {@link BufferBidShaper}.
+     *
+     * @param marketBasis
+     *            The current {@link MarketBasis}
+     * @param elements
+     *            The {@link BufferBidElement} objects representing the current runningmodes
+     * @param priority
+     *            A double indicating the eagerness to consume or produce. A value >= 1 will result in a bid with
+     *            maximum consumption (or minimal production), a value of 0 will result in a bid with maximum
+     *            flexibility (the device doesn't care which runningmode is selected, a value <=-1 will result in a bid
+     *            with minimal consumption (or maximal production)
+     * @param shaper
+     *            The {@link BufferBidShaper} of the agent that constructs this bid
+     */
+    public BufferBid(MarketBasis marketBasis,
+                     Collection<BufferBidElement> elements,
+                     double priority,
+                     BufferBidShaper shaper) {
         if (elements == null || elements.isEmpty()) {
             throw new IllegalStateException("Cannot construct an empty BufferBid");
         }
-        this.elements = new TreeSet<BufferBidElement>();
-        this.elements.addAll(elements);
         this.priority = Math.pow(priority, 3); // TODO is this a good value?
         this.marketBasis = marketBasis;
-        constructBid();
+        int size = shaper.sort(elements);
+        this.elements = shaper.copySortedElements();
+        elementForPriceIndex = constructBid(shaper, size);
     }
 
-    private void constructBid() {
-        Bid rawBid;
-        double maxDemand = elements.first().demandWatt;
-        double minDemand = elements.last().demandWatt;
+    private int[] constructBid(BufferBidShaper shaper, int size) {
+        double maxDemand = shaper.getMaximumDemand();
+        double minDemand = shaper.getMinimumDemand();
 
         if (priority >= 1.0) {
-            rawBid = Bid.flatDemand(marketBasis, maxDemand);
+            return shaper.shapeFlat(marketBasis, 0);
         } else if (priority <= -1.0) {
-            rawBid = Bid.flatDemand(marketBasis, minDemand);
+            return shaper.shapeFlat(marketBasis, size - 1);
         } else { // priority > -1 && priority < 1
             // Define the flexible area
             double minPriceFraction, maxPriceFraction;
@@ -163,31 +186,14 @@ public class BufferBid {
                 maxPriceFraction = priority + 1;
             }
             // First make the ideal, continuous bid, that does not care about discrete running modes.
-            rawBid = Bid.create(marketBasis)
-                        .add(priceOf(minPriceFraction), maxDemand)
-                        .add(priceOf(maxPriceFraction), minDemand)
-                        .build();
-        }
-
-        // Now construct actual bid
-        double[] rawDemand = rawBid.getDemand();
-        bufferBid = new BufferBidElement[rawDemand.length];
-        for (int i = 0; i < rawDemand.length; i++) {
-            bufferBid[i] = getClosest(rawDemand[i]);
-        }
-    }
+            Bid rawBid = Bid.create(marketBasis)
+                            .add(priceOf(minPriceFraction), maxDemand)
+                            .add(priceOf(maxPriceFraction), minDemand)
+                            .build();
 
-    private BufferBidElement getClosest(double demandWatt) {
-        BufferBidElement best = null;
-        double bestDistance = Double.MAX_VALUE;
-        for (BufferBidElement e : elements) {
-            double distance = Math.abs(demandWatt - e.demandWatt);
-            if (best == null || distance < bestDistance) {
-                best = e;
-                bestDistance = distance;
-            }
+            // Now map every price step onto the closest running mode
+            return shaper.shape(rawBid.getDemand());
         }
-        return best;
     }
 
     /**
@@ -203,11 +209,14 @@ public class BufferBid {
     }
 
     public Bid toBid() {
-        double[] demand = new double[bufferBid.length];
-        for (int i = 0; i < bufferBid.length; i++) {
-            demand[i] = bufferBid[i].demandWatt;
+        if (bid == null) {
+            double[] demand = new double[elementForPriceIndex.length];
+            for (int i = 0; i < elementForPriceIndex.length; i++) {
+                demand[i] = elements[elementForPriceIndex[i]].demandWatt;
+            }
+            bid = new Bid(marketBasis, demand);
         }
-        return new Bid(marketBasis, demand);
+        return bid;
     }
 
     /**
@@ -218,12 +227,21 @@ public class BufferBid {
      * @return
      */
     public BufferBidElement runningModeForPrice(Price price) {
-        return bufferBid[price.getPriceIndex()];
+        return elements[elementForPriceIndex[price.getPriceIndex()]];
+    }
+
+    /**
+     * @param priceIndex
+     *            The index of the price step
+     * @return The {@link BufferBidElement} that has been chosen for the given price step
+     */
+    BufferBidElement getElementForPriceIndex(int priceIndex) {
+        return elements[elementForPriceIndex[priceIndex]];
     }
 
     @Override
     public String toString() {
-        return "BufferBid [elements=" + elements + "]";
+        return "BufferBid [elements=" + Arrays.toString(elements) + "]";
     }
 
 }
@@ -0,0 +1,180 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.powermatcher.api.data.MarketBasis;
+
+/**
+ * A bounded, least-recently-used cache of {@link BufferBid}s. The key consists of the {@link MarketBasis}, the
+ * actuator, the set of reachable running modes and the fill level and priority, both quantized with a configurable
+ * step. Since a {@link BufferBid} caches its own {@link net.powermatcher.api.data.Bid}, a hit hands back both without
+ * evaluating any {@link org.flexiblepower.efi.util.FillLevelFunction}.
+ *
+ * Instances are not thread-safe; they are meant to be used from within the (synchronized) bid creation of a single
+ * agent.
+ */
+public class BufferBidCache {
+
+    /**
+     * Identifies a cached bid. Instances are created using {@link BufferBidCache#key}.
+     */
+    public static final class Key {
+        private final MarketBasis marketBasis;
+        private final int actuatorId;
+        private final int[] runningModeIds;
+        private final long fillLevelBucket;
+        private final long priorityBucket;
+        private final int hashCode;
+
+        private Key(MarketBasis marketBasis,
+                    int actuatorId,
+                    int[] runningModeIds,
+                    long fillLevelBucket,
+                    long priorityBucket) {
+            this.marketBasis = marketBasis;
+            this.actuatorId = actuatorId;
+            this.runningModeIds = runningModeIds;
+            this.fillLevelBucket = fillLevelBucket;
+            this.priorityBucket = priorityBucket;
+
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + marketBasis.hashCode();
+            result = prime * result + actuatorId;
+            result = prime * result + Arrays.hashCode(runningModeIds);
+            result = prime * result + (int) (fillLevelBucket ^ (fillLevelBucket >>> 32));
+            result = prime * result + (int) (priorityBucket ^ (priorityBucket >>> 32));
+            hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && actuatorId == other.actuatorId
+                   && fillLevelBucket == other.fillLevelBucket
+                   && priorityBucket == other.priorityBucket
+                   && marketBasis.equals(other.marketBasis)
+                   && Arrays.equals(runningModeIds, other.runningModeIds);
+        }
+    }
+
+    private final Map<Key, BufferBid> cache;
+    private final double fillLevelStep;
+    private final double priorityStep;
+
+    private long hits, misses;
+
+    /**
+     * @param capacity
+     *            The maximum number of bids that are kept
+     * @param fillLevelStep
+     *            The quantization step of the fill level, expressed in the fill level unit of the buffer
+     * @param priorityStep
+     *            The quantization step of the priority
+     */
+    public BufferBidCache(final int capacity, double fillLevelStep, double priorityStep) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the cache should be positive");
+        }
+        if (fillLevelStep <= 0 || priorityStep <= 0) {
+            throw new IllegalArgumentException("The quantization steps should be positive");
+        }
+        this.fillLevelStep = fillLevelStep;
+        this.priorityStep = priorityStep;
+        cache = new LinkedHashMap<Key, BufferBid>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, BufferBid> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Creates the key for a bid.
+     *
+     * @param marketBasis
+     *            The current {@link MarketBasis}
+     * @param actuatorId
+     *            The actuator that the bid is made for
+     * @param runningModeIds
+     *            The identifiers of the reachable running modes. The array will be sorted and must not be changed
+     *            afterwards.
+     * @param fillLevel
+     *            The current fill level
+     * @param priority
+     *            The priority that is used for the bid
+     * @return A key that can be used with {@link #get(Key)} and {@link #put(Key, BufferBid)}
+     */
+    public Key key(MarketBasis marketBasis, int actuatorId, int[] runningModeIds, double fillLevel, double priority) {
+        Arrays.sort(runningModeIds);
+        return new Key(marketBasis,
+                       actuatorId,
+                       runningModeIds,
+                       Math.round(fillLevel / fillLevelStep),
+                       Math.round(priority / priorityStep));
+    }
+
+    /**
+     * @param key
+     *            A key created using {@link #key(MarketBasis, int, int[], double, double)}
+     * @return The cached {@link BufferBid}, or <code>null</code> when it is not in the cache
+     */
+    public BufferBid get(Key key) {
+        BufferBid bid = cache.get(key);
+        if (bid == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return bid;
+    }
+
+    /**
+     * @param key
+     *            A key created using {@link #key(MarketBasis, int, int[], double, double)}
+     * @param bid
+     *            The {@link BufferBid} that has been constructed for this key
+     */
+    public void put(Key key, BufferBid bid) {
+        cache.put(key, bid);
+    }
+
+    /**
+     * Removes all cached bids, e.g. because a new system description changes the behaviour of the running modes.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferBidCache [size=" + cache.size() + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -0,0 +1,168 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Collection;
+
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+/**
+ * Reusable helper that maps a continuous demand curve onto a set of discrete running modes. The running modes are
+ * sorted once into primitive scratch arrays (from high to low demand), after which every price step is mapped onto the
+ * closest running mode using a binary search.
+ *
+ * An agent should keep a single instance and pass it to every {@link BufferBid} it constructs, so the scratch buffers
+ * are only reallocated when the number of running modes grows. Instances are not thread-safe.
+ */
+public class BufferBidShaper {
+
+    private BufferBidElement[] sortedElements = new BufferBidElement[0];
+    private double[] sortedDemand = new double[0];
+    private int size = 0;
+
+    /**
+     * Sorts the given elements from high to low demand into the scratch buffers. When multiple elements have exactly
+     * the same demand, only the first one is kept.
+     *
+     * @param elements
+     *            The running modes that are available
+     * @return The number of distinct elements
+     */
+    int sort(Collection<BufferBidElement> elements) {
+        ensureCapacity(elements.size());
+        size = 0;
+        for (BufferBidElement element : elements) {
+            insert(element);
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (sortedDemand.length < capacity) {
+            sortedElements = new BufferBidElement[capacity];
+            sortedDemand = new double[capacity];
+        }
+    }
+
+    private void insert(BufferBidElement element) {
+        double demand = element.getDemandWatt();
+
+        // Binary search for the insertion point in the descending array
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Double.compare(demand, sortedDemand[mid]);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                // Same demand already present; the first one wins
+                return;
+            }
+        }
+
+        int tail = size - low;
+        if (tail > 0) {
+            System.arraycopy(sortedElements, low, sortedElements, low + 1, tail);
+            System.arraycopy(sortedDemand, low, sortedDemand, low + 1, tail);
+        }
+        sortedElements[low] = element;
+        sortedDemand[low] = demand;
+        size++;
+    }
+
+    /**
+     * @return A copy of the sorted elements, from high to low demand
+     */
+    BufferBidElement[] copySortedElements() {
+        BufferBidElement[] result = new BufferBidElement[size];
+        System.arraycopy(sortedElements, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * @return The demand of the element with the highest demand
+     */
+    double getMaximumDemand() {
+        return sortedDemand[0];
+    }
+
+    /**
+     * @return The demand of the element with the lowest demand
+     */
+    double getMinimumDemand() {
+        return sortedDemand[size - 1];
+    }
+
+    /**
+     * Fills the result array with the same element index for every price step.
+     *
+     * @param marketBasis
+     *            The current {@link MarketBasis}
+     * @param elementIndex
+     *            The index in the sorted elements that should be used for every price step
+     * @return An array with an element index for every price step
+     */
+    int[] shapeFlat(MarketBasis marketBasis, int elementIndex) {
+        int[] result = new int[marketBasis.getPriceSteps()];
+        if (elementIndex != 0) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = elementIndex;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps every value of the continuous demand curve onto the index of the closest sorted element.
+     *
+     * @param rawDemand
+     *            The ideal, continuous demand for every price step
+     * @return An array with an element index for every price step
+     */
+    int[] shape(double[] rawDemand) {
+        int[] result = new int[rawDemand.length];
+        for (int i = 0; i < rawDemand.length; i++) {
+            result[i] = closest(rawDemand[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the sorted element closest to the given demand. When two elements are equally close, the
+     * element with the highest demand is chosen.
+     *
+     * @param demandWatt
+     *            The demand in Watt
+     * @return The index in the sorted elements
+     */
+    int closest(double demandWatt) {
+        // Find the first element that has a lower demand
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedDemand[mid] < demandWatt) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        if (low == 0) {
+            return 0;
+        } else if (low < size
+                   && Math.abs(demandWatt - sortedDemand[low]) < Math.abs(demandWatt - sortedDemand[low - 1])) {
+            return low;
+        }
+
+        // Prefer the element with the highest demand when distances are exactly equal
+        int best = low - 1;
+        double bestDistance = Math.abs(demandWatt - sortedDemand[best]);
+        while (best > 0 && Math.abs(demandWatt - sortedDemand[best - 1]) <= bestDistance) {
+            best--;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,116 @@
+package net.powermatcher.fpai.agents;
+
+import javax.measure.quantity.Quantity;
+
+import org.flexiblepower.api.efi.bufferhelper.Buffer;
+import org.flexiblepower.efi.buffer.ActuatorBehaviour;
+import org.flexiblepower.efi.buffer.BufferSystemDescription;
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.buffer.RunningModeBehaviour;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.efi.util.FillLevelFunction.RangeElement;
+import org.flexiblepower.efi.util.RunningMode;
+
+/**
+ * The values that the {@link TargetProfileHelper} derives from a {@link BufferSystemDescription}. They only change when
+ * a new system description arrives, so an agent calculates them once and reuses them for every bid.
+ */
+public class BufferFillingRates {
+
+    private final double averageLeakage;
+    private final double fastestChargingRate;
+    private final double fastestDischargingRate;
+    private final double minimumFillLevel;
+    private final double maximumFillLevel;
+
+    /**
+     * @param bufferSystemDescription
+     *            The last received {@link BufferSystemDescription}
+     * @param bufferHelper
+     *            The {@link Buffer} that has processed the system description
+     */
+    public <Q extends Quantity> BufferFillingRates(BufferSystemDescription bufferSystemDescription,
+                                                   Buffer<Q> bufferHelper) {
+        averageLeakage = averageLeakage(bufferSystemDescription.getBufferLeakage());
+
+        double charging = averageLeakage;
+        double discharging = averageLeakage;
+        for (ActuatorBehaviour actuator : bufferSystemDescription.getActuators()) {
+            double fastestCharging = -Double.MAX_VALUE;
+            double fastestDischarging = Double.MAX_VALUE;
+            for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : actuator.getRunningModes()) {
+                double rate = averageFillingRate(rm);
+                fastestCharging = Math.max(fastestCharging, rate);
+                fastestDischarging = Math.min(fastestDischarging, rate);
+            }
+            charging += fastestCharging;
+            discharging += fastestDischarging;
+        }
+        fastestChargingRate = charging;
+        fastestDischargingRate = discharging;
+
+        minimumFillLevel = bufferHelper.getMinimumFillLevel();
+        maximumFillLevel = bufferHelper.getMaximumFillLevel();
+    }
+
+    private static double averageFillingRate(RunningMode<FillLevelFunction<RunningModeBehaviour>> rm) {
+        double totalRange = 0;
+        double sum = 0;
+        for (RangeElement<RunningModeBehaviour> re : rm.getValue()) {
+            double range = re.getUpperBound() - re.getLowerBound();
+            totalRange += range;
+            sum += re.getValue().getFillingRate() * range;
+        }
+        return sum / totalRange;
+    }
+
+    private static double averageLeakage(FillLevelFunction<LeakageRate> flf) {
+        double totalRange = 0;
+        double sum = 0;
+        for (RangeElement<LeakageRate> re : flf) {
+            double range = re.getUpperBound() - re.getLowerBound();
+            totalRange += range;
+            sum += re.getValue().getLeakageRate() * range;
+        }
+        return sum / totalRange;
+    }
+
+    /**
+     * @return The leakage rate, averaged over the fill level range
+     */
+    public double getAverageLeakage() {
+        return averageLeakage;
+    }
+
+    /**
+     * @return The net filling rate when every actuator is in its fastest charging running mode
+     */
+    public double getFastestChargingRate() {
+        return fastestChargingRate;
+    }
+
+    /**
+     * @return The net filling rate when every actuator is in its fastest discharging running mode
+     */
+    public double getFastestDischargingRate() {
+        return fastestDischargingRate;
+    }
+
+    public double getMinimumFillLevel() {
+        return minimumFillLevel;
+    }
+
+    public double getMaximumFillLevel() {
+        return maximumFillLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferFillingRates [fastestChargingRate=" + fastestChargingRate
+               + ", fastestDischargingRate="
+               + fastestDischargingRate
+               + ", averageLeakage="
+               + averageLeakage
+               + "]";
+    }
+}
@@ -0,0 +1,89 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+/**
+ * Combines the {@link BufferBid}s of the actuators of one buffer into a single bid. Every {@link BufferBid} is a
+ * descending step curve over the price steps, so the combined bid is simply their sum per price step and is descending
+ * as well. This avoids enumerating all combinations of running modes of the actuators.
+ *
+ * For every price step the running mode of each actuator is remembered. Consecutive price steps with the same running
+ * modes share the same array, so the table only holds as many distinct arrays as there are steps in the combined bid.
+ */
+public class CombinedBufferBid {
+
+    private final MarketBasis marketBasis;
+    private final BufferBid[] actuatorBids;
+    private final BufferBidElement[][] elementsForPriceIndex;
+    private final double[] demand;
+    private Bid bid;
+
+    /**
+     * @param marketBasis
+     *            The current {@link MarketBasis}
+     * @param actuatorBids
+     *            The {@link BufferBid} of each actuator, constructed with the same {@link MarketBasis}
+     */
+    public CombinedBufferBid(MarketBasis marketBasis, List<BufferBid> actuatorBids) {
+        if (actuatorBids == null || actuatorBids.isEmpty()) {
+            throw new IllegalStateException("Cannot construct an empty CombinedBufferBid");
+        }
+        this.marketBasis = marketBasis;
+        this.actuatorBids = actuatorBids.toArray(new BufferBid[actuatorBids.size()]);
+
+        int priceSteps = marketBasis.getPriceSteps();
+        demand = new double[priceSteps];
+        elementsForPriceIndex = new BufferBidElement[priceSteps][];
+        BufferBidElement[] previous = null;
+        for (int priceIndex = 0; priceIndex < priceSteps; priceIndex++) {
+            boolean same = true;
+            double sum = 0;
+            for (int a = 0; a < this.actuatorBids.length; a++) {
+                BufferBidElement element = this.actuatorBids[a].getElementForPriceIndex(priceIndex);
+                sum += element.getDemandWatt();
+                if (previous == null || previous[a] != element) {
+                    same = false;
+                }
+            }
+            demand[priceIndex] = sum;
+
+            if (!same) {
+                previous = new BufferBidElement[this.actuatorBids.length];
+                for (int a = 0; a < this.actuatorBids.length; a++) {
+                    previous[a] = this.actuatorBids[a].getElementForPriceIndex(priceIndex);
+                }
+            }
+            elementsForPriceIndex[priceIndex] = previous;
+        }
+    }
+
+    public Bid toBid() {
+        if (bid == null) {
+            bid = new Bid(marketBasis, demand.clone());
+        }
+        return bid;
+    }
+
+    /**
+     * Given a price, returns for every actuator the {@link BufferBidElement} that expresses which RunningMode it should
+     * go into. The returned array is shared and must not be changed.
+     *
+     * @param price
+     *            The price that has been received
+     * @return The {@link BufferBidElement} of every actuator
+     */
+    public BufferBidElement[] runningModesForPrice(Price price) {
+        return elementsForPriceIndex[price.getPriceIndex()];
+    }
+
+    @Override
+    public String toString() {
+        return "CombinedBufferBid [actuatorBids=" + Arrays.toString(actuatorBids) + "]";
+    }
+}
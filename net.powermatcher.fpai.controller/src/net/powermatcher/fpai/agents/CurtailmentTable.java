@@ -0,0 +1,125 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Arrays;
+
+/**
+ * The curtailment levels of an uncontrolled device, mapped on the price steps of a market basis. Production is
+ * curtailed at low prices and consumption at high prices; the further the price is from the curtailment price, the
+ * stronger the curtailment. The table is calculated once, so finding the level for a price takes constant time.
+ *
+ * The levels are limits on the absolute demand of the device in Watt. Level 0 is the strongest curtailment.
+ */
+public class CurtailmentTable {
+
+    /** Level for price indices at which the device is not curtailed */
+    public static final int NO_CURTAILMENT = -1;
+
+    private final double[] limitsWatt;
+    private final int[] levelForPriceIndex;
+    private final boolean production;
+
+    /**
+     * @param limitsWatt
+     *            The limits of the absolute demand in Watt. Does not have to be sorted and may contain duplicates.
+     * @param priceSteps
+     *            The number of price steps of the market basis
+     * @param curtailmentPriceFraction
+     *            The fraction (between 0 and 1) on the price scale beyond which the device is curtailed
+     * @param production
+     *            <code>true</code> to curtail below the curtailment price, <code>false</code> to curtail above it
+     */
+    public CurtailmentTable(double[] limitsWatt, int priceSteps, double curtailmentPriceFraction, boolean production) {
+        this.limitsWatt = distinctAscending(limitsWatt);
+        this.production = production;
+        levelForPriceIndex = new int[priceSteps];
+        Arrays.fill(levelForPriceIndex, NO_CURTAILMENT);
+
+        int levels = this.limitsWatt.length;
+        if (levels == 0 || priceSteps == 0) {
+            return;
+        }
+        double boundary = curtailmentPriceFraction * (priceSteps - 1);
+        if (production) {
+            // All price indices below the curtailment price
+            int curtailed = (int) Math.min(Math.max(Math.ceil(boundary), 0), priceSteps);
+            for (int i = 0; i < curtailed; i++) {
+                levelForPriceIndex[i] = (int) ((long) i * levels / curtailed);
+            }
+        } else {
+            // All price indices above the curtailment price
+            int first = (int) Math.min(Math.max(Math.floor(boundary) + 1, 0), priceSteps);
+            int curtailed = priceSteps - first;
+            for (int i = first; i < priceSteps; i++) {
+                levelForPriceIndex[i] = levels - 1 - (int) ((long) (i - first) * levels / curtailed);
+            }
+        }
+    }
+
+    private static double[] distinctAscending(double[] values) {
+        double[] sorted = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            sorted[i] = Math.abs(values[i]);
+        }
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (size == 0 || sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    /**
+     * @return The curtailment level at the price index, or {@link #NO_CURTAILMENT}
+     */
+    public int levelForPriceIndex(int priceIndex) {
+        return levelForPriceIndex[priceIndex];
+    }
+
+    /**
+     * @return The limit of the absolute demand of the level in Watt
+     */
+    public double getLimitWatt(int level) {
+        return limitsWatt[level];
+    }
+
+    /**
+     * @return The signed limit of the demand of the level in Watt, negative for production
+     */
+    public double getSignedLimitWatt(int level) {
+        return production ? 0 - limitsWatt[level] : limitsWatt[level];
+    }
+
+    public boolean isProduction() {
+        return production;
+    }
+
+    public int getLevelCount() {
+        return limitsWatt.length;
+    }
+
+    /**
+     * @return The demand of the device at the price index when it would otherwise have the given demand
+     */
+    public double curtailedDemand(int priceIndex, double demandWatt) {
+        int level = levelForPriceIndex[priceIndex];
+        if (level == NO_CURTAILMENT) {
+            return demandWatt;
+        }
+        double limit = limitsWatt[level];
+        // 0 - limit, because -limit would be a negative zero for a full curtailment
+        return demandWatt < 0 ? Math.max(demandWatt, 0 - limit) : Math.min(demandWatt, limit);
+    }
+
+    /**
+     * @return The demand at every price step when the device would otherwise have the given demand
+     */
+    public double[] curtailedDemand(double demandWatt) {
+        double[] demand = new double[levelForPriceIndex.length];
+        for (int i = 0; i < demand.length; i++) {
+            demand[i] = curtailedDemand(i, demandWatt);
+        }
+        return demand;
+    }
+}
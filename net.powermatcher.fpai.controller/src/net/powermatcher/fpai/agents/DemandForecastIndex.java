@@ -0,0 +1,128 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.List;
+
+import javax.measure.quantity.Power;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommodityUncertainMeasurables;
+import org.flexiblepower.ral.values.Profile.Element;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+/**
+ * The electricity forecast of a sequence of {@link SequentialProfile}s, stored in primitive arrays. The end offset of
+ * every element (in milliseconds after the start of the first profile) and its mean electricity demand are computed
+ * once, so looking up the demand at an offset is a binary search without any unit conversions.
+ */
+public class DemandForecastIndex {
+
+    /** End of every element in milliseconds after the start of the first profile. Ascending. */
+    private final long[] endOffsetsMs;
+    /** Mean electricity demand of every element in Watt */
+    private final double[] meanDemandWatt;
+    /** Start of every sequential profile in milliseconds after the start of the first profile */
+    private final long[] profileStartOffsetsMs;
+
+    /**
+     * @param profiles
+     *            The sequential profiles, in the order in which they will be executed
+     */
+    public DemandForecastIndex(List<SequentialProfile> profiles) {
+        int size = 0;
+        for (SequentialProfile sp : profiles) {
+            size += sp.getCommodityForecast().size();
+        }
+        endOffsetsMs = new long[size];
+        meanDemandWatt = new double[size];
+        profileStartOffsetsMs = new long[profiles.size()];
+
+        int i = 0;
+        int p = 0;
+        long offset = 0;
+        for (SequentialProfile sp : profiles) {
+            profileStartOffsetsMs[p++] = offset;
+            CommodityForecast forecast = sp.getCommodityForecast();
+            for (Element<CommodityUncertainMeasurables> element : forecast) {
+                offset += element.getDuration().longValue(SI.MILLI(SI.SECOND));
+                endOffsetsMs[i] = offset;
+                UncertainMeasure<Power> electricity = element.getValue().get(Commodity.ELECTRICITY);
+                meanDemandWatt[i] = electricity == null ? 0 : electricity.getMean().doubleValue(SI.WATT);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @return The number of elements of all profiles together
+     */
+    public int size() {
+        return endOffsetsMs.length;
+    }
+
+    /**
+     * @return The total duration of all profiles in milliseconds
+     */
+    public long getTotalDurationMs() {
+        return endOffsetsMs.length == 0 ? 0 : endOffsetsMs[endOffsetsMs.length - 1];
+    }
+
+    /**
+     * @param offsetMs
+     *            The offset in milliseconds after the start of the first profile
+     * @return The index of the element that is active at the offset, or {@link #size()} when the offset is at or after
+     *         the end of the last element
+     */
+    public int indexAtOffset(long offsetMs) {
+        // Find the first element that ends after the offset
+        int low = 0;
+        int high = endOffsetsMs.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endOffsetsMs[mid] <= offsetMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The end of the element in milliseconds after the start of the first profile
+     */
+    public long getEndOffsetMs(int index) {
+        return endOffsetsMs[index];
+    }
+
+    /**
+     * @param index
+     *            The index of the element
+     * @return The mean electricity demand of the element in Watt
+     */
+    public double getDemandWatt(int index) {
+        return meanDemandWatt[index];
+    }
+
+    /**
+     * @param offsetMs
+     *            The offset in milliseconds after the start of the first profile, before {@link #getTotalDurationMs()}
+     * @return The mean electricity demand in Watt at the offset
+     */
+    public double getDemandAtOffset(long offsetMs) {
+        return meanDemandWatt[indexAtOffset(offsetMs)];
+    }
+
+    /**
+     * @param profileIndex
+     *            The index of the sequential profile
+     * @return The start of the sequential profile in milliseconds after the start of the first profile
+     */
+    public long getProfileStartOffsetMs(int profileIndex) {
+        return profileStartOffsetsMs[profileIndex];
+    }
+}
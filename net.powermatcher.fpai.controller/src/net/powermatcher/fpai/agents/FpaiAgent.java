@@ -1,13 +1,21 @@
 package net.powermatcher.fpai.agents;
 
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
 import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.Session;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.Price;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.core.BaseAgentEndpoint;
 import net.powermatcher.fpai.controller.AgentMessageSender;
+import net.powermatcher.fpai.metrics.ControllerMetrics;
 
+import org.flexiblepower.ral.messages.Allocation;
 import org.flexiblepower.ral.messages.AllocationStatusUpdate;
 import org.flexiblepower.ral.messages.ControlSpaceRegistration;
 import org.flexiblepower.ral.messages.ControlSpaceRevoke;
@@ -20,8 +28,98 @@ import org.flexiblepower.ral.messages.ControlSpaceUpdate;
  */
 public abstract class FpaiAgent extends BaseAgentEndpoint implements Comparable<FpaiAgent> {
 
+    /**
+     * Immutable snapshot of the last published bid, together with the information that the agent needs to turn a price
+     * for that bid into an allocation. A new snapshot replaces the old one as a whole, so a price is always handled
+     * with the allocation table that belongs to the bid it was calculated for.
+     */
+    protected static final class BidState {
+        private final BidUpdate bidUpdate;
+        private final Object allocationTable;
+
+        BidState(BidUpdate bidUpdate, Object allocationTable) {
+            this.bidUpdate = bidUpdate;
+            this.allocationTable = allocationTable;
+        }
+
+        /**
+         * @return The published bid and its bid number
+         */
+        public BidUpdate getBidUpdate() {
+            return bidUpdate;
+        }
+
+        /**
+         * @return The object that was returned by {@link FpaiAgent#getAllocationTable()} when the bid was created
+         */
+        public Object getAllocationTable() {
+            return allocationTable;
+        }
+    }
+
+    /**
+     * A bid that is being published. Its bid number is only known when publishing has finished, but the matcher may
+     * already respond with a price.
+     */
+    private static final class PendingBid {
+        private final Bid bid;
+        private final Object allocationTable;
+
+        PendingBid(Bid bid, Object allocationTable) {
+            this.bid = bid;
+            this.allocationTable = allocationTable;
+        }
+    }
+
     final AgentMessageSender messageSender;
 
+    /** The last published bid. Read without locking when a price arrives. Null means no bid has been published. */
+    private volatile BidState bidState = null;
+    /** The bid that is being published, or null. Set before {@link #bidState} is replaced and cleared after. */
+    private volatile PendingBid pendingBid = null;
+
+    /** Default delay of the trailing bid update for bids held back by the demand threshold */
+    public static final long DEFAULT_THRESHOLD_DELAY_MS = 1000;
+    /** Value of {@link #lastBidPublishedMs} while no bid has been published with a context */
+    private static final long NEVER_PUBLISHED = Long.MIN_VALUE;
+
+    /** Minimum time between two published bids. 0 means every changed bid is published immediately. */
+    private long minimumBidIntervalMs = 0;
+    /** Minimum change in demand for a bid to be published. 0 means every changed bid is published. */
+    private double bidDemandThreshold = 0;
+    /** Time after which a bid held back by the demand threshold is published anyway. */
+    private long thresholdDelayMs = DEFAULT_THRESHOLD_DELAY_MS;
+    /** Time the last bid was published, according to the {@link #context}, or {@link #NEVER_PUBLISHED}. */
+    private long lastBidPublishedMs = NEVER_PUBLISHED;
+    /** Future of the trailing bid update that publishes the coalesced state. Null means none is scheduled. */
+    private ScheduledFuture<?> trailingBidUpdate = null;
+    private final Runnable trailingBidUpdateTask = new Runnable() {
+        @Override
+        public void run() {
+            flushBidUpdate();
+        }
+    };
+
+    /** Time of the one-shot bid update, or {@link Long#MAX_VALUE} when none is scheduled */
+    private long bidUpdateAtMs = Long.MAX_VALUE;
+    private ScheduledFuture<?> bidUpdateAt = null;
+    private final Runnable bidUpdateAtTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FpaiAgent.this) {
+                bidUpdateAt = null;
+                bidUpdateAtMs = Long.MAX_VALUE;
+            }
+            doBidUpdate();
+        }
+    };
+
+    /**
+     * Start time of the price that is being handled on the current thread, for {@link ControllerMetrics}. Unset outside
+     * of a price handler. Prices are handled without the lock of the agent, so concurrent prices each keep their own.
+     */
+    private static final ThreadLocal<Long> PRICE_RECEIVED_NS = new ThreadLocal<Long>();
+
     /**
      * Constructs an FpaiAgent based on the given messageSender.
      *
@@ -73,37 +171,280 @@ public abstract class FpaiAgent extends BaseAgentEndpoint implements Comparable<
      */
     public abstract void handleAllocationStatusUpdate(AllocationStatusUpdate message);
 
+    /**
+     * Creates the bid for the current state. Called while holding the lock of the agent, also from timer tasks on the
+     * context thread, so the message handlers should hold the lock while they change the state this method reads.
+     */
     protected abstract Bid createBid(AgentEndpoint.Status currentStatus);
 
+    /**
+     * Returns the information that is needed to turn a price for the bid that has just been created into an
+     * allocation. It is called right after {@link #createBid(AgentEndpoint.Status)} and stored in the {@link BidState}
+     * of the bid, so it must not be changed afterwards.
+     *
+     * @return The allocation table of the last created bid, or <code>null</code> when the agent does not need one
+     */
+    protected Object getAllocationTable() {
+        return null;
+    }
+
+    /**
+     * Configures the coalescing of bid updates. When enabled, bids are published at most once every
+     * <code>minimumBidIntervalMs</code> and bids that differ less than <code>bidDemandThreshold</code> Watt from the
+     * last published bid are held back. In both cases a trailing bid update is scheduled, so the latest state is
+     * always published eventually. A held back bid is published after <code>thresholdDelayMs</code>, or after the
+     * minimum interval when that is longer. So the threshold does not drop small changes, it delays them: a longer
+     * delay publishes fewer bids, but the published bid may differ up to the threshold from the actual demand for that
+     * long.
+     *
+     * @param minimumBidIntervalMs
+     *            The minimum time between two published bids in milliseconds, or 0 to publish every bid immediately
+     * @param bidDemandThreshold
+     *            The minimum change of the demand at any price step in Watt, or 0 to publish every changed bid
+     * @param thresholdDelayMs
+     *            The time in milliseconds after which a bid held back by the demand threshold is published anyway
+     */
+    public synchronized void setBidCoalescing(long minimumBidIntervalMs,
+                                              double bidDemandThreshold,
+                                              long thresholdDelayMs) {
+        if (minimumBidIntervalMs < 0 || bidDemandThreshold < 0 || thresholdDelayMs < 0) {
+            throw new IllegalArgumentException("The minimum bid interval, the demand threshold and its delay may not be "
+                                               + "negative");
+        }
+        this.minimumBidIntervalMs = minimumBidIntervalMs;
+        this.bidDemandThreshold = bidDemandThreshold;
+        this.thresholdDelayMs = thresholdDelayMs;
+    }
+
     protected synchronized void doBidUpdate() {
         AgentEndpoint.Status currentStatus = getStatus();
         if (currentStatus.isConnected()) {
-            Bid bid = createBid(currentStatus);
+            if (isCoalescing() && getLastBidUpdate() != null && lastBidPublishedMs != NEVER_PUBLISHED) {
+                long waitMs = lastBidPublishedMs + minimumBidIntervalMs - context.currentTimeMillis();
+                if (waitMs > 0) {
+                    // Too soon, the trailing bid update will create the bid
+                    scheduleTrailingBidUpdate(waitMs);
+                    return;
+                }
+            }
+
+            Bid bid = timedCreateBid(currentStatus);
             BidUpdate lastBidUpdate = getLastBidUpdate();
-            if (bid != null && (lastBidUpdate == null || !bid.equals(lastBidUpdate.getBid()))) {
-                publishBid(bid);
+            if (bid == null) {
+                cancelTrailingBidUpdate();
+            } else if (lastBidUpdate != null && isSameBid(bid, lastBidUpdate.getBid())) {
+                cancelTrailingBidUpdate();
+                ControllerMetrics.countBidSuppressed(getClass());
+                // The same bid, but the allocation table may have been recalculated
+                bidState = new BidState(lastBidUpdate, getAllocationTable());
+            } else if (lastBidUpdate != null && bidDemandThreshold > 0
+                       && context != null
+                       && maximumDemandDifference(bid, lastBidUpdate.getBid()) < bidDemandThreshold) {
+                ControllerMetrics.countBidSuppressed(getClass());
+                scheduleTrailingBidUpdate(Math.max(minimumBidIntervalMs, thresholdDelayMs));
+            } else {
+                doPublishBid(bid);
             }
         }
     }
 
     /**
-     * Updates the internal PowerMatcher price field and calls the priceUpdated method to handle the new price.
+     * Publishes the current state, regardless of the demand threshold. Called by the trailing bid update.
+     */
+    synchronized void flushBidUpdate() {
+        trailingBidUpdate = null;
+        AgentEndpoint.Status currentStatus = getStatus();
+        if (currentStatus.isConnected()) {
+            Bid bid = timedCreateBid(currentStatus);
+            BidUpdate lastBidUpdate = getLastBidUpdate();
+            if (bid != null && (lastBidUpdate == null || !isSameBid(bid, lastBidUpdate.getBid()))) {
+                doPublishBid(bid);
+            } else if (bid != null) {
+                ControllerMetrics.countBidSuppressed(getClass());
+                // The same bid, but the allocation table may have been recalculated
+                bidState = new BidState(lastBidUpdate, getAllocationTable());
+            }
+        }
+    }
+
+    private Bid timedCreateBid(AgentEndpoint.Status currentStatus) {
+        long start = ControllerMetrics.startTime();
+        Bid bid = createBid(currentStatus);
+        ControllerMetrics.recordBidCreation(getClass(), start);
+        return bid;
+    }
+
+    private void doPublishBid(Bid bid) {
+        cancelTrailingBidUpdate();
+        Object allocationTable = getAllocationTable();
+        pendingBid = new PendingBid(bid, allocationTable);
+        BidUpdate bidUpdate = publishBid(bid);
+        bidState = new BidState(bidUpdate, allocationTable);
+        pendingBid = null;
+        ControllerMetrics.countBidPublished(getClass());
+        if (context != null) {
+            lastBidPublishedMs = context.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Schedules a bid update at a time at which the bid is known to change without a new message, such as the end of
+     * a timer. It replaces the previously scheduled one, so an agent can call it after every bid it creates.
+     *
+     * @param timeMs
+     *            The time of the bid update in milliseconds since the epoch, or {@link Long#MAX_VALUE} to cancel it
+     */
+    protected synchronized void scheduleBidUpdateAt(long timeMs) {
+        if (context == null) {
+            return;
+        }
+        long now = context.currentTimeMillis();
+        if (bidUpdateAt != null && bidUpdateAtMs == timeMs && timeMs > now) {
+            // Already scheduled
+            return;
+        }
+        cancelBidUpdateAt();
+        if (timeMs != Long.MAX_VALUE) {
+            bidUpdateAtMs = Math.max(timeMs, now + 1);
+            bidUpdateAt = context.schedule(bidUpdateAtTask, Measure.valueOf(bidUpdateAtMs - now, SI.MILLI(SI.SECOND)));
+        }
+    }
+
+    /**
+     * Cancels the bid update of {@link #scheduleBidUpdateAt(long)}.
+     */
+    protected synchronized void cancelBidUpdateAt() {
+        if (bidUpdateAt != null) {
+            bidUpdateAt.cancel(false);
+            bidUpdateAt = null;
+        }
+        bidUpdateAtMs = Long.MAX_VALUE;
+    }
+
+    private boolean isCoalescing() {
+        return minimumBidIntervalMs > 0 && context != null;
+    }
+
+    private void scheduleTrailingBidUpdate(long delayMs) {
+        if (trailingBidUpdate == null) {
+            trailingBidUpdate = context.schedule(trailingBidUpdateTask, Measure.valueOf(delayMs, SI.MILLI(SI.SECOND)));
+        }
+    }
+
+    private void cancelTrailingBidUpdate() {
+        if (trailingBidUpdate != null) {
+            trailingBidUpdate.cancel(false);
+            trailingBidUpdate = null;
+        }
+    }
+
+    /**
+     * Bids from {@link SharedBids} and cached buffer bids are recognized by their reference, so only bids that were
+     * built anew have their demand compared.
+     */
+    private static boolean isSameBid(Bid bid, Bid other) {
+        return bid == other || bid.equals(other);
+    }
+
+    private static double maximumDemandDifference(Bid bid, Bid other) {
+        if (!bid.getMarketBasis().equals(other.getMarketBasis())) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double[] demand = bid.getDemand();
+        double[] otherDemand = other.getDemand();
+        double max = 0;
+        for (int i = 0; i < demand.length; i++) {
+            max = Math.max(max, Math.abs(demand[i] - otherDemand[i]));
+        }
+        return max;
+    }
+
+    /**
+     * Updates the internal PowerMatcher price field and calls the priceUpdated method to handle the new price. This
+     * method does not take the lock of the agent, so it is not delayed by the creation of a bid; it only reads the
+     * current {@link BidState}.
      */
     @Override
-    public synchronized final void handlePriceUpdate(PriceUpdate priceUpdate) {
+    public final void handlePriceUpdate(PriceUpdate priceUpdate) {
         super.handlePriceUpdate(priceUpdate);
-        if (getLastBidUpdate() == null) {
+        BidState state = bidStateFor(priceUpdate.getBidNumber());
+        if (state == null) {
             LOGGER.info("Ignoring price update while no bid has been sent");
-        } else if (getLastBidUpdate().getBidNumber() != priceUpdate.getBidNumber()) {
+        } else if (state.getBidUpdate().getBidNumber() != priceUpdate.getBidNumber()) {
             LOGGER.info("Ignoring price update on old bid (lastBid={} priceUpdate={})",
-                        getLastBidUpdate().getBidNumber(),
+                        state.getBidUpdate().getBidNumber(),
                         priceUpdate.getBidNumber());
         } else {
-            handlePriceUpdate(priceUpdate.getPrice());
+            Long outerPriceReceivedNs = PRICE_RECEIVED_NS.get();
+            PRICE_RECEIVED_NS.set(ControllerMetrics.startTime());
+            try {
+                handlePriceUpdate(priceUpdate.getPrice(), state);
+            } finally {
+                if (outerPriceReceivedNs == null) {
+                    PRICE_RECEIVED_NS.remove();
+                } else {
+                    PRICE_RECEIVED_NS.set(outerPriceReceivedNs);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The state of the bid with the given number, or else the state of the last published bid, which may be
+     *         <code>null</code>
+     */
+    private BidState bidStateFor(int bidNumber) {
+        BidState state = bidState;
+        if (state != null && state.getBidUpdate().getBidNumber() == bidNumber) {
+            return state;
         }
+        PendingBid pending = pendingBid;
+        if (pending != null && (state == null || bidNumber > state.getBidUpdate().getBidNumber())) {
+            // Bid numbers increase, so a newer number belongs to the bid that is being published
+            return new BidState(new BidUpdate(pending.bid, bidNumber), pending.allocationTable);
+        }
+        // The bid may have been published since the state was read
+        return bidState;
     }
 
-    protected abstract void handlePriceUpdate(Price newPrice);
+    /**
+     * Handles a price for the last published bid. Called without holding the lock of the agent.
+     *
+     * @param newPrice
+     *            The new price
+     * @param bidState
+     *            The snapshot of the bid the price was calculated for
+     */
+    protected abstract void handlePriceUpdate(Price newPrice, BidState bidState);
+
+    /**
+     * Sends an allocation to the resource manager. When it is sent while handling a price, the time since the price was
+     * received is recorded in the {@link ControllerMetrics}.
+     *
+     * @param allocation
+     *            The allocation that should be sent
+     */
+    protected void sendAllocation(Allocation allocation) {
+        messageSender.sendMessage(allocation);
+        Long priceReceivedNs = PRICE_RECEIVED_NS.get();
+        ControllerMetrics.recordPriceToAllocation(getClass(), priceReceivedNs == null ? 0 : priceReceivedNs);
+    }
+
+    @Override
+    public void matcherEndpointDisconnected(Session session) {
+        bidState = null;
+        pendingBid = null;
+        super.matcherEndpointDisconnected(session);
+    }
+
+    @Override
+    public void deactivate() {
+        synchronized (this) {
+            cancelTrailingBidUpdate();
+            cancelBidUpdateAt();
+        }
+        super.deactivate();
+    }
 
     @Override
     public int compareTo(FpaiAgent o) {
@@ -0,0 +1,100 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.TimerUpdate;
+
+/**
+ * Caches the reachable running modes of the actuators of a device. Finding them walks all transitions and timers, but
+ * the result only changes when a state update, system description or allocation arrives, or when a timer finishes.
+ * The agent calls {@link #invalidate()} for the messages; the cache forgets its content by itself when the earliest
+ * timer of the last state update has finished. It is thread safe, because the timer of the agent may create a bid
+ * while a message is handled.
+ *
+ * @param <T>
+ *            The type of the value of the running modes
+ */
+public class ReachableRunningModeCache<T> {
+
+    /** Indicates that no timer is running */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    private final Map<Integer, Collection<RunningMode<T>>> reachable = new HashMap<Integer, Collection<RunningMode<T>>>();
+    /** Finish times of the timers of every actuator in milliseconds since the epoch. Ascending. */
+    private final Map<Integer, long[]> timerFinishTimes = new HashMap<Integer, long[]>();
+    /** The time from which the content of the cache is no longer valid */
+    private long validUntilMs = Long.MIN_VALUE;
+
+    /**
+     * Forgets the reachable running modes of all actuators.
+     */
+    public synchronized void invalidate() {
+        reachable.clear();
+        validUntilMs = Long.MIN_VALUE;
+    }
+
+    /**
+     * Forgets everything, including the timers.
+     */
+    public synchronized void clear() {
+        timerFinishTimes.clear();
+        invalidate();
+    }
+
+    /**
+     * Stores the timers of an actuator from a state update and forgets the reachable running modes.
+     *
+     * @param timerUpdates
+     *            The timer updates of the actuator, may be <code>null</code>
+     */
+    public synchronized void setTimers(int actuatorId, Collection<TimerUpdate> timerUpdates) {
+        if (timerUpdates == null || timerUpdates.isEmpty()) {
+            timerFinishTimes.remove(actuatorId);
+        } else {
+            long[] finishTimes = new long[timerUpdates.size()];
+            int i = 0;
+            for (TimerUpdate timerUpdate : timerUpdates) {
+                finishTimes[i++] = timerUpdate.getFinishedAt().getTime();
+            }
+            Arrays.sort(finishTimes);
+            timerFinishTimes.put(actuatorId, finishTimes);
+        }
+        invalidate();
+    }
+
+    /**
+     * @return The cached reachable running modes of the actuator, or <code>null</code> when they have to be determined
+     */
+    public synchronized Collection<RunningMode<T>> get(int actuatorId, long nowMs) {
+        if (nowMs >= validUntilMs) {
+            reachable.clear();
+            validUntilMs = nextTimerExpiry(nowMs);
+        }
+        return reachable.get(actuatorId);
+    }
+
+    public synchronized void put(int actuatorId, Collection<RunningMode<T>> runningModes) {
+        reachable.put(actuatorId, runningModes);
+    }
+
+    /**
+     * @return The first time at or after the given time at which a timer finishes, or {@link #NO_EXPIRY}
+     */
+    public synchronized long nextTimerExpiry(long nowMs) {
+        long next = NO_EXPIRY;
+        for (long[] finishTimes : timerFinishTimes.values()) {
+            for (long finishTime : finishTimes) {
+                if (finishTime >= nowMs) {
+                    // Ascending, so this is the first one of the actuator
+                    next = Math.min(next, finishTime);
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,124 @@
+package net.powermatcher.fpai.agents;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PricePoint;
+
+/**
+ * Shared {@link Bid} instances of a {@link MarketBasis} for the bids that many agents make: the zero bid of an idle or
+ * revoked device, the must-off bid and flat demands. A {@link Bid} is immutable, so agents can publish the same
+ * instance, which saves an array of all price steps per bid and lets {@link FpaiAgent} recognize an unchanged bid by
+ * its reference.
+ *
+ * The zero and must-off bids are built once. Flat bids are canonicalized in a map with weak references, so a demand
+ * that no agent bids anymore is forgotten.
+ */
+public final class SharedBids {
+
+    private static final ConcurrentMap<MarketBasis, SharedBids> instances = new ConcurrentHashMap<MarketBasis, SharedBids>();
+
+    /**
+     * @return The shared bids of the market basis
+     */
+    public static SharedBids of(MarketBasis marketBasis) {
+        SharedBids sharedBids = instances.get(marketBasis);
+        if (sharedBids == null) {
+            SharedBids newSharedBids = new SharedBids(marketBasis);
+            sharedBids = instances.putIfAbsent(marketBasis, newSharedBids);
+            if (sharedBids == null) {
+                sharedBids = newSharedBids;
+            }
+        }
+        return sharedBids;
+    }
+
+    /**
+     * Weak reference to a flat bid that remembers its key, so the entry can be removed when the bid is collected.
+     */
+    private static final class FlatBidReference extends WeakReference<Bid> {
+        private final long demandBits;
+
+        FlatBidReference(Bid bid, long demandBits, ReferenceQueue<Bid> queue) {
+            super(bid, queue);
+            this.demandBits = demandBits;
+        }
+    }
+
+    private final MarketBasis marketBasis;
+    private final Bid zero;
+    private final Bid mustOff;
+    private final Map<Long, FlatBidReference> flatBids = new HashMap<Long, FlatBidReference>();
+    private final ReferenceQueue<Bid> collectedBids = new ReferenceQueue<Bid>();
+
+    private SharedBids(MarketBasis marketBasis) {
+        this.marketBasis = marketBasis;
+        zero = Bid.flatDemand(marketBasis, 0);
+        mustOff = Bid.create(marketBasis).add(new PricePoint(marketBasis, 0, 0)).build();
+    }
+
+    public MarketBasis getMarketBasis() {
+        return marketBasis;
+    }
+
+    /**
+     * @return The bid with no demand at any price
+     */
+    public Bid zero() {
+        return zero;
+    }
+
+    /**
+     * @return The bid of a device that has to stay off, with no demand from the lowest price on
+     */
+    public Bid mustOff() {
+        return mustOff;
+    }
+
+    /**
+     * @return The shared bid with the same demand at any price
+     */
+    public Bid flatDemand(double demandWatt) {
+        if (demandWatt == 0) {
+            // Also catches -0.0, which would otherwise get its own entry
+            return zero;
+        }
+        long demandBits = Double.doubleToLongBits(demandWatt);
+        synchronized (flatBids) {
+            expungeCollectedBids();
+            FlatBidReference reference = flatBids.get(demandBits);
+            Bid bid = reference == null ? null : reference.get();
+            if (bid == null) {
+                bid = Bid.flatDemand(marketBasis, demandWatt);
+                flatBids.put(demandBits, new FlatBidReference(bid, demandBits, collectedBids));
+            }
+            return bid;
+        }
+    }
+
+    /**
+     * @return The number of flat bids that are currently remembered, for testing
+     */
+    int flatBidCount() {
+        synchronized (flatBids) {
+            expungeCollectedBids();
+            return flatBids.size();
+        }
+    }
+
+    private void expungeCollectedBids() {
+        FlatBidReference reference;
+        while ((reference = (FlatBidReference) collectedBids.poll()) != null) {
+            // Only remove the entry when it has not been replaced by a newer bid yet
+            if (flatBids.get(reference.demandBits) == reference) {
+                flatBids.remove(reference.demandBits);
+            }
+        }
+    }
+}
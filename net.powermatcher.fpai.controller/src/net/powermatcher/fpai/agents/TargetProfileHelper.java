@@ -1,60 +1,103 @@
 package net.powermatcher.fpai.agents;
 
-import java.util.Collection;
 import java.util.Date;
 
 import javax.measure.quantity.Quantity;
+import javax.measure.unit.SI;
 
 import org.flexiblepower.api.efi.bufferhelper.Buffer;
-import org.flexiblepower.efi.buffer.ActuatorBehaviour;
 import org.flexiblepower.efi.buffer.BufferRegistration;
-import org.flexiblepower.efi.buffer.BufferSystemDescription;
 import org.flexiblepower.efi.buffer.BufferTargetProfileUpdate;
-import org.flexiblepower.efi.buffer.LeakageRate;
-import org.flexiblepower.efi.buffer.RunningModeBehaviour;
-import org.flexiblepower.efi.util.FillLevelFunction;
-import org.flexiblepower.efi.util.FillLevelFunction.RangeElement;
-import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.ral.values.Constraint;
 import org.flexiblepower.ral.values.ConstraintProfile;
-
+import org.flexiblepower.ral.values.Profile.Element;
+
+/**
+ * Calculates the priority of a buffer bid, such that the buffer reaches the targets of a {@link ConstraintProfile}. The
+ * targets are the elements of the profile, which start at the offset given by the duration of the elements before it.
+ * The next target is the first element that has not started yet.
+ *
+ * An agent can keep an instance for as long as the target profile and the {@link BufferFillingRates} are unchanged.
+ */
 public class TargetProfileHelper<Q extends Quantity> {
 
-    private final Date startDate;
-    private final ConstraintProfile<Q> profile;
+    private final long startTime;
+    /** Start of every element of the profile, in milliseconds after the start time. Ascending. */
+    private final long[] elementStartOffsets;
+    private final double[] targetLowerBounds;
+    private final double[] targetUpperBounds;
     private final BufferRegistration<Q> bufferRegistration;
-    private final BufferSystemDescription bufferSystemDescription;
-    private final ActuatorBehaviour actuator;
+    private final BufferFillingRates fillingRates;
     private final Buffer<Q> bufferHelper;
 
     public TargetProfileHelper(BufferTargetProfileUpdate<Q> targetProfile,
-                               ConstraintProfile<Q> profile,
                                BufferRegistration<Q> bufferRegistration,
-                               BufferSystemDescription bufferSystemDescription,
+                               BufferFillingRates fillingRates,
                                Buffer<Q> bufferHelper) {
-        this.profile = profile;
         this.bufferRegistration = bufferRegistration;
-        this.bufferSystemDescription = bufferSystemDescription;
-        this.startDate = targetProfile.getValidFrom();
+        this.fillingRates = fillingRates;
+        startTime = targetProfile.getValidFrom().getTime();
         this.bufferHelper = bufferHelper;
-        // TODO we assume one actuator for now
-        this.actuator = bufferSystemDescription.getActuators().iterator().next();
+
+        ConstraintProfile<Q> profile = targetProfile.getTargetProfile();
+        int size = profile.size();
+        elementStartOffsets = new long[size];
+        targetLowerBounds = new double[size];
+        targetUpperBounds = new double[size];
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            Element<Constraint<Q>> element = profile.get(i);
+            elementStartOffsets[i] = offset;
+            targetLowerBounds[i] = element.getValue()
+                                          .getLowerBound()
+                                          .doubleValue(bufferRegistration.getFillLevelUnit());
+            targetUpperBounds[i] = element.getValue()
+                                          .getUpperBound()
+                                          .doubleValue(bufferRegistration.getFillLevelUnit());
+            offset += element.getDuration().longValue(SI.MILLI(SI.SECOND));
+        }
+    }
+
+    /**
+     * @return The index of the first element that starts at or after the given time, or the number of elements when
+     *         all of them have started
+     */
+    private int targetIndex(Date now) {
+        long offset = now.getTime() - startTime;
+        int low = 0;
+        int high = elementStartOffsets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (elementStartOffsets[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
     }
 
-    private double getTargetLowerBound() {
-        return profile.get(0).getValue().getLowerBound().doubleValue(bufferRegistration.getFillLevelUnit());
+    /**
+     * @return The index of the next target, or of the last target when all of them have started
+     */
+    private int nextTargetIndex(Date now) {
+        return Math.min(targetIndex(now), elementStartOffsets.length - 1);
     }
 
-    private double getTargetUpperBound() {
-        return profile.get(0).getValue().getUpperBound().doubleValue(bufferRegistration.getFillLevelUnit());
+    private double getTargetLowerBound(Date now) {
+        return targetLowerBounds[nextTargetIndex(now)];
+    }
+
+    private double getTargetUpperBound(Date now) {
+        return targetUpperBounds[nextTargetIndex(now)];
     }
 
     public long timeToTarget(Date now) {
-        return startDate.getTime() - now.getTime();
+        return startTime + elementStartOffsets[nextTargetIndex(now)] - now.getTime();
     }
 
     public boolean targetIsValid(Date now) {
-        // TODO start looking for the next target
-        return timeToTarget(now) >= 0;
+        return targetIndex(now) < elementStartOffsets.length;
     }
 
     public double calculatePriority(Date now) {
@@ -72,15 +115,14 @@ public class TargetProfileHelper<Q extends Quantity> {
     }
 
     public double getMinimumFillLevelForTarget(Date now) {
-        double bufferMinimum = bufferHelper.getMinimumFillLevel();
-        double targetMinimum = getTargetLowerBound();
+        double bufferMinimum = fillingRates.getMinimumFillLevel();
+        double targetMinimum = getTargetLowerBound(now);
         if (targetMinimum <= bufferMinimum) {
             // Target is not restrictive
             return bufferMinimum;
         }
         double toCharge = targetMinimum - bufferMinimum;
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> rm = getFastestChargingRunningMode(actuator.getRunningModes());
-        double fillingRate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
+        double fillingRate = fillingRates.getFastestChargingRate();
         if (fillingRate <= 0) {
             // The "deadline line" is horizontal
             return targetMinimum;
@@ -103,15 +145,14 @@ public class TargetProfileHelper<Q extends Quantity> {
     }
 
     public double getMaximumFillLevelForTarget(Date now) {
-        double bufferMaximum = bufferHelper.getMaximumFillLevel();
-        double targetMaximum = getTargetUpperBound();
+        double bufferMaximum = fillingRates.getMaximumFillLevel();
+        double targetMaximum = getTargetUpperBound(now);
         if (targetMaximum >= bufferMaximum) {
             // Target is not restrictive
             return bufferMaximum;
         }
         double toDischarge = bufferMaximum - targetMaximum;
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> rm = getFastestDischargingRunningMode(actuator.getRunningModes());
-        double fillingRate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
+        double fillingRate = fillingRates.getFastestDischargingRate();
         if (fillingRate >= 0) {
             // The "deadline line" is horizontal
             return targetMaximum;
@@ -132,60 +173,4 @@ public class TargetProfileHelper<Q extends Quantity> {
         return bufferMaximum - (slope * toDischarge);
     }
 
-    private static double averageFillingRate(RunningMode<FillLevelFunction<RunningModeBehaviour>> rm) {
-        double totalRange = 0;
-        double sum = 0;
-        for (RangeElement<RunningModeBehaviour> re : rm.getValue()) {
-            double range = re.getUpperBound() - re.getLowerBound();
-            totalRange += range;
-            sum += re.getValue().getFillingRate() * range;
-        }
-        return sum / totalRange;
-    }
-
-    private static double averageLeakage(FillLevelFunction<LeakageRate> flf) {
-        double totalRange = 0;
-        double sum = 0;
-        for (RangeElement<LeakageRate> re : flf) {
-            double range = re.getUpperBound() - re.getLowerBound();
-            totalRange += range;
-            sum += re.getValue().getLeakageRate() * range;
-        }
-        return sum / totalRange;
-    }
-
-    private static double netFillingRate(RunningMode<FillLevelFunction<RunningModeBehaviour>> rm,
-                                         FillLevelFunction<LeakageRate> leakage) {
-        // TODO add bufferForecast?
-        return averageFillingRate(rm) + averageLeakage(leakage);
-    }
-
-    private RunningMode<FillLevelFunction<RunningModeBehaviour>>
-            getFastestChargingRunningMode(Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> rms) {
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> best = null;
-        double bestFillingRate = -Double.MAX_VALUE;
-        for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : rms) {
-            double rate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
-            if (rate > bestFillingRate) {
-                bestFillingRate = rate;
-                best = rm;
-            }
-        }
-        return best;
-    }
-
-    private RunningMode<FillLevelFunction<RunningModeBehaviour>>
-            getFastestDischargingRunningMode(Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> rms) {
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> best = null;
-        double bestFillingRate = Double.MAX_VALUE;
-        for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : rms) {
-            double rate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
-            if (rate < bestFillingRate) {
-                bestFillingRate = rate;
-                best = rm;
-            }
-        }
-        return best;
-    }
-
 }
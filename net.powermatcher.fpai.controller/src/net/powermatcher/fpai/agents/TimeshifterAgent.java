@@ -3,14 +3,6 @@ package net.powermatcher.fpai.agents;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ScheduledFuture;
-
-import javax.measure.Measurable;
-import javax.measure.Measure;
-import javax.measure.quantity.Duration;
-import javax.measure.quantity.Power;
-import javax.measure.unit.SI;
-import javax.measure.unit.Unit;
 
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.data.Bid;
@@ -28,27 +20,32 @@ import org.flexiblepower.ral.messages.ControlSpaceRegistration;
 import org.flexiblepower.ral.messages.ControlSpaceRevoke;
 import org.flexiblepower.ral.messages.ControlSpaceUpdate;
 import org.flexiblepower.ral.values.Commodity;
-import org.flexiblepower.ral.values.CommodityForecast;
-import org.flexiblepower.ral.values.CommodityUncertainMeasurables;
-import org.flexiblepower.ral.values.Profile.Element;
-import org.flexiblepower.time.TimeUtil;
 
-public class TimeshifterAgent extends FpaiAgent implements Runnable {
+public class TimeshifterAgent extends FpaiAgent {
 
-    private static final Unit<Duration> MS = SI.MILLI(SI.SECOND);
-    private static final int RUNNING_PROFILE_BID_UPDATE_INTERVAL_MS = 10000;
     private static final double EAGERNESS = 1.0;
 
+    /**
+     * A {@link TimeShifterUpdate} together with its {@link DemandForecastIndex}, used as the allocation table of a bid.
+     */
+    private static final class FlexibleProgram {
+        private final TimeShifterUpdate update;
+        private final DemandForecastIndex forecastIndex;
+
+        FlexibleProgram(TimeShifterUpdate update, DemandForecastIndex forecastIndex) {
+            this.update = update;
+            this.forecastIndex = forecastIndex;
+        }
+    }
+
     private TimeShifterRegistration registration;
 
     /** Last received {@link TimeShifterUpdate}. Null means no flexibility, must not run bid. */
-    private TimeShifterUpdate lastTimeshifterUpdate = null;
-    private CommodityForecast concatenatedCommodityForecast;
+    private volatile TimeShifterUpdate lastTimeshifterUpdate = null;
+    private DemandForecastIndex forecastIndex;
 
     /** Time when the machine started. Null means it's not running. */
-    private Date profileStartTime = null;
-    /** Future for when a automatic bid updates are scheduled */
-    private ScheduledFuture<?> scheduledFuture = null;
+    private volatile Date profileStartTime = null;
 
     /**
      * Constructs an TimeshifterAgent based on the given messageSender.
@@ -65,7 +62,7 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
     }
 
     @Override
-    public void handleControlSpaceRegistration(ControlSpaceRegistration message) {
+    public synchronized void handleControlSpaceRegistration(ControlSpaceRegistration message) {
         if (message instanceof TimeShifterRegistration) {
             if (registration == null) {
                 registration = (TimeShifterRegistration) message;
@@ -82,17 +79,11 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
 
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public void handleControlSpaceUpdate(ControlSpaceUpdate message) {
+    public synchronized void handleControlSpaceUpdate(ControlSpaceUpdate message) {
         if (message instanceof TimeShifterUpdate) {
             lastTimeshifterUpdate = (TimeShifterUpdate) message;
-            List<SequentialProfile> timeShifterProfiles = lastTimeshifterUpdate.getTimeShifterProfiles();
-            List<Element<CommodityUncertainMeasurables>> elements = new ArrayList<Element<CommodityUncertainMeasurables>>();
-            for (SequentialProfile sp : timeShifterProfiles) {
-                elements.addAll(sp.getCommodityForecast());
-            }
-            concatenatedCommodityForecast = new CommodityForecast(elements.toArray(new Element[elements.size()]));
+            forecastIndex = new DemandForecastIndex(lastTimeshifterUpdate.getTimeShifterProfiles());
             doBidUpdate();
         } else {
             LOGGER.error("Received unknown type of ControlSpaceUpdate: " + message);
@@ -100,7 +91,7 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
     }
 
     @Override
-    public void handleAllocationStatusUpdate(AllocationStatusUpdate message) {
+    public synchronized void handleAllocationStatusUpdate(AllocationStatusUpdate message) {
         switch (message.getStatus()) {
         case ACCEPTED:
             // Great! No action.
@@ -114,7 +105,7 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
         case STARTED:
             // Start 'playing' the profile
             profileStartTime = message.getTimestamp();
-            scheduleBidUpdates(RUNNING_PROFILE_BID_UPDATE_INTERVAL_MS);
+            // The next bid update is scheduled when the bid for the running program is created
             break;
         case FINISHED:
             // Great! Go to no-flexibility state
@@ -127,11 +118,11 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
     private void goToNoFlexiblityState() {
         lastTimeshifterUpdate = null;
         profileStartTime = null;
-        cancelScheduledBidUpdates();
+        cancelBidUpdateAt();
     }
 
     @Override
-    public void handleControlSpaceRevoke(ControlSpaceRevoke message) {
+    public synchronized void handleControlSpaceRevoke(ControlSpaceRevoke message) {
         goToNoFlexiblityState();
         doBidUpdate();
     }
@@ -141,13 +132,12 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
         MarketBasis marketBasis = status.getMarketBasis();
         if (lastTimeshifterUpdate == null) {
             // No flexibility, must not run bid
-            return Bid.flatDemand(marketBasis, 0);
+            return SharedBids.of(marketBasis).zero();
         } else if (lastTimeshifterUpdate.getValidFrom().getTime() > context.currentTimeMillis()) {
             // Flexible period starts in the future
             // Schedule a bid update when the flexibility starts
-            long delay = lastTimeshifterUpdate.getValidFrom().getTime() - context.currentTimeMillis();
-            context.schedule(this, Measure.valueOf(delay, MS));
-            return Bid.flatDemand(marketBasis, 0);
+            scheduleBidUpdateAt(lastTimeshifterUpdate.getValidFrom().getTime());
+            return SharedBids.of(marketBasis).zero();
         } else if (profileStartTime != null) {
             // Appliance is currently executing program
             return constructBidForRunningProgram(marketBasis);
@@ -169,24 +159,28 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
         // determine how far time has progressed in comparison to the start window (start after until start before)
         long startAfter = lastTimeshifterUpdate.getValidFrom().getTime();
         long endBefore = lastTimeshifterUpdate.getEndBefore().getTime();
-        long startBefore = endBefore - concatenatedCommodityForecast.getTotalDuration().longValue(MS);
+        long startBefore = endBefore - forecastIndex.getTotalDurationMs();
         long startWindow = startBefore - startAfter;
-        double initialDemandWatt = getInitialDemand().doubleValue(SI.WATT);
+        double initialDemandWatt = getInitialDemandWatt();
 
         // It should already start, so send the must-run bid
         if (startWindow <= 0) {
-            return Bid.flatDemand(marketBasis, initialDemandWatt);
+            cancelBidUpdateAt();
+            return SharedBids.of(marketBasis).flatDemand(initialDemandWatt);
         }
 
         // Check if deadline is reached
         if (endBefore <= context.currentTimeMillis()) {
-            return Bid.flatDemand(marketBasis, 0d);
+            cancelBidUpdateAt();
+            return SharedBids.of(marketBasis).zero();
         }
 
         // It should already start, so send the must-run bid
         if (startBefore <= context.currentTimeMillis()) {
             // TODO: Bid in received profile here, for now initial demand
-            return Bid.flatDemand(marketBasis, initialDemandWatt);
+            // This bid only changes when the deadline is reached
+            scheduleBidUpdateAt(endBefore);
+            return SharedBids.of(marketBasis).flatDemand(initialDemandWatt);
         }
 
         long timeSinceAllowableStart = context.currentTimeMillis() - startAfter;
@@ -206,9 +200,13 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
         double stepPrice = priceRange * ratio + marketBasis.getMinimumPrice() + marketBasis.getPriceIncrement();
         LOGGER.debug("Timeshifter flexible bid @ {}", stepPrice);
 
-        if (scheduledFuture == null) {
-            scheduleBidUpdates(startWindow / marketBasis.getPriceSteps());
-        }
+        scheduleBidUpdateAt(Math.min(nextStepPriceCrossing(marketBasis,
+                                                           stepPrice,
+                                                           priceRange,
+                                                           initialDemandWatt < 0,
+                                                           startAfter,
+                                                           startWindow),
+                                     startBefore));
 
         // the bid depends on whether the initial demand is actually demand or is supply
         if (initialDemandWatt > 0) {
@@ -218,6 +216,38 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
         }
     }
 
+    /**
+     * Calculates when the step price of the flexible bid crosses the next boundary of a price step. To not depend on
+     * how the {@link Bid} rounds prices onto price steps, every half price increment is treated as a boundary.
+     *
+     * @return The time of the crossing, or {@link Long#MAX_VALUE} when it is not within the start window
+     */
+    private long nextStepPriceCrossing(MarketBasis marketBasis,
+                                       double stepPrice,
+                                       double priceRange,
+                                       boolean supply,
+                                       long startAfter,
+                                       long startWindow) {
+        if (priceRange <= 0) {
+            return Long.MAX_VALUE;
+        }
+        double base = marketBasis.getMinimumPrice() + marketBasis.getPriceIncrement();
+        double halfIncrement = marketBasis.getPriceIncrement() / 2;
+        double boundaryIndex = (stepPrice - marketBasis.getMinimumPrice()) / halfIncrement;
+        // For demand the step price rises over time, for supply it drops
+        double boundary = marketBasis.getMinimumPrice() + halfIncrement
+                                                          * (supply ? Math.ceil(boundaryIndex) - 1
+                                                                    : Math.floor(boundaryIndex) + 1);
+        double ratio = (boundary - base) / priceRange;
+        if (supply) {
+            ratio = 1 - ratio;
+        }
+        if (ratio <= 0 || ratio > 1) {
+            return Long.MAX_VALUE;
+        }
+        return startAfter + (long) Math.ceil(startWindow * Math.pow(ratio, 1 / EAGERNESS));
+    }
+
     /**
      * Construct a bid when the agent is executing a profile. This method also goes to the no-flexibility-state if the
      * program has finished.
@@ -227,77 +257,60 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
      * @return Bid update
      */
     private Bid constructBidForRunningProgram(MarketBasis marketBasis) {
-        Measurable<Duration> offset = Measure.valueOf(context.currentTimeMillis() - profileStartTime.getTime(), MS);
-        if (offset.longValue(MS) >= concatenatedCommodityForecast.getTotalDuration().longValue(MS)) {
+        long offset = context.currentTimeMillis() - profileStartTime.getTime();
+        if (offset >= forecastIndex.getTotalDurationMs()) {
             // Program finished
             goToNoFlexiblityState();
-            return Bid.flatDemand(marketBasis, 0);
+            return SharedBids.of(marketBasis).zero();
         } else {
             // Program currently running
-            Element<CommodityUncertainMeasurables> elementAtOffset = concatenatedCommodityForecast.getElementAtOffset(offset);
-            Measurable<Power> demand = elementAtOffset.getValue().get(Commodity.ELECTRICITY).getMean();
-            return Bid.flatDemand(marketBasis, demand.doubleValue(SI.WATT));
+            int index = forecastIndex.indexAtOffset(offset);
+            double demandWatt = forecastIndex.getDemandWatt(index);
+
+            // The bid changes at the end of the first element with a different demand, or when the program finishes
+            int last = index;
+            while (last + 1 < forecastIndex.size() && forecastIndex.getDemandWatt(last + 1) == demandWatt) {
+                last++;
+            }
+            scheduleBidUpdateAt(profileStartTime.getTime() + forecastIndex.getEndOffsetMs(last));
+            return SharedBids.of(marketBasis).flatDemand(demandWatt);
         }
     }
 
-    private Measurable<Power> getInitialDemand() {
-        return lastTimeshifterUpdate.getTimeShifterProfiles()
-                                    .get(0)
-                                    .getCommodityForecast()
-                                    .get(0)
-                                    .getValue()
-                                    .get(Commodity.ELECTRICITY)
-                                    .getMean();
+    private double getInitialDemandWatt() {
+        // The first element of the first profile
+        return forecastIndex.getDemandWatt(0);
+    }
+
+    @Override
+    protected Object getAllocationTable() {
+        return lastTimeshifterUpdate == null ? null : new FlexibleProgram(lastTimeshifterUpdate, forecastIndex);
     }
 
     @Override
-    protected void handlePriceUpdate(Price newPrice) {
+    protected void handlePriceUpdate(Price newPrice, BidState bidState) {
+        FlexibleProgram program = (FlexibleProgram) bidState.getAllocationTable();
         // Do an allocation?
-        if (lastTimeshifterUpdate != null && profileStartTime == null) {
+        if (program != null && program.update == lastTimeshifterUpdate && profileStartTime == null) {
             // We're in the flexibility period, the program hasn't started yet
-            double demandForCurrentPrice = getLastBidUpdate().getBid().getDemandAt(newPrice);
+            double demandForCurrentPrice = bidState.getBidUpdate().getBid().getDemandAt(newPrice);
             if (demandForCurrentPrice != 0) {
                 // Let's start!
-                final Date startTime = new Date(context.currentTimeMillis());
-                Date sequentialProfielStartTime = startTime;
-                List<SequentialProfileAllocation> seqAllocs = new ArrayList<SequentialProfileAllocation>(lastTimeshifterUpdate.getTimeShifterProfiles()
-                                                                                                                              .size());
-                for (SequentialProfile sp : lastTimeshifterUpdate.getTimeShifterProfiles()) {
-                    seqAllocs.add(new SequentialProfileAllocation(sp.getId(), sequentialProfielStartTime));
-                    sequentialProfielStartTime = TimeUtil.add(sequentialProfielStartTime, sp.getCommodityForecast()
-                                                                                            .getTotalDuration());
+                final long startTime = context.currentTimeMillis();
+                List<SequentialProfile> profiles = program.update.getTimeShifterProfiles();
+                List<SequentialProfileAllocation> seqAllocs = new ArrayList<SequentialProfileAllocation>(profiles.size());
+                for (int i = 0; i < profiles.size(); i++) {
+                    long profileStartOffsetMs = program.forecastIndex.getProfileStartOffsetMs(i);
+                    Date sequentialProfileStartTime = new Date(startTime + profileStartOffsetMs);
+                    seqAllocs.add(new SequentialProfileAllocation(profiles.get(i).getId(), sequentialProfileStartTime));
                 }
-                TimeShifterAllocation allocation = new TimeShifterAllocation(lastTimeshifterUpdate,
+                TimeShifterAllocation allocation = new TimeShifterAllocation(program.update,
                                                                              now(),
                                                                              false,
                                                                              seqAllocs);
-                messageSender.sendMessage(allocation);
+                sendAllocation(allocation);
                 // profileStartTime is set in the handleAllocationStatusUpdate method
             }
         }
     }
-
-    @Override
-    public void run() {
-        doBidUpdate();
-    }
-
-    private void scheduleBidUpdates(long intervalMs) {
-        cancelScheduledBidUpdates();
-        Measure<Long, Duration> interval = Measure.valueOf(intervalMs, MS);
-        scheduledFuture = context.scheduleAtFixedRate(this, interval, interval);
-    }
-
-    private void cancelScheduledBidUpdates() {
-        if (scheduledFuture != null) {
-            scheduledFuture.cancel(false);
-            scheduledFuture = null;
-        }
-    }
-
-    @Override
-    public void deactivate() {
-        cancelScheduledBidUpdates();
-        super.deactivate();
-    }
 }
@@ -37,8 +37,11 @@ public class UnconstrainedAgent extends FpaiAgent {
 
     private UnconstrainedRegistration registration;
     private Unconstrained unconstrainedHelper;
+    private final BufferBidShaper bidShaper = new BufferBidShaper();
     private BufferBid lastBid;
-    private ControlSpaceUpdate lastControlSpaceUpdate;
+    private final AllocationTracker allocationTracker = new AllocationTracker();
+    private volatile ControlSpaceUpdate lastControlSpaceUpdate;
+    private final ReachableRunningModeCache<RunningModeBehaviour> reachableRunningModes = new ReachableRunningModeCache<RunningModeBehaviour>();
 
     /**
      * Constructs an {@link UnconstrainedAgent} based on the given messageSender.
@@ -54,8 +57,15 @@ public class UnconstrainedAgent extends FpaiAgent {
         super(messageSender, agentId, desiredParentId);
     }
 
+    /**
+     * @return The {@link AllocationTracker} that decides which allocations are sent to the resource manager
+     */
+    public AllocationTracker getAllocationTracker() {
+        return allocationTracker;
+    }
+
     @Override
-    public void handleControlSpaceRegistration(ControlSpaceRegistration message) {
+    public synchronized void handleControlSpaceRegistration(ControlSpaceRegistration message) {
         if (message instanceof UnconstrainedRegistration) {
             if (registration == null) {
                 registration = (UnconstrainedRegistration) message;
@@ -69,14 +79,20 @@ public class UnconstrainedAgent extends FpaiAgent {
     }
 
     @Override
-    public void handleControlSpaceUpdate(ControlSpaceUpdate message) {
+    public synchronized void handleControlSpaceUpdate(ControlSpaceUpdate message) {
         if (message instanceof UnconstrainedSystemDescription) {
             unconstrainedHelper.processSystemDescription((UnconstrainedSystemDescription) message);
             lastControlSpaceUpdate = message;
+            allocationTracker.reset();
+            reachableRunningModes.invalidate();
             // A new SystemDescription does not trigger a bid update.
         } else if (message instanceof UnconstrainedStateUpdate) {
-            unconstrainedHelper.processStateUpdate((UnconstrainedStateUpdate) message);
+            UnconstrainedStateUpdate stateUpdate = (UnconstrainedStateUpdate) message;
+            unconstrainedHelper.processStateUpdate(stateUpdate);
             lastControlSpaceUpdate = message;
+            // ActuatorId is not relevant for the UnconstrainedAgent
+            allocationTracker.runningModeObserved(0, stateUpdate.getCurrentRunningModeId());
+            reachableRunningModes.setTimers(0, stateUpdate.getTimerUpdates());
             doBidUpdate();
         } else {
             LOGGER.info("This type of ControlSpaceUpdate is not supported.");
@@ -84,13 +100,14 @@ public class UnconstrainedAgent extends FpaiAgent {
     }
 
     @Override
-    public void handleAllocationStatusUpdate(AllocationStatusUpdate message) {
+    public synchronized void handleAllocationStatusUpdate(AllocationStatusUpdate message) {
         switch (message.getStatus()) {
         case ACCEPTED:
             // No action
             break;
         case REJECTED:
-            // No action
+            // The allocation is not in force, so the next one should be sent
+            allocationTracker.reset();
             break;
         case PROCESSING:
             // No action
@@ -103,13 +120,16 @@ public class UnconstrainedAgent extends FpaiAgent {
             break;
         }
         LOGGER.info("handleAllocationStatusUpdate not yet implemented");
+        reachableRunningModes.invalidate();
         doBidUpdate();
     }
 
     @Override
-    public void handleControlSpaceRevoke(ControlSpaceRevoke message) {
+    public synchronized void handleControlSpaceRevoke(ControlSpaceRevoke message) {
         // Return to no-flexibility-state
         lastControlSpaceUpdate = null;
+        allocationTracker.reset();
+        reachableRunningModes.clear();
         doBidUpdate();
     }
 
@@ -123,11 +143,19 @@ public class UnconstrainedAgent extends FpaiAgent {
             return null;
         }
         Date now = now();
-        Collection<RunningMode<RunningModeBehaviour>> runningModes = unconstrainedHelper.getReachableRunningModes(now);
+        Collection<RunningMode<RunningModeBehaviour>> runningModes = reachableRunningModes.get(0, now.getTime());
+        if (runningModes == null) {
+            runningModes = new ArrayList<RunningMode<RunningModeBehaviour>>(unconstrainedHelper.getReachableRunningModes(now));
+            reachableRunningModes.put(0, runningModes);
+        }
+        // The reachable running modes change when the next timer finishes
+        scheduleBidUpdateAt(reachableRunningModes.nextTimerExpiry(now.getTime() + 1));
 
         if (runningModes.isEmpty()) {
             LOGGER.error("No reachable running mode found, sending must off bid");
-            return Bid.flatDemand(marketBasis, 0);
+            // No running mode may be allocated on a price for this bid
+            lastBid = null;
+            return SharedBids.of(marketBasis).zero();
         }
 
         List<BufferBidElement> elements = new ArrayList<BufferBidElement>();
@@ -138,24 +166,35 @@ public class UnconstrainedAgent extends FpaiAgent {
                                                                .get(Commodity.ELECTRICITY)
                                                                .doubleValue(SI.WATT)));
         }
-        lastBid = new BufferBid(marketBasis, elements, BUFFER_BID_PRIORITY);
+        lastBid = new BufferBid(marketBasis, elements, BUFFER_BID_PRIORITY, bidShaper);
         LOGGER.info("Sending bid");
         return lastBid.toBid();
     }
 
     @Override
-    protected void handlePriceUpdate(Price newPrice) {
-        if (lastBid != null && lastControlSpaceUpdate != null) {
-            BufferBidElement runningMode = lastBid.runningModeForPrice(newPrice);
+    protected Object getAllocationTable() {
+        return lastBid;
+    }
+
+    @Override
+    protected void handlePriceUpdate(Price newPrice, BidState bidState) {
+        BufferBid bid = (BufferBid) bidState.getAllocationTable();
+        ControlSpaceUpdate controlSpaceUpdate = lastControlSpaceUpdate;
+        if (bid != null && controlSpaceUpdate != null) {
+            BufferBidElement runningMode = bid.runningModeForPrice(newPrice);
+            if (!allocationTracker.shouldSend(new BufferBidElement[] { runningMode }, context.currentTimeMillis())) {
+                LOGGER.debug("Running mode is already allocated, not sending allocation");
+                return;
+            }
             Date now = now();
 
             RunningModeSelector runningModeSelector = new RunningModeSelector(runningMode.getRunningModeId(), now);
-            Allocation allocation = new UnconstrainedAllocation((UnconstrainedUpdate) lastControlSpaceUpdate,
+            Allocation allocation = new UnconstrainedAllocation((UnconstrainedUpdate) controlSpaceUpdate,
                                                                 now,
                                                                 false,
                                                                 Collections.singleton(runningModeSelector));
             LOGGER.info("Sending allocation " + allocation);
-            messageSender.sendMessage(allocation);
+            sendAllocation(allocation);
         } else {
             LOGGER.info("Received price update, but there is no previous bid or there is no previous control space update. So no allocation can be constructed.");
         }
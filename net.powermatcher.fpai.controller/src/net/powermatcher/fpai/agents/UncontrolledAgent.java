@@ -18,15 +18,52 @@ import org.flexiblepower.ral.messages.ControlSpaceRegistration;
 import org.flexiblepower.ral.messages.ControlSpaceRevoke;
 import org.flexiblepower.ral.messages.ControlSpaceUpdate;
 import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.Constraint;
+import org.flexiblepower.ral.values.ConstraintList;
+import org.flexiblepower.ral.values.ConstraintListMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Agent of a device that can not be controlled. It bids the demand of the device at any price.
+ *
+ * When the device sends a forecast, the bid follows the forecast: as long as the measured demand stays within the
+ * uncertainty band of the current forecast element, the agent bids the mean of that element. A new bid is only made
+ * when a measurement leaves the band or when the next forecast element starts, so frequent measurements that agree
+ * with the forecast do not cause new bids.
+ *
+ * When the registration offers curtailment options, the bid depends on the price: production is curtailed below one
+ * price and consumption above another, using the options as limits of the absolute demand. The mapping from price
+ * index to curtailment level is calculated once per registration and market basis. Allocating the curtailment to the
+ * device is not supported yet.
+ */
 public class UncontrolledAgent extends FpaiAgent {
     private static final Logger logger = LoggerFactory.getLogger(UncontrolledAgent.class);
 
     private UncontrolledRegistration registration;
     private UncontrolledMeasurement lastUncontrolledMeasurement;
 
+    /** The limits of the absolute demand of the curtailment options in Watt, empty when there are none */
+    private double[] curtailmentLimits = new double[0];
+    /** Fraction of the price scale below which production is curtailed */
+    private double curtailProductionBelow = 0.2;
+    /** Fraction of the price scale above which consumption is curtailed */
+    private double curtailConsumptionAbove = 0.8;
+    /** The market basis of the cached curtailment tables */
+    private MarketBasis curtailmentMarketBasis = null;
+    private CurtailmentTable productionCurtailment = null;
+    private CurtailmentTable consumptionCurtailment = null;
+
+    /** Half width of the uncertainty band in standard deviations of the forecast */
+    private double bandStandardDeviations = 2;
+    /** Minimum half width of the uncertainty band as a fraction of the forecast mean */
+    private double minimumBandFraction = 0.1;
+    /** Minimum half width of the uncertainty band in Watt */
+    private double minimumBandWatt = 0;
+
+    /** The last forecast, or <code>null</code> when there is none */
+    private volatile UncontrolledForecastSeries forecast = null;
+
     /**
      * Constructs an UncontrolledAgent based on the given messageSender.
      *
@@ -49,6 +86,8 @@ public class UncontrolledAgent extends FpaiAgent {
                 if (!registration.supportsCommodity(Commodity.ELECTRICITY)) {
                     logger.error("PowerMatcher cannot support appliances which do not support electricity");
                     messageSender.destroyAgent();
+                } else {
+                    setCurtailmentLimits(curtailmentLimits(registration));
                 }
             } else {
                 logger.error("Received multiple ControlSpaceRegistrations, ignoring...");
@@ -58,13 +97,85 @@ public class UncontrolledAgent extends FpaiAgent {
         }
     }
 
+    /**
+     * Configures when a measurement agrees with the forecast. The band around the forecast mean has a half width of
+     * the largest of the three parameters. The configuration is used from the next forecast on.
+     *
+     * @param standardDeviations
+     *            The half width in standard deviations of the forecast
+     * @param minimumFraction
+     *            The minimum half width as a fraction of the forecast mean
+     * @param minimumWatt
+     *            The minimum half width in Watt
+     */
+    public synchronized void setForecastBand(double standardDeviations, double minimumFraction, double minimumWatt) {
+        if (standardDeviations < 0 || minimumFraction < 0 || minimumWatt < 0) {
+            throw new IllegalArgumentException("The width of the forecast band may not be negative");
+        }
+        bandStandardDeviations = standardDeviations;
+        minimumBandFraction = minimumFraction;
+        minimumBandWatt = minimumWatt;
+    }
+
+    /**
+     * Configures at which prices the device is curtailed, when its registration offers curtailment options. Below the
+     * production price the options are spread over the price steps, with the strongest curtailment at the lowest price;
+     * above the consumption price likewise with the strongest curtailment at the highest price.
+     *
+     * @param productionBelow
+     *            The fraction (between 0 and 1) on the price scale below which production is curtailed
+     * @param consumptionAbove
+     *            The fraction (between 0 and 1) on the price scale above which consumption is curtailed
+     */
+    public synchronized void setCurtailmentPrices(double productionBelow, double consumptionAbove) {
+        if (productionBelow < 0 || productionBelow > 1 || consumptionAbove < 0 || consumptionAbove > 1) {
+            throw new IllegalArgumentException("The curtailment prices must be fractions between 0 and 1");
+        }
+        curtailProductionBelow = productionBelow;
+        curtailConsumptionAbove = consumptionAbove;
+        curtailmentMarketBasis = null;
+    }
+
+    private synchronized void setCurtailmentLimits(double[] limits) {
+        curtailmentLimits = limits;
+        curtailmentMarketBasis = null;
+    }
+
+    /**
+     * @return The bounds of the electricity curtailment options of the registration in Watt
+     */
+    @SuppressWarnings("unchecked")
+    private static double[] curtailmentLimits(UncontrolledRegistration registration) {
+        ConstraintListMap options = registration.getCurtailmentOptions();
+        ConstraintList<Power> electricity = options == null ? null
+                                                           : (ConstraintList<Power>) options.get(Commodity.ELECTRICITY);
+        if (electricity == null) {
+            return new double[0];
+        }
+        double[] limits = new double[2 * electricity.size()];
+        int i = 0;
+        for (Constraint<Power> constraint : electricity) {
+            limits[i++] = constraint.getLowerBound().doubleValue(SI.WATT);
+            limits[i++] = constraint.getUpperBound().doubleValue(SI.WATT);
+        }
+        return limits;
+    }
+
     @Override
     public void handleControlSpaceUpdate(ControlSpaceUpdate message) {
         if (message instanceof UncontrolledMeasurement) {
             lastUncontrolledMeasurement = (UncontrolledMeasurement) message;
             doBidUpdate();
         } else if (message instanceof UncontrolledForecast) {
-            logger.debug("Received UncontrolledForecast, ignoring...");
+            UncontrolledForecast uncontrolledForecast = (UncontrolledForecast) message;
+            synchronized (this) {
+                forecast = new UncontrolledForecastSeries(uncontrolledForecast.getValidFrom().getTime(),
+                                                          uncontrolledForecast.getForecast(),
+                                                          bandStandardDeviations,
+                                                          minimumBandFraction,
+                                                          minimumBandWatt);
+            }
+            doBidUpdate();
         } else {
             logger.error("Received unknown type of ControlSpaceUpdate: " + message);
         }
@@ -77,28 +188,70 @@ public class UncontrolledAgent extends FpaiAgent {
 
     @Override
     public void handleControlSpaceRevoke(ControlSpaceRevoke message) {
-        // We don't support forecasts, so...
+        synchronized (this) {
+            forecast = null;
+            cancelBidUpdateAt();
+        }
+        doBidUpdate();
     }
 
     @Override
     protected Bid createBid(AgentEndpoint.Status status) {
         MarketBasis marketBasis = status.getMarketBasis();
-        if (lastUncontrolledMeasurement == null) {
-            return null;
-        } else {
+        double measured = Double.NaN;
+        if (lastUncontrolledMeasurement != null) {
             Measurable<Power> demand = lastUncontrolledMeasurement.getMeasurable().get(Commodity.ELECTRICITY);
             if (demand != null) {
-                return Bid.flatDemand(marketBasis, demand.doubleValue(SI.WATT));
-            } else {
-                return null;
+                measured = demand.doubleValue(SI.WATT);
+            }
+        }
+
+        UncontrolledForecastSeries forecast = this.forecast;
+        if (forecast != null && context != null) {
+            long now = context.currentTimeMillis();
+            // The bid is updated at the start of the next forecast element
+            long boundary = forecast.nextBoundaryAfter(now);
+            scheduleBidUpdateAt(boundary > now ? boundary : Long.MAX_VALUE);
+            int index = forecast.indexAt(now);
+            if (index >= 0) {
+                double mean = forecast.getMeanWatt(index);
+                if (!Double.isNaN(mean)
+                    && (Double.isNaN(measured) || Math.abs(measured - mean) <= forecast.getBandWatt(index))) {
+                    // The forecast explains the measurement
+                    return createCurtailableBid(marketBasis, mean);
+                }
             }
         }
 
+        if (Double.isNaN(measured)) {
+            return null;
+        } else {
+            return createCurtailableBid(marketBasis, measured);
+        }
+    }
+
+    private Bid createCurtailableBid(MarketBasis marketBasis, double demandWatt) {
+        if (curtailmentLimits.length == 0 || demandWatt == 0) {
+            return SharedBids.of(marketBasis).flatDemand(demandWatt);
+        }
+        if (!marketBasis.equals(curtailmentMarketBasis)) {
+            productionCurtailment = new CurtailmentTable(curtailmentLimits,
+                                                         marketBasis.getPriceSteps(),
+                                                         curtailProductionBelow,
+                                                         true);
+            consumptionCurtailment = new CurtailmentTable(curtailmentLimits,
+                                                          marketBasis.getPriceSteps(),
+                                                          curtailConsumptionAbove,
+                                                          false);
+            curtailmentMarketBasis = marketBasis;
+        }
+        CurtailmentTable table = demandWatt < 0 ? productionCurtailment : consumptionCurtailment;
+        return new Bid(marketBasis, table.curtailedDemand(demandWatt));
     }
 
     @Override
-    protected void handlePriceUpdate(Price newPrice) {
+    protected void handlePriceUpdate(Price newPrice, BidState bidState) {
         // Nothing to do for now
-        // TODO: support curtailment
+        // TODO: allocate the curtailment level of the price with the curtailment profiles of EFI 2.0
     }
 }
@@ -0,0 +1,132 @@
+package net.powermatcher.fpai.agents;
+
+import javax.measure.quantity.Power;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.ral.values.Commodity;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommodityUncertainMeasurables;
+import org.flexiblepower.ral.values.Profile.Element;
+import org.flexiblepower.ral.values.UncertainMeasure;
+
+/**
+ * The electricity forecast of an uncontrolled device, stored in primitive arrays indexed by time. For every element of
+ * the forecast it keeps the absolute end time, the mean demand and the width of the band around the mean in which a
+ * measurement is considered to agree with the forecast.
+ */
+public class UncontrolledForecastSeries {
+
+    private final long startTimeMs;
+    /** End of every element in milliseconds since the epoch. Ascending. */
+    private final long[] endTimesMs;
+    /** Mean electricity demand of every element in Watt */
+    private final double[] meanWatt;
+    /** Half the width of the uncertainty band of every element in Watt */
+    private final double[] bandWatt;
+
+    /**
+     * @param startTimeMs
+     *            The time at which the first element of the forecast starts
+     * @param forecast
+     *            The forecast
+     * @param standardDeviations
+     *            The half width of the band in standard deviations of the forecast
+     * @param minimumBandFraction
+     *            The minimum half width of the band as a fraction of the mean, used when the forecast has (almost) no
+     *            uncertainty
+     * @param minimumBandWatt
+     *            The minimum half width of the band in Watt
+     */
+    public UncontrolledForecastSeries(long startTimeMs,
+                                      CommodityForecast forecast,
+                                      double standardDeviations,
+                                      double minimumBandFraction,
+                                      double minimumBandWatt) {
+        this.startTimeMs = startTimeMs;
+        int size = forecast.size();
+        endTimesMs = new long[size];
+        meanWatt = new double[size];
+        bandWatt = new double[size];
+
+        int i = 0;
+        long time = startTimeMs;
+        for (Element<CommodityUncertainMeasurables> element : forecast) {
+            time += element.getDuration().longValue(SI.MILLI(SI.SECOND));
+            endTimesMs[i] = time;
+            UncertainMeasure<Power> electricity = element.getValue().get(Commodity.ELECTRICITY);
+            if (electricity == null) {
+                meanWatt[i] = Double.NaN;
+                bandWatt[i] = 0;
+            } else {
+                meanWatt[i] = electricity.getMean().doubleValue(SI.WATT);
+                double deviation = electricity.getStandardDeviation().doubleValue(SI.WATT);
+                bandWatt[i] = Math.max(Math.max(minimumBandWatt, minimumBandFraction * Math.abs(meanWatt[i])),
+                                       standardDeviations * deviation);
+            }
+            i++;
+        }
+    }
+
+    public int size() {
+        return endTimesMs.length;
+    }
+
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    public long getEndTimeMs() {
+        return endTimesMs.length == 0 ? startTimeMs : endTimesMs[endTimesMs.length - 1];
+    }
+
+    /**
+     * @param timeMs
+     *            A time in milliseconds since the epoch
+     * @return The index of the element that is active at the time, or -1 when the forecast does not cover the time
+     */
+    public int indexAt(long timeMs) {
+        if (timeMs < startTimeMs) {
+            return -1;
+        }
+        // Find the first element that ends after the time
+        int low = 0;
+        int high = endTimesMs.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endTimesMs[mid] <= timeMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < endTimesMs.length ? low : -1;
+    }
+
+    /**
+     * @param timeMs
+     *            A time in milliseconds since the epoch
+     * @return The first time after the given time at which a new element starts or the forecast ends, or -1 when there
+     *         is none
+     */
+    public long nextBoundaryAfter(long timeMs) {
+        if (timeMs < startTimeMs) {
+            return startTimeMs;
+        }
+        int index = indexAt(timeMs);
+        return index < 0 ? -1 : endTimesMs[index];
+    }
+
+    /**
+     * @return The mean demand of the element in Watt, or {@link Double#NaN} when the element has no electricity value
+     */
+    public double getMeanWatt(int index) {
+        return meanWatt[index];
+    }
+
+    /**
+     * @return Half the width of the uncertainty band of the element in Watt
+     */
+    public double getBandWatt(int index) {
+        return bandWatt[index];
+    }
+}
@@ -0,0 +1,220 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.flexiblepower.ral.messages.ControlSpaceUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, single-consumer queue of messages for one {@link AgentMessageHandler}. Messages are processed in order on
+ * a shared {@link Executor}; at most one task per mailbox is running or scheduled at any time, so many agents can share
+ * a few threads while the message order per agent is kept.
+ */
+public class AgentMailbox implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(AgentMailbox.class);
+
+    /** Maximum number of messages that are processed before the task yields its thread to other mailboxes. */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * Describes what happens when a message is offered to a full mailbox.
+     */
+    public enum OverflowPolicy {
+        /** The delivering thread waits until there is room in the mailbox. */
+        BLOCK,
+        /**
+         * A queued {@link ControlSpaceUpdate} of exactly the same type is removed, since the new one supersedes it. When
+         * there is no such update, the delivering thread waits until there is room in the mailbox.
+         */
+        COLLAPSE_UPDATES
+    }
+
+    /**
+     * Processes the messages taken from the mailbox.
+     */
+    public interface Consumer {
+        void process(Object message);
+    }
+
+    private final Consumer consumer;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    private int maximumQueueDepth = 0;
+    private long processedMessages = 0;
+    private long collapsedMessages = 0;
+    private long totalProcessingTimeNs = 0;
+    private long maximumProcessingTimeNs = 0;
+
+    /**
+     * @param consumer
+     *            The consumer that processes the messages
+     * @param executor
+     *            The (shared) executor on which the messages are processed
+     * @param capacity
+     *            The maximum number of queued messages
+     * @param overflowPolicy
+     *            What to do when a message is offered to a full mailbox
+     */
+    public AgentMailbox(Consumer consumer, Executor executor, int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the mailbox should be positive");
+        }
+        this.consumer = consumer;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds a message to the mailbox and makes sure it will be processed.
+     *
+     * @param message
+     *            The message that should be processed
+     * @return false when the mailbox has been closed and the message is dropped
+     */
+    public boolean offer(Object message) {
+        boolean schedule;
+        synchronized (this) {
+            while (!closed && queue.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.COLLAPSE_UPDATES && collapse(message)) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while waiting for room in the mailbox, dropping {}", message);
+                    return false;
+                }
+            }
+            if (closed) {
+                return false;
+            }
+
+            queue.add(message);
+            maximumQueueDepth = Math.max(maximumQueueDepth, queue.size());
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            schedule();
+        }
+        return true;
+    }
+
+    private boolean collapse(Object message) {
+        if (message instanceof ControlSpaceUpdate) {
+            for (Iterator<Object> it = queue.iterator(); it.hasNext();) {
+                if (it.next().getClass() == message.getClass()) {
+                    it.remove();
+                    collapsedMessages++;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            logger.error("Could not schedule the processing of the mailbox, dropping its messages", e);
+            close();
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Object message;
+            synchronized (this) {
+                message = queue.poll();
+                if (message == null) {
+                    scheduled = false;
+                    return;
+                }
+                notifyAll();
+            }
+
+            long start = System.nanoTime();
+            try {
+                consumer.process(message);
+            } catch (RuntimeException e) {
+                logger.error("Error while processing " + message + ": " + e.getMessage(), e);
+            } finally {
+                long duration = System.nanoTime() - start;
+                synchronized (this) {
+                    processedMessages++;
+                    totalProcessingTimeNs += duration;
+                    maximumProcessingTimeNs = Math.max(maximumProcessingTimeNs, duration);
+                }
+            }
+        }
+
+        // Give other mailboxes a chance, the remaining messages are processed in a new task
+        boolean reschedule;
+        synchronized (this) {
+            reschedule = !queue.isEmpty() && !closed;
+            scheduled = reschedule;
+        }
+        if (reschedule) {
+            schedule();
+        }
+    }
+
+    /**
+     * Drops all queued messages and refuses new ones.
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaximumQueueDepth() {
+        return maximumQueueDepth;
+    }
+
+    public synchronized long getProcessedMessages() {
+        return processedMessages;
+    }
+
+    public synchronized long getCollapsedMessages() {
+        return collapsedMessages;
+    }
+
+    public synchronized long getAverageProcessingTimeNs() {
+        return processedMessages == 0 ? 0 : totalProcessingTimeNs / processedMessages;
+    }
+
+    public synchronized long getMaximumProcessingTimeNs() {
+        return maximumProcessingTimeNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AgentMailbox [queueDepth=" + queue.size()
+               + ", maximumQueueDepth="
+               + maximumQueueDepth
+               + ", processedMessages="
+               + processedMessages
+               + ", collapsedMessages="
+               + collapsedMessages
+               + "]";
+    }
+}
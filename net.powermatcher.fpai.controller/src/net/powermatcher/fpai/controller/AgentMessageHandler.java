@@ -1,11 +1,12 @@
 package net.powermatcher.fpai.controller;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.Hashtable;
+import java.util.concurrent.Executor;
 
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.metrics.ControllerMetrics;
 
 import org.flexiblepower.messaging.Connection;
 import org.flexiblepower.messaging.MessageHandler;
@@ -25,7 +26,10 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
     private final PowerMatcherController controller;
     private final Connection connection;
     private final String agentPrefix, desiredParentId;
-    private final Class<? extends FpaiAgent> type;
+    private final FpaiAgentFactory agentFactory;
+
+    private final AgentMailbox mailbox;
+    private final OutboundMessageQueue outboundQueue;
 
     private volatile FpaiAgent agent;
     private volatile ServiceRegistration<?> registration;
@@ -35,28 +39,152 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
                                Connection connection,
                                String agentPrefix,
                                String desiredParentId,
-                               Class<? extends FpaiAgent> type) {
+                               FpaiAgentFactory agentFactory) {
+        this(bundleContext,
+             powerMatcherController,
+             connection,
+             agentPrefix,
+             desiredParentId,
+             agentFactory,
+             null,
+             0,
+             null);
+    }
+
+    public AgentMessageHandler(BundleContext bundleContext,
+                               PowerMatcherController powerMatcherController,
+                               Connection connection,
+                               String agentPrefix,
+                               String desiredParentId,
+                               FpaiAgentFactory agentFactory,
+                               Executor dispatchExecutor,
+                               int mailboxCapacity,
+                               AgentMailbox.OverflowPolicy overflowPolicy) {
+        this(bundleContext,
+             powerMatcherController,
+             connection,
+             agentPrefix,
+             desiredParentId,
+             agentFactory,
+             dispatchExecutor,
+             mailboxCapacity,
+             overflowPolicy,
+             null,
+             0);
+    }
+
+    /**
+     * Creates a handler that processes its messages through an {@link AgentMailbox} on the given executor, instead of
+     * on the thread that delivers them, and that optionally sends the messages of the agent on a separate executor.
+     *
+     * @param dispatchExecutor
+     *            The shared executor that processes the mailbox, or <code>null</code> to process messages on the
+     *            delivering thread
+     * @param mailboxCapacity
+     *            The maximum number of queued messages
+     * @param overflowPolicy
+     *            What to do when the mailbox is full
+     * @param senderExecutor
+     *            The shared executor that sends the messages of the agent through an {@link OutboundMessageQueue}, or
+     *            <code>null</code> to send them on the thread of the agent
+     * @param outboundCapacity
+     *            The maximum number of queued outbound messages
+     */
+    public AgentMessageHandler(BundleContext bundleContext,
+                               PowerMatcherController powerMatcherController,
+                               Connection connection,
+                               String agentPrefix,
+                               String desiredParentId,
+                               FpaiAgentFactory agentFactory,
+                               Executor dispatchExecutor,
+                               int mailboxCapacity,
+                               AgentMailbox.OverflowPolicy overflowPolicy,
+                               Executor senderExecutor,
+                               int outboundCapacity) {
         this.bundleContext = bundleContext;
         controller = powerMatcherController;
         this.connection = connection;
         this.agentPrefix = agentPrefix;
         this.desiredParentId = desiredParentId;
-        this.type = type;
+        this.agentFactory = agentFactory;
+
+        if (dispatchExecutor == null) {
+            mailbox = null;
+        } else {
+            mailbox = new AgentMailbox(new AgentMailbox.Consumer() {
+                @Override
+                public void process(Object message) {
+                    processMessage(message);
+                }
+            }, dispatchExecutor, mailboxCapacity, overflowPolicy);
+        }
+
+        if (senderExecutor == null) {
+            outboundQueue = null;
+        } else {
+            outboundQueue = new OutboundMessageQueue(new AgentMailbox.Consumer() {
+                @Override
+                public void process(Object message) {
+                    connection.sendMessage(message);
+                }
+            }, senderExecutor, outboundCapacity);
+        }
 
         agent = null;
         registration = null;
     }
 
     @Override
-    public synchronized void handleMessage(Object message) {
-        logger.debug("Handling message for {}: {}", type.getSimpleName(), String.valueOf(message));
+    public void handleMessage(Object message) {
+        if (mailbox == null) {
+            processMessage(message);
+        } else if (!mailbox.offer(message)) {
+            logger.debug("Dropped message for {} agent after the mailbox was closed", agentFactory.getPortName());
+        }
+    }
+
+    /**
+     * @return The mailbox through which the messages are processed, or <code>null</code> when they are processed on
+     *         the delivering thread
+     */
+    public AgentMailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * @return The queue through which the messages of the agent are sent, or <code>null</code> when they are sent on
+     *         the thread of the agent
+     */
+    public OutboundMessageQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    private synchronized void processMessage(Object message) {
+        logger.debug("Handling message for {} agent: {}", agentFactory.getPortName(), String.valueOf(message));
+        long start = ControllerMetrics.startTime();
+        dispatchMessage(message);
+        if (message != null) {
+            ControllerMetrics.recordMessageHandling(message.getClass(), start);
+        }
+    }
+
+    private void dispatchMessage(Object message) {
         if (message == null) {
             logger.error("Received a null message");
-        } else if (message instanceof ControlSpaceRegistration) {
+            return;
+        }
+        if (message instanceof ControlSpaceRegistration) {
             ControlSpaceRegistration registration = (ControlSpaceRegistration) message;
             createAgent(agentPrefix + registration.getResourceId());
-            agent.handleControlSpaceRegistration(registration);
-        } else if (agent != null) {
+            FpaiAgent agent = this.agent;
+            if (agent != null) {
+                agent.handleControlSpaceRegistration(registration);
+            }
+            return;
+        }
+
+        FpaiAgent agent = this.agent;
+        if (agent != null) {
             if (message instanceof ControlSpaceUpdate) {
                 agent.handleControlSpaceUpdate((ControlSpaceUpdate) message);
             } else if (message instanceof ControlSpaceRevoke) {
@@ -74,34 +202,26 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
     private void createAgent(String agentId) {
         if (agent == null) {
             try {
-                agent = type.getConstructor(AgentMessageSender.class, String.class, String.class)
-                            .newInstance(this, agentId, desiredParentId);
+                agent = agentFactory.createAgent(this, agentId, desiredParentId);
+                controller.configureAgent(agent);
 
                 Hashtable<String, Object> properties = new Hashtable<String, Object>();
                 properties.put("agentId", agentId);
                 properties.put("desiredParent", desiredParentId);
 
-                registration = bundleContext.registerService(new String[] { AgentEndpoint.class.getName(),
-                                                                           ObservableAgent.class.getName() },
-                                                             agent,
-                                                             properties);
-            } catch (IllegalArgumentException e) {
-                logger.error("Could not create new instance of " + type.getName() + ": " + e.getMessage(), e);
-                destroyAgent();
-            } catch (SecurityException e) {
-                logger.error("Could not create new instance of " + type.getName() + ": " + e.getMessage(), e);
-                destroyAgent();
-            } catch (InstantiationException e) {
-                logger.error("Could not create new instance of " + type.getName() + ": " + e.getMessage(), e);
-                destroyAgent();
-            } catch (IllegalAccessException e) {
-                logger.error("Could not create new instance of " + type.getName() + ": " + e.getMessage(), e);
-                destroyAgent();
-            } catch (InvocationTargetException e) {
-                logger.error("Could not create new instance of " + type.getName() + ": " + e.getMessage(), e);
-                destroyAgent();
-            } catch (NoSuchMethodException e) {
-                logger.error("Could not create new instance of " + type.getName() + ": " + e.getMessage(), e);
+                LocalConcentrator concentrator = controller.getLocalConcentrator();
+                if (concentrator == null) {
+                    registration = bundleContext.registerService(new String[] { AgentEndpoint.class.getName(),
+                                                                               ObservableAgent.class.getName() },
+                                                                 agent,
+                                                                 properties);
+                } else {
+                    // Only register for monitoring, the concentrator connects the agent itself
+                    registration = bundleContext.registerService(ObservableAgent.class.getName(), agent, properties);
+                    concentrator.addAgent(agent);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Could not create new " + agentFactory.getPortName() + " agent: " + e.getMessage(), e);
                 destroyAgent();
             }
         }
@@ -111,14 +231,20 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
      * (non-Javadoc)
      *
      * @see net.powermatcher.fpai.agents.AgentMessageSender#destroyAgent()
+     *
+     * Takes the same lock as the processing of messages, so the agent is not deactivated while it handles one.
      */
     @Override
-    public void destroyAgent() {
+    public synchronized void destroyAgent() {
         if (registration != null) {
             registration.unregister();
             registration = null;
         }
         if (agent != null) {
+            LocalConcentrator concentrator = controller.getLocalConcentrator();
+            if (concentrator != null) {
+                concentrator.removeAgent(agent);
+            }
             agent.deactivate();
             agent = null;
         }
@@ -126,6 +252,12 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
 
     @Override
     public void disconnected() {
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        if (outboundQueue != null) {
+            outboundQueue.close();
+        }
         controller.removeHandler(this);
     }
 
@@ -136,6 +268,10 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
      */
     @Override
     public void sendMessage(Object message) {
-        connection.sendMessage(message);
+        if (outboundQueue == null) {
+            connection.sendMessage(message);
+        } else if (!outboundQueue.offer(message)) {
+            logger.warn("Dropped outbound message of {} agent: {}", agentFactory.getPortName(), message);
+        }
     }
 }
@@ -0,0 +1,74 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.measure.quantity.Quantity;
+
+import net.powermatcher.fpai.agents.BufferAgent;
+import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.agents.TimeshifterAgent;
+import net.powermatcher.fpai.agents.UnconstrainedAgent;
+import net.powermatcher.fpai.agents.UncontrolledAgent;
+
+/**
+ * The built-in {@link FpaiAgentFactory}s for the EFI ports of the {@link PowerMatcherController}.
+ */
+public final class DefaultAgentFactories {
+    private DefaultAgentFactories() {
+    }
+
+    private abstract static class PortAgentFactory implements FpaiAgentFactory {
+        private final String portName;
+
+        PortAgentFactory(String portName) {
+            this.portName = portName;
+        }
+
+        @Override
+        public String getPortName() {
+            return portName;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + " [portName=" + portName + "]";
+        }
+    }
+
+    public static final FpaiAgentFactory BUFFER = new PortAgentFactory("buffer") {
+        @Override
+        public FpaiAgent createAgent(AgentMessageSender messageSender, String agentId, String desiredParentId) {
+            return new BufferAgent<Quantity>(messageSender, agentId, desiredParentId);
+        }
+    };
+
+    public static final FpaiAgentFactory TIMESHIFTER = new PortAgentFactory("timeshifter") {
+        @Override
+        public FpaiAgent createAgent(AgentMessageSender messageSender, String agentId, String desiredParentId) {
+            return new TimeshifterAgent(messageSender, agentId, desiredParentId);
+        }
+    };
+
+    public static final FpaiAgentFactory UNCONSTRAINED = new PortAgentFactory("unconstrained") {
+        @Override
+        public FpaiAgent createAgent(AgentMessageSender messageSender, String agentId, String desiredParentId) {
+            return new UnconstrainedAgent(messageSender, agentId, desiredParentId);
+        }
+    };
+
+    public static final FpaiAgentFactory UNCONTROLLED = new PortAgentFactory("uncontrolled") {
+        @Override
+        public FpaiAgent createAgent(AgentMessageSender messageSender, String agentId, String desiredParentId) {
+            return new UncontrolledAgent(messageSender, agentId, desiredParentId);
+        }
+    };
+
+    /**
+     * @return All built-in factories
+     */
+    public static List<FpaiAgentFactory> all() {
+        return Collections.unmodifiableList(Arrays.asList(BUFFER, TIMESHIFTER, UNCONSTRAINED, UNCONTROLLED));
+    }
+}
@@ -0,0 +1,30 @@
+package net.powermatcher.fpai.controller;
+
+import net.powermatcher.fpai.agents.FpaiAgent;
+
+/**
+ * Creates the {@link FpaiAgent} for a connection on a specific port of the {@link PowerMatcherController}. Factories
+ * for the standard EFI ports are built in; a factory that is registered as a service replaces the built-in factory for
+ * the same port.
+ */
+public interface FpaiAgentFactory {
+
+    /**
+     * @return The name of the port (e.g. "buffer") for which this factory creates agents
+     */
+    String getPortName();
+
+    /**
+     * Creates a new agent.
+     *
+     * @param messageSender
+     *            The {@link AgentMessageSender} that the agent should use to send messages
+     * @param agentId
+     *            The unique identifier of the agent
+     * @param desiredParentId
+     *            The identifier of the parent agent the agent wants to connect to
+     * @return The new agent
+     */
+    FpaiAgent createAgent(AgentMessageSender messageSender, String agentId, String desiredParentId);
+
+}
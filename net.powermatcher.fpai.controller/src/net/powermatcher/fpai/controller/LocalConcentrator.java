@@ -0,0 +1,442 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.BaseAgentEndpoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process concentrator for the agents of one {@link PowerMatcherController}. The local agents connect directly
+ * to this concentrator instead of to a remote matcher. Their bids are summed incrementally into a single aggregated
+ * bid (only the difference with the previous bid of the changed agent is applied), which is sent upstream at a fixed
+ * interval. Prices that are received from upstream are passed on to the local agents.
+ */
+public class LocalConcentrator extends BaseAgentEndpoint implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(LocalConcentrator.class);
+
+    /** Number of incremental updates after which the aggregated bid is recalculated to avoid rounding drift. */
+    private static final int REBUILD_INTERVAL = 1000;
+    /** Number of published bids for which the bid numbers of the local agents are remembered. */
+    private static final int SNAPSHOT_COUNT = 8;
+
+    /**
+     * The {@link Session} between the concentrator and one local agent.
+     */
+    private class LocalSession implements Session {
+        private final AgentEndpoint agent;
+        private final int slot;
+
+        LocalSession(AgentEndpoint agent, int slot) {
+            this.agent = agent;
+            this.slot = slot;
+        }
+
+        @Override
+        public void updateBid(BidUpdate newBid) {
+            handleBidUpdate(this, newBid);
+        }
+
+        @Override
+        public void updatePrice(PriceUpdate newPrice) {
+            agent.handlePriceUpdate(newPrice);
+        }
+
+        @Override
+        public String getAgentId() {
+            return agent.getAgentId();
+        }
+
+        @Override
+        public String getMatcherId() {
+            return LocalConcentrator.this.getAgentId();
+        }
+
+        @Override
+        public String getClusterId() {
+            return LocalConcentrator.this.getClusterId();
+        }
+
+        @Override
+        public String getSessionId() {
+            return getMatcherId() + ":" + getAgentId();
+        }
+
+        @Override
+        public MarketBasis getMarketBasis() {
+            return LocalConcentrator.this.marketBasis;
+        }
+
+        @Override
+        public void setMarketBasis(MarketBasis marketBasis) {
+            // The market basis is determined by the upstream matcher
+        }
+
+        @Override
+        public void disconnect() {
+            removeAgent(agent);
+        }
+    }
+
+    /**
+     * The bid numbers of the local agents at the moment an aggregated bid was published.
+     */
+    private static class Snapshot {
+        final LocalSession[] sessions;
+        final int[] bidNumbers;
+        int bidNumber;
+
+        Snapshot(LocalSession[] sessions, int[] bidNumbers) {
+            this.sessions = sessions;
+            this.bidNumbers = bidNumbers;
+        }
+    }
+
+    private final long bidUpdateIntervalMs;
+
+    /** The sessions of the local agents, indexed by slot. Empty slots are null. */
+    private LocalSession[] sessions = new LocalSession[16];
+    /** The demand of the last bid of each local agent, indexed by slot. Null means no bid has been received. */
+    private double[][] demands = new double[16][];
+    /** The bid number of the last bid of each local agent, indexed by slot. */
+    private int[] bidNumbers = new int[16];
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private final Map<AgentEndpoint, LocalSession> sessionsByAgent = new IdentityHashMap<AgentEndpoint, LocalSession>();
+    private int usedSlots = 0;
+
+    private MarketBasis marketBasis;
+    private double[] aggregatedDemand;
+    private boolean changed;
+    private int updatesSinceRebuild;
+
+    private final ArrayDeque<Snapshot> snapshots = new ArrayDeque<Snapshot>();
+    /** The snapshot of the bid that is being published, whose bid number is not known yet. Null when not publishing. */
+    private Snapshot publishing;
+    private ScheduledFuture<?> scheduledFuture;
+
+    /**
+     * @param agentId
+     *            The identifier of the concentrator
+     * @param desiredParentId
+     *            The identifier of the upstream matcher
+     * @param bidUpdateIntervalMs
+     *            The interval in milliseconds at which a changed aggregated bid is sent upstream
+     */
+    public LocalConcentrator(String agentId, String desiredParentId, long bidUpdateIntervalMs) {
+        if (bidUpdateIntervalMs <= 0) {
+            throw new IllegalArgumentException("The bid update interval should be positive");
+        }
+        this.bidUpdateIntervalMs = bidUpdateIntervalMs;
+        init(agentId, desiredParentId);
+    }
+
+    /**
+     * Adds a local agent. It is connected immediately when this concentrator is connected upstream.
+     *
+     * @param agent
+     *            The agent that should be connected to this concentrator
+     */
+    public void addAgent(AgentEndpoint agent) {
+        LocalSession session;
+        boolean connect;
+        synchronized (this) {
+            int slot;
+            if (freeSlots.isEmpty()) {
+                slot = usedSlots++;
+                ensureCapacity(usedSlots);
+            } else {
+                slot = freeSlots.pop();
+            }
+            session = new LocalSession(agent, slot);
+            sessions[slot] = session;
+            sessionsByAgent.put(agent, session);
+            demands[slot] = null;
+            connect = marketBasis != null;
+        }
+        if (connect) {
+            connectLocalAgent(session);
+        }
+    }
+
+    /**
+     * Removes a local agent and removes its last bid from the aggregated bid.
+     *
+     * @param agent
+     *            The agent that should be disconnected
+     */
+    public void removeAgent(AgentEndpoint agent) {
+        LocalSession session;
+        synchronized (this) {
+            session = sessionsByAgent.remove(agent);
+            if (session != null) {
+                applyDemand(session.slot, null);
+                sessions[session.slot] = null;
+                freeSlots.push(session.slot);
+            }
+        }
+        if (session != null) {
+            agent.matcherEndpointDisconnected(session);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (sessions.length < capacity) {
+            int newLength = Math.max(capacity, sessions.length * 2);
+            LocalSession[] newSessions = new LocalSession[newLength];
+            System.arraycopy(sessions, 0, newSessions, 0, sessions.length);
+            sessions = newSessions;
+            double[][] newDemands = new double[newLength][];
+            System.arraycopy(demands, 0, newDemands, 0, demands.length);
+            demands = newDemands;
+            int[] newBidNumbers = new int[newLength];
+            System.arraycopy(bidNumbers, 0, newBidNumbers, 0, bidNumbers.length);
+            bidNumbers = newBidNumbers;
+        }
+    }
+
+    private void connectLocalAgent(LocalSession session) {
+        if (context != null) {
+            session.agent.setContext(context);
+        }
+        session.agent.connectToMatcher(session);
+    }
+
+    @Override
+    public void connectToMatcher(Session session) {
+        super.connectToMatcher(session);
+        List<LocalSession> toConnect = new ArrayList<LocalSession>();
+        synchronized (this) {
+            marketBasis = session.getMarketBasis();
+            aggregatedDemand = new double[marketBasis.getPriceSteps()];
+            changed = true;
+            for (int slot = 0; slot < usedSlots; slot++) {
+                demands[slot] = null;
+                if (sessions[slot] != null) {
+                    toConnect.add(sessions[slot]);
+                }
+            }
+            if (scheduledFuture != null) {
+                // Connected again without a disconnect, the previous task would keep publishing
+                scheduledFuture.cancel(false);
+                scheduledFuture = null;
+            }
+            if (context == null) {
+                logger.warn("Local concentrator {} has no context, its aggregated bid is not published", getAgentId());
+            } else {
+                Measure<Long, Duration> interval = Measure.valueOf(bidUpdateIntervalMs, SI.MILLI(SI.SECOND));
+                scheduledFuture = context.scheduleAtFixedRate(this, interval, interval);
+            }
+        }
+        for (LocalSession localSession : toConnect) {
+            connectLocalAgent(localSession);
+        }
+    }
+
+    @Override
+    public void matcherEndpointDisconnected(Session session) {
+        List<LocalSession> toDisconnect = new ArrayList<LocalSession>();
+        synchronized (this) {
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+                scheduledFuture = null;
+            }
+            marketBasis = null;
+            aggregatedDemand = null;
+            snapshots.clear();
+            publishing = null;
+            for (int slot = 0; slot < usedSlots; slot++) {
+                demands[slot] = null;
+                if (sessions[slot] != null) {
+                    toDisconnect.add(sessions[slot]);
+                }
+            }
+        }
+        for (LocalSession localSession : toDisconnect) {
+            localSession.agent.matcherEndpointDisconnected(localSession);
+        }
+        super.matcherEndpointDisconnected(session);
+    }
+
+    synchronized void handleBidUpdate(LocalSession session, BidUpdate bidUpdate) {
+        if (sessions[session.slot] != session) {
+            LOGGER.warn("Received a bid from agent {} that is no longer connected", session.getAgentId());
+        } else if (marketBasis == null || !marketBasis.equals(bidUpdate.getBid().getMarketBasis())) {
+            LOGGER.warn("Ignoring bid from agent {} with a different market basis", session.getAgentId());
+        } else {
+            applyDemand(session.slot, bidUpdate.getBid().getDemand());
+            bidNumbers[session.slot] = bidUpdate.getBidNumber();
+        }
+    }
+
+    /**
+     * Replaces the demand of one slot in the aggregated bid, by only adding the difference with the previous demand.
+     */
+    private void applyDemand(int slot, double[] demand) {
+        double[] previous = demands[slot];
+        demands[slot] = demand;
+        if (aggregatedDemand == null || (previous == null && demand == null)) {
+            return;
+        }
+
+        if (++updatesSinceRebuild >= REBUILD_INTERVAL) {
+            rebuild();
+        } else if (previous == null) {
+            for (int i = 0; i < aggregatedDemand.length; i++) {
+                aggregatedDemand[i] += demand[i];
+            }
+        } else if (demand == null) {
+            for (int i = 0; i < aggregatedDemand.length; i++) {
+                aggregatedDemand[i] -= previous[i];
+            }
+        } else {
+            for (int i = 0; i < aggregatedDemand.length; i++) {
+                aggregatedDemand[i] += demand[i] - previous[i];
+            }
+        }
+        changed = true;
+    }
+
+    private void rebuild() {
+        updatesSinceRebuild = 0;
+        for (int i = 0; i < aggregatedDemand.length; i++) {
+            aggregatedDemand[i] = 0;
+        }
+        for (int slot = 0; slot < usedSlots; slot++) {
+            double[] demand = demands[slot];
+            if (demand != null) {
+                for (int i = 0; i < aggregatedDemand.length; i++) {
+                    aggregatedDemand[i] += demand[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the aggregated bid upstream if it has changed. Called at the configured bid update interval.
+     */
+    @Override
+    public void run() {
+        Bid bid;
+        Snapshot snapshot;
+        synchronized (this) {
+            if (!changed || aggregatedDemand == null) {
+                return;
+            }
+            changed = false;
+            double[] demand = aggregatedDemand.clone();
+            // Rounding differences may never make the aggregated bid increasing
+            for (int i = 1; i < demand.length; i++) {
+                if (demand[i] > demand[i - 1]) {
+                    demand[i] = demand[i - 1];
+                }
+            }
+            bid = new Bid(marketBasis, demand);
+            snapshot = takeSnapshot();
+        }
+
+        BidUpdate lastBidUpdate = getLastBidUpdate();
+        if (lastBidUpdate != null && bid.equals(lastBidUpdate.getBid())) {
+            // The local agents have bid again, but their changes cancel out. Prices on the published bid are passed on
+            // with their new bid numbers.
+            synchronized (this) {
+                snapshot.bidNumber = lastBidUpdate.getBidNumber();
+                addSnapshot(snapshot);
+            }
+            return;
+        }
+        synchronized (this) {
+            publishing = snapshot;
+        }
+        // Publish without holding the lock, the upstream matcher may respond with a price right away
+        BidUpdate bidUpdate = publishBid(bid);
+        synchronized (this) {
+            snapshot.bidNumber = bidUpdate.getBidNumber();
+            if (publishing == snapshot) {
+                publishing = null;
+                addSnapshot(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Remembers a snapshot, replacing an older one with the same bid number.
+     */
+    private void addSnapshot(Snapshot snapshot) {
+        for (Iterator<Snapshot> it = snapshots.iterator(); it.hasNext();) {
+            if (it.next().bidNumber == snapshot.bidNumber) {
+                it.remove();
+            }
+        }
+        if (snapshots.size() >= SNAPSHOT_COUNT) {
+            snapshots.removeFirst();
+        }
+        snapshots.addLast(snapshot);
+    }
+
+    private Snapshot takeSnapshot() {
+        int count = 0;
+        LocalSession[] snapshotSessions = new LocalSession[usedSlots];
+        int[] snapshotBidNumbers = new int[usedSlots];
+        for (int slot = 0; slot < usedSlots; slot++) {
+            if (sessions[slot] != null && demands[slot] != null) {
+                snapshotSessions[count] = sessions[slot];
+                snapshotBidNumbers[count] = bidNumbers[slot];
+                count++;
+            }
+        }
+        return new Snapshot(snapshotSessions, snapshotBidNumbers);
+    }
+
+    @Override
+    public void handlePriceUpdate(PriceUpdate priceUpdate) {
+        super.handlePriceUpdate(priceUpdate);
+        Snapshot snapshot = null;
+        synchronized (this) {
+            for (Iterator<Snapshot> it = snapshots.descendingIterator(); it.hasNext();) {
+                Snapshot s = it.next();
+                if (s.bidNumber == priceUpdate.getBidNumber()) {
+                    snapshot = s;
+                    break;
+                }
+            }
+            if (snapshot == null && publishing != null
+                && (snapshots.isEmpty() || priceUpdate.getBidNumber() > snapshots.getLast().bidNumber)) {
+                // Bid numbers increase, so a newer number belongs to the bid that is being published
+                snapshot = publishing;
+            }
+        }
+
+        if (snapshot == null) {
+            LOGGER.info("Ignoring price update on unknown bid {}", priceUpdate.getBidNumber());
+            return;
+        }
+        // Pass the price on without holding the lock, the agents may send a new bid while handling it
+        for (int i = 0; i < snapshot.sessions.length && snapshot.sessions[i] != null; i++) {
+            snapshot.sessions[i].updatePrice(new PriceUpdate(priceUpdate.getPrice(), snapshot.bidNumbers[i]));
+        }
+    }
+
+    /**
+     * @return The number of local agents connected to this concentrator
+     */
+    public synchronized int getAgentCount() {
+        return usedSlots - freeSlots.size();
+    }
+}
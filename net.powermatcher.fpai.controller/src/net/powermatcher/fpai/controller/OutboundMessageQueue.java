@@ -0,0 +1,216 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.flexiblepower.ral.messages.Allocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue of messages from an agent to its resource manager. The messages are sent on a (shared) sender
+ * {@link Executor}, so the agent never waits for a slow resource manager. When an {@link Allocation} is queued directly
+ * after another allocation that has not been sent yet, it replaces that allocation, since only the latest one matters.
+ * When the queue is full, new messages are dropped, except allocations: those are never dropped, since the agent
+ * already recorded them as sent. An older message is dropped to make room for them instead.
+ */
+public class OutboundMessageQueue implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundMessageQueue.class);
+
+    /** Maximum number of messages that are sent before the task yields its thread to other queues. */
+    private static final int BATCH_SIZE = 32;
+
+    private static final class Entry {
+        final Object message;
+        final long enqueuedNs;
+
+        Entry(Object message, long enqueuedNs) {
+            this.message = message;
+            this.enqueuedNs = enqueuedNs;
+        }
+    }
+
+    private final AgentMailbox.Consumer sender;
+    private final Executor executor;
+    private final int capacity;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    private long sentMessages = 0;
+    private long collapsedMessages = 0;
+    private long droppedMessages = 0;
+    private long totalQueueLatencyNs = 0;
+    private long maximumQueueLatencyNs = 0;
+
+    /**
+     * @param sender
+     *            Sends a message to the resource manager, e.g. through its connection
+     * @param executor
+     *            The (shared) executor on which the messages are sent
+     * @param capacity
+     *            The maximum number of queued messages
+     */
+    public OutboundMessageQueue(AgentMailbox.Consumer sender, Executor executor, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the queue should be positive");
+        }
+        this.sender = sender;
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a message for sending. This method never blocks.
+     *
+     * @param message
+     *            The message that should be sent
+     * @return false when the queue has been closed, or when it is full and the message is dropped. An
+     *         {@link Allocation} is only dropped when the queue has been closed.
+     */
+    public boolean offer(Object message) {
+        boolean schedule;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+
+            Entry entry = new Entry(message, System.nanoTime());
+            if (message instanceof Allocation && !queue.isEmpty() && queue.peekLast().message instanceof Allocation) {
+                // The previous allocation has not been sent yet and is superseded by this one
+                queue.pollLast();
+                collapsedMessages++;
+            } else if (queue.size() >= capacity && message instanceof Allocation) {
+                Entry evicted = evictForAllocation();
+                droppedMessages++;
+                logger.warn("Outbound queue is full, dropping {} to queue an allocation", evicted.message);
+            } else if (queue.size() >= capacity) {
+                droppedMessages++;
+                logger.warn("Outbound queue is full, dropping {}", message);
+                return false;
+            }
+            queue.add(entry);
+
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest queued message that is not an allocation, or the oldest allocation when there are only
+     * allocations (which are superseded by the new one anyway).
+     *
+     * @return The removed entry
+     */
+    private Entry evictForAllocation() {
+        Iterator<Entry> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!(entry.message instanceof Allocation)) {
+                iterator.remove();
+                return entry;
+            }
+        }
+        return queue.poll();
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            logger.error("Could not schedule the sending of messages, dropping them", e);
+            close();
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Entry entry;
+            synchronized (this) {
+                entry = queue.poll();
+                if (entry == null) {
+                    scheduled = false;
+                    return;
+                }
+                long latency = System.nanoTime() - entry.enqueuedNs;
+                sentMessages++;
+                totalQueueLatencyNs += latency;
+                maximumQueueLatencyNs = Math.max(maximumQueueLatencyNs, latency);
+            }
+
+            try {
+                sender.process(entry.message);
+            } catch (RuntimeException e) {
+                logger.error("Error while sending " + entry.message + ": " + e.getMessage(), e);
+            }
+        }
+
+        // Give other queues a chance, the remaining messages are sent in a new task
+        boolean reschedule;
+        synchronized (this) {
+            reschedule = !queue.isEmpty() && !closed;
+            scheduled = reschedule;
+        }
+        if (reschedule) {
+            schedule();
+        }
+    }
+
+    /**
+     * Drops all queued messages and refuses new ones.
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getSentMessages() {
+        return sentMessages;
+    }
+
+    public synchronized long getCollapsedMessages() {
+        return collapsedMessages;
+    }
+
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return The average time in nanoseconds between queueing and sending a message
+     */
+    public synchronized long getAverageQueueLatencyNs() {
+        return sentMessages == 0 ? 0 : totalQueueLatencyNs / sentMessages;
+    }
+
+    /**
+     * @return The maximum time in nanoseconds between queueing and sending a message
+     */
+    public synchronized long getMaximumQueueLatencyNs() {
+        return maximumQueueLatencyNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OutboundMessageQueue [queueDepth=" + queue.size()
+               + ", sentMessages="
+               + sentMessages
+               + ", collapsedMessages="
+               + collapsedMessages
+               + ", droppedMessages="
+               + droppedMessages
+               + "]";
+    }
+}
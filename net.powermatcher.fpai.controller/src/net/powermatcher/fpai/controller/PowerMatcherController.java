@@ -1,12 +1,20 @@
 package net.powermatcher.fpai.controller;
 
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.fpai.agents.BufferAgent;
+import net.powermatcher.fpai.agents.BufferBidCache;
 import net.powermatcher.fpai.agents.FpaiAgent;
-import net.powermatcher.fpai.agents.TimeshifterAgent;
 import net.powermatcher.fpai.agents.UnconstrainedAgent;
 import net.powermatcher.fpai.agents.UncontrolledAgent;
 
@@ -15,12 +23,19 @@ import org.flexiblepower.messaging.Connection;
 import org.flexiblepower.messaging.Endpoint;
 import org.flexiblepower.messaging.MessageHandler;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Component(immediate = true, service = { Endpoint.class })
 @Designate(ocd = PowerMatcherController.Config.class, factory = true)
@@ -33,11 +48,96 @@ public class PowerMatcherController implements EfiControllerManager {
 
         @AttributeDefinition()
         String agentIdPrefix() default "fpai-agent-";
+
+        @AttributeDefinition(required = false,
+                             description = "Maximum number of bids each buffer agent caches (0 disables the cache)")
+        int bufferBidCacheSize() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "Quantization step of the fill level used as key of the buffer bid cache")
+        double bufferBidCacheFillLevelStep() default 0.1;
+
+        @AttributeDefinition(required = false,
+                             description = "Quantization step of the priority used as key of the buffer bid cache")
+        double bufferBidCachePriorityStep() default 0.01;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum time between two bids of an agent in milliseconds (0 publishes every bid immediately)")
+        long minimumBidIntervalMs() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum change in demand (in Watt) before an agent publishes a new bid (0 publishes every changed bid)")
+        double bidDemandThreshold() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "Time in milliseconds after which a bid held back by the demand threshold is published anyway (longer delays publish fewer bids, but the published bid lags the demand for longer)")
+        long bidDemandThresholdDelayMs() default FpaiAgent.DEFAULT_THRESHOLD_DELAY_MS;
+
+        @AttributeDefinition(required = false,
+                             description = "Time in milliseconds after which buffer and unconstrained agents send an unchanged allocation again (0 sends every allocation)")
+        long allocationReassertPeriodMs() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "Half width of the band around the forecast of uncontrolled devices, in standard deviations, in which measurements do not cause a new bid")
+        double uncontrolledForecastBandDeviations() default 2;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum half width of the band around the forecast of uncontrolled devices, as a fraction of the forecast demand")
+        double uncontrolledForecastBandFraction() default 0.1;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum half width of the band around the forecast of uncontrolled devices in Watt")
+        double uncontrolledForecastBandWatt() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "Fraction of the price scale below which the production of curtailable uncontrolled devices is curtailed")
+        double uncontrolledCurtailProductionBelow() default 0.2;
+
+        @AttributeDefinition(required = false,
+                             description = "Fraction of the price scale above which the consumption of curtailable uncontrolled devices is curtailed")
+        double uncontrolledCurtailConsumptionAbove() default 0.8;
+
+        @AttributeDefinition(required = false,
+                             description = "Number of threads that process the mailboxes of the agents (0 processes messages on the delivering thread)")
+        int dispatchThreads() default 0;
+
+        @AttributeDefinition(required = false, description = "Maximum number of queued messages per agent")
+        int mailboxCapacity() default 1000;
+
+        @AttributeDefinition(required = false,
+                             description = "What happens when the mailbox of an agent is full",
+                             options = { @Option(label = "Wait for room", value = "BLOCK"),
+                                         @Option(label = "Replace a queued update of the same type",
+                                                 value = "COLLAPSE_UPDATES") })
+        String mailboxOverflowPolicy() default "COLLAPSE_UPDATES";
+
+        @AttributeDefinition(required = false,
+                             description = "Number of threads that send the messages of the agents to the resource managers (0 sends them on the thread of the agent)")
+        int senderThreads() default 0;
+
+        @AttributeDefinition(required = false, description = "Maximum number of queued outbound messages per agent")
+        int outboundQueueCapacity() default 100;
+
+        @AttributeDefinition(required = false,
+                             description = "Connect the agents to an in-process concentrator, which sends a single aggregated bid to the desired parent")
+        boolean useLocalConcentrator() default false;
+
+        @AttributeDefinition(required = false, description = "Agent identifier of the in-process concentrator")
+        String localConcentratorId() default "fpai-concentrator";
+
+        @AttributeDefinition(required = false,
+                             description = "Interval in milliseconds at which the in-process concentrator sends its aggregated bid")
+        long localConcentratorBidIntervalMs() default 1000;
     }
 
+    private static final Logger logger = LoggerFactory.getLogger(PowerMatcherController.class);
+
     private BundleContext bundleContext;
 
-    private final Set<AgentMessageHandler> activeHandlers = new HashSet<AgentMessageHandler>();
+    private final Set<AgentMessageHandler> activeHandlers = Collections.newSetFromMap(new ConcurrentHashMap<AgentMessageHandler, Boolean>());
+
+    /** The factory that creates the agents for each port name */
+    private final ConcurrentMap<String, FpaiAgentFactory> agentFactories = new ConcurrentHashMap<String, FpaiAgentFactory>();
 
     private final AtomicInteger agentId = new AtomicInteger(1);
 
@@ -45,19 +145,120 @@ public class PowerMatcherController implements EfiControllerManager {
 
     private String desiredParent;
 
+    private Config config;
+
+    private ExecutorService dispatchExecutor;
+
+    private AgentMailbox.OverflowPolicy overflowPolicy;
+
+    private ExecutorService senderExecutor;
+
+    private LocalConcentrator localConcentrator;
+
+    private ServiceRegistration<?> localConcentratorRegistration;
+
+    public PowerMatcherController() {
+        for (FpaiAgentFactory factory : DefaultAgentFactories.all()) {
+            agentFactories.put(factory.getPortName(), factory);
+        }
+    }
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    public void addAgentFactory(FpaiAgentFactory factory) {
+        agentFactories.put(factory.getPortName(), factory);
+    }
+
+    public void removeAgentFactory(FpaiAgentFactory factory) {
+        if (agentFactories.remove(factory.getPortName(), factory)) {
+            // Fall back to the built-in factory, if there is one
+            for (FpaiAgentFactory defaultFactory : DefaultAgentFactories.all()) {
+                if (defaultFactory.getPortName().equals(factory.getPortName())) {
+                    agentFactories.putIfAbsent(defaultFactory.getPortName(), defaultFactory);
+                }
+            }
+        }
+    }
+
     @Activate
     public void activate(BundleContext context, final Config config) throws Exception {
         bundleContext = context;
+        this.config = config;
         agentIdPrefix = config.agentIdPrefix();
         desiredParent = config.desiredParent();
+
+        if (config.dispatchThreads() > 0) {
+            overflowPolicy = overflowPolicy(config.mailboxOverflowPolicy());
+            dispatchExecutor = Executors.newFixedThreadPool(config.dispatchThreads(), new ThreadFactory() {
+                private final AtomicInteger threadId = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PowerMatcher agent dispatcher " + threadId.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        if (config.senderThreads() > 0) {
+            senderExecutor = Executors.newFixedThreadPool(config.senderThreads(), new ThreadFactory() {
+                private final AtomicInteger threadId = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PowerMatcher message sender " + threadId.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        if (config.useLocalConcentrator()) {
+            localConcentrator = new LocalConcentrator(config.localConcentratorId(),
+                                                      desiredParent,
+                                                      config.localConcentratorBidIntervalMs());
+
+            Hashtable<String, Object> properties = new Hashtable<String, Object>();
+            properties.put("agentId", config.localConcentratorId());
+            properties.put("desiredParent", desiredParent);
+            localConcentratorRegistration = context.registerService(new String[] { AgentEndpoint.class.getName(),
+                                                                                   ObservableAgent.class.getName() },
+                                                                    localConcentrator,
+                                                                    properties);
+
+            // The local agents connect to the concentrator instead
+            desiredParent = config.localConcentratorId();
+        }
     }
 
     @Deactivate
     public void deactivate() {
-        synchronized (activeHandlers) {
-            for (AgentMessageSender handler : activeHandlers.toArray(new AgentMessageHandler[activeHandlers.size()])) {
-                removeHandler(handler);
-            }
+        for (AgentMessageSender handler : activeHandlers) {
+            removeHandler(handler);
+        }
+        if (dispatchExecutor != null) {
+            dispatchExecutor.shutdown();
+            dispatchExecutor = null;
+        }
+        if (senderExecutor != null) {
+            senderExecutor.shutdown();
+            senderExecutor = null;
+        }
+        if (localConcentratorRegistration != null) {
+            localConcentratorRegistration.unregister();
+            localConcentratorRegistration = null;
+        }
+        localConcentrator = null;
+    }
+
+    private static AgentMailbox.OverflowPolicy overflowPolicy(String name) {
+        try {
+            return AgentMailbox.OverflowPolicy.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown mailbox overflow policy {}, using {}",
+                        name,
+                        AgentMailbox.OverflowPolicy.COLLAPSE_UPDATES);
+            return AgentMailbox.OverflowPolicy.COLLAPSE_UPDATES;
         }
     }
 
@@ -65,16 +266,8 @@ public class PowerMatcherController implements EfiControllerManager {
     public MessageHandler onConnect(Connection connection) {
         String agentId = agentIdPrefix + this.agentId.getAndIncrement() + "-";
 
-        Class<? extends FpaiAgent> clazz = null;
-        if ("buffer".equals(connection.getPort().name())) {
-            clazz = BufferAgent.class;
-        } else if ("timeshifter".equals(connection.getPort().name())) {
-            clazz = TimeshifterAgent.class;
-        } else if ("unconstrained".equals(connection.getPort().name())) {
-            clazz = UnconstrainedAgent.class;
-        } else if ("uncontrolled".equals(connection.getPort().name())) {
-            clazz = UncontrolledAgent.class;
-        } else {
+        FpaiAgentFactory agentFactory = agentFactories.get(connection.getPort().name());
+        if (agentFactory == null) {
             // Wut?
             throw new IllegalArgumentException("Unknown type of connection");
         }
@@ -84,16 +277,61 @@ public class PowerMatcherController implements EfiControllerManager {
                                                                  connection,
                                                                  agentId,
                                                                  desiredParent,
-                                                                 clazz);
-        synchronized (activeHandlers) {
-            activeHandlers.add(newHandler);
-        }
+                                                                 agentFactory,
+                                                                 dispatchExecutor,
+                                                                 config.mailboxCapacity(),
+                                                                 overflowPolicy,
+                                                                 senderExecutor,
+                                                                 config.outboundQueueCapacity());
+        activeHandlers.add(newHandler);
         return newHandler;
     }
 
+    /**
+     * Applies the optional features that have been configured for this controller to a newly created agent.
+     *
+     * @param agent
+     *            The agent that has just been created
+     */
+    void configureAgent(FpaiAgent agent) {
+        if (config.minimumBidIntervalMs() > 0 || config.bidDemandThreshold() > 0) {
+            agent.setBidCoalescing(config.minimumBidIntervalMs(),
+                                   config.bidDemandThreshold(),
+                                   config.bidDemandThresholdDelayMs());
+        }
+        if (agent instanceof BufferAgent && config.bufferBidCacheSize() > 0) {
+            ((BufferAgent<?>) agent).setBidCache(new BufferBidCache(config.bufferBidCacheSize(),
+                                                                    config.bufferBidCacheFillLevelStep(),
+                                                                    config.bufferBidCachePriorityStep()));
+        }
+        if (config.allocationReassertPeriodMs() > 0) {
+            if (agent instanceof BufferAgent) {
+                ((BufferAgent<?>) agent).getAllocationTracker()
+                                        .setReassertPeriodMs(config.allocationReassertPeriodMs());
+            } else if (agent instanceof UnconstrainedAgent) {
+                ((UnconstrainedAgent) agent).getAllocationTracker()
+                                            .setReassertPeriodMs(config.allocationReassertPeriodMs());
+            }
+        }
+        if (agent instanceof UncontrolledAgent) {
+            ((UncontrolledAgent) agent).setForecastBand(config.uncontrolledForecastBandDeviations(),
+                                                        config.uncontrolledForecastBandFraction(),
+                                                        config.uncontrolledForecastBandWatt());
+            ((UncontrolledAgent) agent).setCurtailmentPrices(config.uncontrolledCurtailProductionBelow(),
+                                                             config.uncontrolledCurtailConsumptionAbove());
+        }
+    }
+
+    /**
+     * @return The in-process concentrator that the agents of this controller are connected to, or <code>null</code>
+     *         when the agents connect to the desired parent themselves
+     */
+    LocalConcentrator getLocalConcentrator() {
+        return localConcentrator;
+    }
+
     public void removeHandler(AgentMessageSender handler) {
-        synchronized (activeHandlers) {
-            activeHandlers.remove(handler);
+        if (activeHandlers.remove(handler)) {
             handler.destroyAgent();
         }
     }
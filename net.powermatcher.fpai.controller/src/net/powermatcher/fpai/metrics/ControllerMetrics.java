@@ -0,0 +1,156 @@
+package net.powermatcher.fpai.metrics;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The measurements of the hot paths of the controller. The agents and message handlers are created by factories and
+ * do not know about the OSGi services, so they record their measurements here. Recording is switched off until
+ * {@link #setEnabled(boolean)} is called; while it is off, {@link #startTime()} returns 0 and nothing is measured, not
+ * even the current time.
+ *
+ * The measurements are kept per type (the class of the EFI message or of the agent), so it becomes clear which kind of
+ * device makes the controller slow.
+ */
+public final class ControllerMetrics {
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentMap<Class<?>, LatencyHistogram> messageHandling = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+    private static final ConcurrentMap<Class<?>, LatencyHistogram> bidCreation = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+    private static final ConcurrentMap<Class<?>, LatencyHistogram> priceToAllocation = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+    private static final ConcurrentMap<Class<?>, AtomicLong> bidsPublished = new ConcurrentHashMap<Class<?>, AtomicLong>();
+    private static final ConcurrentMap<Class<?>, AtomicLong> bidsSuppressed = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    private ControllerMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Switches the recording on or off. Switching it on clears the previous measurements.
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled && !ControllerMetrics.enabled) {
+            reset();
+        }
+        ControllerMetrics.enabled = enabled;
+    }
+
+    public static void reset() {
+        messageHandling.clear();
+        bidCreation.clear();
+        priceToAllocation.clear();
+        bidsPublished.clear();
+        bidsSuppressed.clear();
+    }
+
+    /**
+     * @return The start time of a measurement in nanoseconds, or 0 when recording is switched off
+     */
+    public static long startTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time an EFI message took to be handled.
+     *
+     * @param messageType
+     *            The class of the message
+     * @param startTime
+     *            The result of {@link #startTime()} before the message was handled
+     */
+    public static void recordMessageHandling(Class<?> messageType, long startTime) {
+        record(messageHandling, messageType, startTime);
+    }
+
+    /**
+     * Records the time an agent took to create its bid.
+     */
+    public static void recordBidCreation(Class<?> agentType, long startTime) {
+        record(bidCreation, agentType, startTime);
+    }
+
+    /**
+     * Records the time between receiving a price and sending the resulting allocation.
+     */
+    public static void recordPriceToAllocation(Class<?> agentType, long startTime) {
+        record(priceToAllocation, agentType, startTime);
+    }
+
+    public static void countBidPublished(Class<?> agentType) {
+        if (enabled) {
+            counter(bidsPublished, agentType).incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a created bid that was not published, because it did not change enough or came too soon.
+     */
+    public static void countBidSuppressed(Class<?> agentType) {
+        if (enabled) {
+            counter(bidsSuppressed, agentType).incrementAndGet();
+        }
+    }
+
+    private static void record(ConcurrentMap<Class<?>, LatencyHistogram> histograms, Class<?> type, long startTime) {
+        if (startTime == 0 || !enabled) {
+            return;
+        }
+        long duration = System.nanoTime() - startTime;
+        LatencyHistogram histogram = histograms.get(type);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(type, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(duration);
+    }
+
+    private static AtomicLong counter(ConcurrentMap<Class<?>, AtomicLong> counters, Class<?> type) {
+        AtomicLong counter = counters.get(type);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(type, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return A copy of the current measurements
+     */
+    public static MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(enabled,
+                                   summarize(messageHandling),
+                                   summarize(bidCreation),
+                                   summarize(priceToAllocation),
+                                   count(bidsPublished),
+                                   count(bidsSuppressed));
+    }
+
+    private static TreeMap<String, MetricsSnapshot.Summary> summarize(ConcurrentMap<Class<?>, LatencyHistogram> histograms) {
+        TreeMap<String, MetricsSnapshot.Summary> result = new TreeMap<String, MetricsSnapshot.Summary>();
+        for (Entry<Class<?>, LatencyHistogram> entry : histograms.entrySet()) {
+            result.put(entry.getKey().getSimpleName(), new MetricsSnapshot.Summary(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static TreeMap<String, Long> count(ConcurrentMap<Class<?>, AtomicLong> counters) {
+        TreeMap<String, Long> result = new TreeMap<String, Long>();
+        for (Entry<Class<?>, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey().getSimpleName(), entry.getValue().get());
+        }
+        return result;
+    }
+}
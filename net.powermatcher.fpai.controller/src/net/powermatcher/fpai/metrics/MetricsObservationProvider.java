@@ -0,0 +1,29 @@
+package net.powermatcher.fpai.metrics;
+
+import java.util.Date;
+
+import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ext.AbstractObservationProvider;
+import org.flexiblepower.observation.ext.ObservationProviderRegistrationHelper;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+public class MetricsObservationProvider extends AbstractObservationProvider<MetricsSnapshot> {
+
+    private final ServiceRegistration<?> serviceRegistration;
+
+    public MetricsObservationProvider(BundleContext context) {
+        serviceRegistration = new ObservationProviderRegistrationHelper(this, context).observationOf("PowerMatcher controller")
+                                                                                      .observationType(MetricsSnapshot.class)
+                                                                                      .observedBy(getClass().getName())
+                                                                                      .register();
+    }
+
+    public void close() {
+        serviceRegistration.unregister();
+    }
+
+    public void publish(Date time, MetricsSnapshot snapshot) {
+        publish(Observation.create(time, snapshot));
+    }
+}
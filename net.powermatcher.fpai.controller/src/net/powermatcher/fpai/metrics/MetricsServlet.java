@@ -0,0 +1,97 @@
+package net.powermatcher.fpai.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.AttributeType;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Switches the {@link ControllerMetrics} on when it is enabled in its configuration, and makes them available as JSON
+ * on <code>/powermatcher/metrics</code> and as periodic observations. By default nothing is measured.
+ */
+@Component(service = Servlet.class, immediate = true, property = { "alias=/powermatcher/metrics" })
+@Designate(ocd = MetricsServlet.Config.class)
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 4720281566312496157L;
+    private static final Logger logger = LoggerFactory.getLogger(MetricsServlet.class);
+
+    @ObjectClassDefinition
+    public @interface Config {
+        @AttributeDefinition(type = AttributeType.BOOLEAN,
+                             required = false,
+                             description = "Whether the latencies of the controller are measured. When switched off, nothing is measured at all.")
+        boolean enabled() default false;
+
+        @AttributeDefinition(required = false,
+                             description = "Interval in seconds at which the measurements are published as observations, 0 to not publish them")
+        long observationIntervalSeconds() default 60;
+    }
+
+    private transient FlexiblePowerContext context;
+    private transient MetricsObservationProvider observationProvider;
+    private transient ScheduledFuture<?> publishFuture;
+
+    @Reference
+    public void setContext(FlexiblePowerContext context) {
+        this.context = context;
+    }
+
+    @Activate
+    public void activate(BundleContext bundleContext, Config config) {
+        ControllerMetrics.setEnabled(config.enabled());
+        if (config.enabled() && config.observationIntervalSeconds() > 0) {
+            observationProvider = new MetricsObservationProvider(bundleContext);
+            publishFuture = context.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        observationProvider.publish(context.currentTime(), ControllerMetrics.snapshot());
+                    } catch (RuntimeException e) {
+                        logger.error("Could not publish the controller metrics: " + e.getMessage(), e);
+                    }
+                }
+            },
+                                                        Measure.valueOf(config.observationIntervalSeconds(), SI.SECOND),
+                                                        Measure.valueOf(config.observationIntervalSeconds(), SI.SECOND));
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        if (publishFuture != null) {
+            publishFuture.cancel(false);
+            publishFuture = null;
+        }
+        if (observationProvider != null) {
+            observationProvider.close();
+            observationProvider = null;
+        }
+        ControllerMetrics.setEnabled(false);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(ControllerMetrics.snapshot().toJson());
+    }
+}
@@ -0,0 +1,166 @@
+package net.powermatcher.fpai.metrics;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The measurements of {@link ControllerMetrics} at one moment. All durations are in nanoseconds and all maps are keyed
+ * by the simple name of the message or agent class.
+ */
+public class MetricsSnapshot {
+
+    /**
+     * The summary of a {@link LatencyHistogram}
+     */
+    public static class Summary {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Summary(LatencyHistogram histogram) {
+            count = histogram.getCount();
+            mean = histogram.getMean();
+            p50 = histogram.getPercentile(50);
+            p90 = histogram.getPercentile(90);
+            p99 = histogram.getPercentile(99);
+            p999 = histogram.getPercentile(99.9);
+            max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"count\":").append(count);
+            sb.append(",\"mean\":").append(mean);
+            sb.append(",\"p50\":").append(p50);
+            sb.append(",\"p90\":").append(p90);
+            sb.append(",\"p99\":").append(p99);
+            sb.append(",\"p999\":").append(p999);
+            sb.append(",\"max\":").append(max);
+            sb.append('}');
+        }
+    }
+
+    private final boolean enabled;
+    private final Map<String, Summary> messageHandling;
+    private final Map<String, Summary> bidCreation;
+    private final Map<String, Summary> priceToAllocation;
+    private final Map<String, Long> bidsPublished;
+    private final Map<String, Long> bidsSuppressed;
+
+    MetricsSnapshot(boolean enabled,
+                    Map<String, Summary> messageHandling,
+                    Map<String, Summary> bidCreation,
+                    Map<String, Summary> priceToAllocation,
+                    Map<String, Long> bidsPublished,
+                    Map<String, Long> bidsSuppressed) {
+        this.enabled = enabled;
+        this.messageHandling = messageHandling;
+        this.bidCreation = bidCreation;
+        this.priceToAllocation = priceToAllocation;
+        this.bidsPublished = bidsPublished;
+        this.bidsSuppressed = bidsSuppressed;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The time it took to handle an EFI message, per message type
+     */
+    public Map<String, Summary> getMessageHandling() {
+        return messageHandling;
+    }
+
+    /**
+     * @return The time it took to create a bid, per agent type
+     */
+    public Map<String, Summary> getBidCreation() {
+        return bidCreation;
+    }
+
+    /**
+     * @return The time between receiving a price and sending the allocation, per agent type
+     */
+    public Map<String, Summary> getPriceToAllocation() {
+        return priceToAllocation;
+    }
+
+    public Map<String, Long> getBidsPublished() {
+        return bidsPublished;
+    }
+
+    public Map<String, Long> getBidsSuppressed() {
+        return bidsSuppressed;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"enabled\":").append(enabled);
+        appendSummaries(sb, "messageHandling", messageHandling);
+        appendSummaries(sb, "bidCreation", bidCreation);
+        appendSummaries(sb, "priceToAllocation", priceToAllocation);
+        appendCounters(sb, "bidsPublished", bidsPublished);
+        appendCounters(sb, "bidsSuppressed", bidsSuppressed);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static void appendSummaries(StringBuilder sb, String name, Map<String, Summary> summaries) {
+        sb.append(",\"").append(name).append("\":{");
+        boolean first = true;
+        for (Entry<String, Summary> entry : summaries.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":");
+            entry.getValue().appendJson(sb);
+        }
+        sb.append('}');
+    }
+
+    private static void appendCounters(StringBuilder sb, String name, Map<String, Long> counters) {
+        sb.append(",\"").append(name).append("\":{");
+        boolean first = true;
+        for (Entry<String, Long> entry : counters.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+        }
+        sb.append('}');
+    }
+}
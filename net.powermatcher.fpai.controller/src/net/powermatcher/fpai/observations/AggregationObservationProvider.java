@@ -19,10 +19,14 @@ public class AggregationObservationProvider extends AbstractObservationProvider<
         private final double[] bid;
 
         public State(AggregatedBidEvent event) {
+            this(event, event.getAggregatedBid().getDemand());
+        }
+
+        State(AggregatedBidEvent event, double[] bid) {
             time = event.getTimestamp();
             agentId = event.getAgentId();
             clusterId = event.getClusterId();
-            bid = event.getAggregatedBid().getDemand();
+            this.bid = bid;
         }
 
         public Date getTime() {
@@ -42,11 +46,66 @@ public class AggregationObservationProvider extends AbstractObservationProvider<
         }
     }
 
+    /**
+     * A {@link State} that also contains the bid in the compact representation of its {@link CompactBidEncoder}. The
+     * demand array of {@link #getBid()} is restored from the complete bid when it is asked for.
+     */
+    public static class CompactState extends State implements CompactBidObservation {
+        private final CompactBidEncoder.Frame frame;
+
+        public CompactState(AggregatedBidEvent event, CompactBidEncoder encoder) {
+            super(event, null);
+            frame = encoder.encode(getAgentId(), event.getAggregatedBid().getDemand());
+        }
+
+        @Override
+        public double[] getBid() {
+            return frame.getDemand();
+        }
+
+        @Override
+        public long getSequence() {
+            return frame.getSequence();
+        }
+
+        @Override
+        public long getBaseSequence() {
+            return frame.getBaseSequence();
+        }
+
+        @Override
+        public int getPriceSteps() {
+            return frame.getPriceSteps();
+        }
+
+        @Override
+        public int[] getBreakpoints() {
+            return frame.getBreakpoints();
+        }
+
+        @Override
+        public double[] getLevels() {
+            return frame.getLevels();
+        }
+    }
+
     private final ServiceRegistration<?> serviceRegistration;
+    private final CompactBidEncoder encoder;
 
     public AggregationObservationProvider(BundleContext context) {
+        this(context, null);
+    }
+
+    /**
+     * @param encoder
+     *            Encodes the bids of the events in the compact format of {@link CompactState}, or null to only publish
+     *            the demand arrays of {@link State}
+     */
+    public AggregationObservationProvider(BundleContext context, CompactBidEncoder encoder) {
+        this.encoder = encoder;
+        Class<? extends State> type = encoder == null ? State.class : CompactState.class;
         serviceRegistration = new ObservationProviderRegistrationHelper(this, context).observationOf("PowerMatcher")
-                                                                                      .observationType(State.class)
+                                                                                      .observationType(type)
                                                                                       .observedBy(getClass().getName())
                                                                                       .register();
     }
@@ -56,6 +115,7 @@ public class AggregationObservationProvider extends AbstractObservationProvider<
     }
 
     public void publish(AggregatedBidEvent event) {
-        publish(Observation.create(event.getTimestamp(), new State(event)));
+        State state = encoder == null ? new State(event) : new CompactState(event, encoder);
+        publish(Observation.create(event.getTimestamp(), state));
     }
 }
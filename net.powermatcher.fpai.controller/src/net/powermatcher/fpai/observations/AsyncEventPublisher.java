@@ -0,0 +1,172 @@
+package net.powermatcher.fpai.observations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded ring buffer of events that is drained by a single background thread. Offering an event never blocks: when
+ * the buffer is full the event is dropped and counted, so a slow observation consumer can not slow down the agents
+ * that report the events.
+ *
+ * @param <T>
+ *            The type of the events
+ */
+public class AsyncEventPublisher<T> implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncEventPublisher.class);
+
+    /** Maximum number of events that are taken from the buffer at once */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Publishes the events on the background thread
+     */
+    public interface Sink<T> {
+        void publish(T event);
+    }
+
+    private final Sink<T> sink;
+    private final Object[] ring;
+    private int head = 0;
+    private int size = 0;
+    private boolean running = false;
+    private Thread thread;
+
+    private long published = 0;
+    private long dropped = 0;
+
+    /**
+     * @param sink
+     *            Publishes the events on the background thread
+     * @param capacity
+     *            The maximum number of events in the buffer
+     */
+    public AsyncEventPublisher(Sink<T> sink, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the buffer should be positive");
+        }
+        this.sink = sink;
+        ring = new Object[capacity];
+    }
+
+    /**
+     * Starts the background thread.
+     *
+     * @param threadName
+     *            The name of the thread
+     */
+    public synchronized void start(String threadName) {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Adds an event to the buffer. This method never blocks.
+     *
+     * @param event
+     *            The event that should be published
+     * @return false when the event is dropped, because the buffer is full or the publisher has been closed
+     */
+    public synchronized boolean offer(T event) {
+        if (!running) {
+            return false;
+        }
+        if (size == ring.length) {
+            dropped++;
+            if (dropped == 1 || dropped % 1000 == 0) {
+                logger.warn("Observation buffer is full, {} events have been dropped", dropped);
+            }
+            return false;
+        }
+        ring[(head + size) % ring.length] = event;
+        size++;
+        if (size == 1) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        Object[] batch = new Object[Math.min(BATCH_SIZE, ring.length)];
+        while (true) {
+            int count;
+            synchronized (this) {
+                while (size == 0 && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                count = Math.min(size, batch.length);
+                for (int i = 0; i < count; i++) {
+                    batch[i] = ring[head];
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                }
+                size -= count;
+            }
+
+            for (int i = 0; i < count; i++) {
+                try {
+                    sink.publish((T) batch[i]);
+                } catch (RuntimeException e) {
+                    logger.error("Error while publishing " + batch[i] + ": " + e.getMessage(), e);
+                }
+                batch[i] = null;
+            }
+            synchronized (this) {
+                published += count;
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread. Events that are still in the buffer are discarded.
+     */
+    public void close() {
+        Thread stopped;
+        synchronized (this) {
+            running = false;
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = null;
+            }
+            size = 0;
+            notifyAll();
+            stopped = thread;
+            thread = null;
+        }
+        if (stopped != null && stopped != Thread.currentThread()) {
+            try {
+                stopped.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return size;
+    }
+
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AsyncEventPublisher [queueDepth=" + size + ", published=" + published + ", dropped=" + dropped + "]";
+    }
+}
@@ -20,11 +20,15 @@ public class BidObservationProvider extends AbstractObservationProvider<BidObser
         private final double[] bid;
 
         public State(OutgoingBidUpdateEvent event) {
+            this(event, event.getBidUpdate().getBid().getDemand());
+        }
+
+        State(OutgoingBidUpdateEvent event, double[] bid) {
             time = event.getTimestamp();
             agentId = event.getAgentId();
             clusterId = event.getClusterId();
             bidNumber = event.getBidUpdate().getBidNumber();
-            bid = event.getBidUpdate().getBid().getDemand();
+            this.bid = bid;
         }
 
         public Date getTime() {
@@ -48,11 +52,66 @@ public class BidObservationProvider extends AbstractObservationProvider<BidObser
         }
     }
 
+    /**
+     * A {@link State} that also contains the bid in the compact representation of its {@link CompactBidEncoder}. The
+     * demand array of {@link #getBid()} is restored from the complete bid when it is asked for.
+     */
+    public static class CompactState extends State implements CompactBidObservation {
+        private final CompactBidEncoder.Frame frame;
+
+        public CompactState(OutgoingBidUpdateEvent event, CompactBidEncoder encoder) {
+            super(event, null);
+            frame = encoder.encode(getAgentId(), event.getBidUpdate().getBid().getDemand());
+        }
+
+        @Override
+        public double[] getBid() {
+            return frame.getDemand();
+        }
+
+        @Override
+        public long getSequence() {
+            return frame.getSequence();
+        }
+
+        @Override
+        public long getBaseSequence() {
+            return frame.getBaseSequence();
+        }
+
+        @Override
+        public int getPriceSteps() {
+            return frame.getPriceSteps();
+        }
+
+        @Override
+        public int[] getBreakpoints() {
+            return frame.getBreakpoints();
+        }
+
+        @Override
+        public double[] getLevels() {
+            return frame.getLevels();
+        }
+    }
+
     private final ServiceRegistration<?> serviceRegistration;
+    private final CompactBidEncoder encoder;
 
     public BidObservationProvider(BundleContext context) {
+        this(context, null);
+    }
+
+    /**
+     * @param encoder
+     *            Encodes the bids of the events in the compact format of {@link CompactState}, or null to only publish
+     *            the demand arrays of {@link State}
+     */
+    public BidObservationProvider(BundleContext context, CompactBidEncoder encoder) {
+        this.encoder = encoder;
+        Class<? extends State> type = encoder == null ? State.class : CompactState.class;
         serviceRegistration = new ObservationProviderRegistrationHelper(this, context).observationOf("PowerMatcher")
-                                                                                      .observationType(State.class)
+                                                                                      .observationType(type)
                                                                                       .observedBy(getClass().getName())
                                                                                       .register();
     }
@@ -62,6 +121,7 @@ public class BidObservationProvider extends AbstractObservationProvider<BidObser
     }
 
     public void publish(OutgoingBidUpdateEvent event) {
-        publish(Observation.create(event.getTimestamp(), new State(event)));
+        State state = encoder == null ? new State(event) : new CompactState(event, encoder);
+        publish(Observation.create(event.getTimestamp(), state));
     }
 }
@@ -0,0 +1,201 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.Arrays;
+
+/**
+ * Step representation of a demand curve. Bids are step functions of the price index, so the curve is stored as the
+ * indices at which a new step starts (the breakpoints) and the demand of every step (the levels). A curve of thousands
+ * of price steps typically has only a handful of breakpoints.
+ *
+ * A compact bid can also be a delta against a previous bid: a level of {@link Double#NaN} then means that the demand of
+ * that step is the same as in the previous bid. Use {@link #decode(double[])} with the decoded previous demand to get
+ * the full curve back.
+ *
+ * Instances are immutable, the arrays that are returned by the getters should not be modified.
+ */
+public final class CompactBid {
+
+    /**
+     * Creates the step representation of a demand array.
+     *
+     * @param demand
+     *            The demand for every price step
+     * @param quantize
+     *            When true, the levels are rounded to float precision. This merges steps that only differ by numerical
+     *            noise (which happens in aggregated bids) and shortens the textual output.
+     * @return The compact representation of the demand
+     */
+    public static CompactBid encode(double[] demand, boolean quantize) {
+        if (demand.length == 0) {
+            throw new IllegalArgumentException("The demand array is empty");
+        }
+        int steps = 1;
+        double last = quantize(demand[0], quantize);
+        for (int i = 1; i < demand.length; i++) {
+            double value = quantize(demand[i], quantize);
+            if (!same(value, last)) {
+                steps++;
+                last = value;
+            }
+        }
+
+        int[] breakpoints = new int[steps];
+        double[] levels = new double[steps];
+        levels[0] = quantize(demand[0], quantize);
+        int step = 0;
+        for (int i = 1; i < demand.length; i++) {
+            double value = quantize(demand[i], quantize);
+            if (!same(value, levels[step])) {
+                step++;
+                breakpoints[step] = i;
+                levels[step] = value;
+            }
+        }
+        return new CompactBid(demand.length, breakpoints, levels, false);
+    }
+
+    /**
+     * Creates a delta that turns the previous bid into the current bid. Both bids should be complete (no delta) and
+     * have the same number of price steps.
+     *
+     * @param previous
+     *            The bid the consumer already knows
+     * @param current
+     *            The new bid
+     * @return A delta in which every step that did not change has a {@link Double#NaN} level
+     */
+    public static CompactBid delta(CompactBid previous, CompactBid current) {
+        if (previous.isDelta() || current.isDelta()) {
+            throw new IllegalArgumentException("A delta can only be made between complete bids");
+        }
+        if (previous.priceSteps != current.priceSteps) {
+            throw new IllegalArgumentException("The bids have a different number of price steps");
+        }
+
+        // Walk through the union of the breakpoints of both bids. There are at most that many steps in the delta.
+        int maxSteps = previous.breakpoints.length + current.breakpoints.length;
+        int[] breakpoints = new int[maxSteps];
+        double[] levels = new double[maxSteps];
+        int steps = 0;
+        int p = 0, c = 0;
+        int index = 0;
+        while (index < current.priceSteps) {
+            double value = same(previous.levels[p], current.levels[c]) ? Double.NaN : current.levels[c];
+            if (steps == 0 || !same(value, levels[steps - 1])) {
+                breakpoints[steps] = index;
+                levels[steps] = value;
+                steps++;
+            }
+
+            int nextPrevious = p + 1 < previous.breakpoints.length ? previous.breakpoints[p + 1] : previous.priceSteps;
+            int nextCurrent = c + 1 < current.breakpoints.length ? current.breakpoints[c + 1] : current.priceSteps;
+            index = Math.min(nextPrevious, nextCurrent);
+            if (index == nextPrevious) {
+                p++;
+            }
+            if (index == nextCurrent) {
+                c++;
+            }
+        }
+        return new CompactBid(current.priceSteps,
+                              Arrays.copyOf(breakpoints, steps),
+                              Arrays.copyOf(levels, steps),
+                              true);
+    }
+
+    private static double quantize(double value, boolean quantize) {
+        return quantize ? (float) value : value;
+    }
+
+    /** Equality that also holds for two NaN values */
+    private static boolean same(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    private final int priceSteps;
+    private final int[] breakpoints;
+    private final double[] levels;
+    private final boolean delta;
+
+    /**
+     * @param priceSteps
+     *            The number of price steps of the market basis
+     * @param breakpoints
+     *            The price index at which every step starts, the first should be 0
+     * @param levels
+     *            The demand of every step, {@link Double#NaN} for an unchanged step in a delta
+     * @param delta
+     *            Whether this is a delta against a previous bid
+     */
+    public CompactBid(int priceSteps, int[] breakpoints, double[] levels, boolean delta) {
+        if (breakpoints.length == 0 || breakpoints.length != levels.length) {
+            throw new IllegalArgumentException("There should be a level for every breakpoint");
+        }
+        if (breakpoints[0] != 0) {
+            throw new IllegalArgumentException("The first step should start at price index 0");
+        }
+        for (int i = 1; i < breakpoints.length; i++) {
+            if (breakpoints[i] <= breakpoints[i - 1] || breakpoints[i] >= priceSteps) {
+                throw new IllegalArgumentException("The breakpoints should be increasing and below " + priceSteps);
+            }
+        }
+        this.priceSteps = priceSteps;
+        this.breakpoints = breakpoints;
+        this.levels = levels;
+        this.delta = delta;
+    }
+
+    public int getPriceSteps() {
+        return priceSteps;
+    }
+
+    public int[] getBreakpoints() {
+        return breakpoints;
+    }
+
+    public double[] getLevels() {
+        return levels;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * @param previousDemand
+     *            The decoded demand of the bid this delta is based on, ignored (and may be <code>null</code>) when this
+     *            is not a delta
+     * @return A new array with the demand for every price step
+     */
+    public double[] decode(double[] previousDemand) {
+        double[] demand;
+        if (delta) {
+            if (previousDemand == null || previousDemand.length != priceSteps) {
+                throw new IllegalArgumentException("A delta needs the previous demand of " + priceSteps
+                                                   + " price steps");
+            }
+            demand = previousDemand.clone();
+        } else {
+            demand = new double[priceSteps];
+        }
+        for (int step = 0; step < breakpoints.length; step++) {
+            if (!Double.isNaN(levels[step])) {
+                int end = step + 1 < breakpoints.length ? breakpoints[step + 1] : priceSteps;
+                Arrays.fill(demand, breakpoints[step], end, levels[step]);
+            }
+        }
+        return demand;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactBid [priceSteps=" + priceSteps
+               + ", breakpoints="
+               + Arrays.toString(breakpoints)
+               + ", levels="
+               + Arrays.toString(levels)
+               + ", delta="
+               + delta
+               + "]";
+    }
+}
@@ -0,0 +1,54 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Restores the demand arrays of {@link CompactBidObservation}s for consumers of the bid and aggregation observations.
+ * It keeps the last decoded demand of every agent to apply the deltas to. Use a separate decoder for every observation
+ * provider, since the sequence numbers of the providers are independent.
+ */
+public class CompactBidDecoder {
+
+    private static class AgentState {
+        private final long sequence;
+        private final double[] demand;
+
+        AgentState(long sequence, double[] demand) {
+            this.sequence = sequence;
+            this.demand = demand;
+        }
+    }
+
+    private final Map<String, AgentState> agents = new HashMap<String, AgentState>();
+
+    /**
+     * @param observation
+     *            The next observation of an agent
+     * @return The demand for every price step, or <code>null</code> when the observation is a delta against an
+     *         observation that this decoder has not seen. Decoding of that agent continues at its next complete bid.
+     */
+    public synchronized double[] decode(CompactBidObservation observation) {
+        String agentId = observation.getAgentId();
+        long baseSequence = observation.getBaseSequence();
+        CompactBid bid = new CompactBid(observation.getPriceSteps(),
+                                        observation.getBreakpoints(),
+                                        observation.getLevels(),
+                                        baseSequence >= 0);
+
+        double[] demand;
+        if (bid.isDelta()) {
+            AgentState previous = agents.get(agentId);
+            if (previous == null || previous.sequence != baseSequence
+                || previous.demand.length != bid.getPriceSteps()) {
+                agents.remove(agentId);
+                return null;
+            }
+            demand = bid.decode(previous.demand);
+        } else {
+            demand = bid.decode(null);
+        }
+        agents.put(agentId, new AgentState(observation.getSequence(), demand));
+        return demand.clone();
+    }
+}
@@ -0,0 +1,135 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the successive bids of agents into {@link CompactBidObservation}s. It remembers the last bid of every agent, so
+ * it can send deltas, and sends a complete bid every <code>fullBidInterval</code> observations so new consumers can
+ * start decoding.
+ *
+ * Every produced frame has to reach the consumer for the deltas to be decodable, so the encoder should be used after
+ * any sampling or dropping of events.
+ */
+public class CompactBidEncoder {
+
+    /**
+     * The encoded bid of a single observation
+     */
+    public static class Frame implements CompactBidObservation {
+        private final String agentId;
+        private final long sequence;
+        private final long baseSequence;
+        private final CompactBid bid;
+        private final CompactBid completeBid;
+
+        /**
+         * @param bid
+         *            The bid as it is published, possibly a delta
+         * @param completeBid
+         *            The complete bid, from which {@link #getDemand()} is restored
+         */
+        public Frame(String agentId, long sequence, long baseSequence, CompactBid bid, CompactBid completeBid) {
+            this.agentId = agentId;
+            this.sequence = sequence;
+            this.baseSequence = baseSequence;
+            this.bid = bid;
+            this.completeBid = completeBid;
+        }
+
+        @Override
+        public String getAgentId() {
+            return agentId;
+        }
+
+        @Override
+        public long getSequence() {
+            return sequence;
+        }
+
+        @Override
+        public long getBaseSequence() {
+            return baseSequence;
+        }
+
+        @Override
+        public int getPriceSteps() {
+            return bid.getPriceSteps();
+        }
+
+        @Override
+        public int[] getBreakpoints() {
+            return bid.getBreakpoints();
+        }
+
+        @Override
+        public double[] getLevels() {
+            return bid.getLevels();
+        }
+
+        public CompactBid getBid() {
+            return bid;
+        }
+
+        /**
+         * @return A new array with the demand of the complete bid for every price step, also when this frame is a delta
+         */
+        public double[] getDemand() {
+            return completeBid.decode(null);
+        }
+    }
+
+    private static class AgentState {
+        private long sequence = -1;
+        private CompactBid lastBid;
+    }
+
+    private final boolean quantize;
+    private final int fullBidInterval;
+    private final Map<String, AgentState> agents = new HashMap<String, AgentState>();
+
+    /**
+     * @param quantize
+     *            Whether the levels are rounded to float precision, see {@link CompactBid#encode(double[], boolean)}
+     * @param fullBidInterval
+     *            Every how many observations a complete bid is sent, 1 disables the deltas
+     */
+    public CompactBidEncoder(boolean quantize, int fullBidInterval) {
+        if (fullBidInterval < 1) {
+            throw new IllegalArgumentException("fullBidInterval should be at least 1");
+        }
+        this.quantize = quantize;
+        this.fullBidInterval = fullBidInterval;
+    }
+
+    /**
+     * @param agentId
+     *            The agent that made the bid
+     * @param demand
+     *            The demand array of the bid
+     * @return The frame that should be published
+     */
+    public synchronized Frame encode(String agentId, double[] demand) {
+        AgentState state = agents.get(agentId);
+        if (state == null) {
+            state = new AgentState();
+            agents.put(agentId, state);
+        }
+
+        CompactBid bid = CompactBid.encode(demand, quantize);
+        state.sequence++;
+        Frame frame;
+        if (state.lastBid == null || state.lastBid.getPriceSteps() != bid.getPriceSteps()
+            || state.sequence % fullBidInterval == 0) {
+            frame = new Frame(agentId, state.sequence, -1, bid, bid);
+        } else {
+            frame = new Frame(agentId,
+                              state.sequence,
+                              state.sequence - 1,
+                              CompactBid.delta(state.lastBid, bid),
+                              bid);
+        }
+        state.lastBid = bid;
+        return frame;
+    }
+}
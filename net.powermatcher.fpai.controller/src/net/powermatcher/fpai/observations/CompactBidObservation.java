@@ -0,0 +1,27 @@
+package net.powermatcher.fpai.observations;
+
+/**
+ * An observation that contains a bid in the compact representation of {@link CompactBid}. Every agent numbers its
+ * observations. An observation with a base sequence of -1 contains the complete bid, otherwise it contains a delta
+ * against the observation of the same agent with that sequence number. Use a {@link CompactBidDecoder} to get the
+ * demand arrays back.
+ */
+public interface CompactBidObservation {
+    String getAgentId();
+
+    /**
+     * @return The sequence number of this observation for the agent
+     */
+    long getSequence();
+
+    /**
+     * @return The sequence number of the observation this delta is based on, or -1 when this is a complete bid
+     */
+    long getBaseSequence();
+
+    int getPriceSteps();
+
+    int[] getBreakpoints();
+
+    double[] getLevels();
+}
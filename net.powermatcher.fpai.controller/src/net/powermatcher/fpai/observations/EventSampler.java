@@ -0,0 +1,102 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which events of a single type are published. An event is published when it is the Nth event of its type of
+ * the same agent, and when the previous published event of that agent is at least the minimum interval older. Both
+ * conditions are disabled with their default values (every event, no interval). This class is thread-safe, since
+ * agents report their events on their own threads.
+ */
+public class EventSampler {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    /** The sampling state of a single agent */
+    private static final class AgentState {
+        final AtomicLong events = new AtomicLong();
+        /** Time of the last accepted event, only used with a minimum interval */
+        final AtomicLong lastAcceptedMs = new AtomicLong(NONE);
+    }
+
+    private final int everyNth;
+    private final long minimumIntervalMs;
+
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final ConcurrentMap<String, AgentState> agents = new ConcurrentHashMap<String, AgentState>();
+
+    /**
+     * @param everyNth
+     *            Only every Nth event of an agent is accepted, 1 accepts every event
+     * @param minimumIntervalMs
+     *            Minimum time between two accepted events of the same agent, 0 for no minimum
+     */
+    public EventSampler(int everyNth, long minimumIntervalMs) {
+        if (everyNth < 1) {
+            throw new IllegalArgumentException("everyNth should be at least 1");
+        }
+        if (minimumIntervalMs < 0) {
+            throw new IllegalArgumentException("The minimum interval may not be negative");
+        }
+        this.everyNth = everyNth;
+        this.minimumIntervalMs = minimumIntervalMs;
+    }
+
+    /**
+     * @param agentId
+     *            The agent that reported the event
+     * @param timestampMs
+     *            The time of the event in milliseconds
+     * @return true when the event should be published
+     */
+    public boolean accept(String agentId, long timestampMs) {
+        if (everyNth == 1 && minimumIntervalMs == 0) {
+            return true;
+        }
+
+        AgentState state = agents.get(agentId);
+        if (state == null) {
+            AgentState newState = new AgentState();
+            state = agents.putIfAbsent(agentId, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+
+        long count = state.events.getAndIncrement();
+        if (count % everyNth != 0) {
+            sampledOut.incrementAndGet();
+            return false;
+        }
+
+        if (minimumIntervalMs > 0) {
+            long lastMs = state.lastAcceptedMs.get();
+            if ((lastMs != NONE && timestampMs - lastMs < minimumIntervalMs)
+                || !state.lastAcceptedMs.compareAndSet(lastMs, timestampMs)) {
+                // Too soon, or another event of this agent was accepted concurrently
+                sampledOut.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of events that were not accepted
+     */
+    public long getSampledOut() {
+        return sampledOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EventSampler [everyNth=" + everyNth
+               + ", minimumIntervalMs="
+               + minimumIntervalMs
+               + ", sampledOut="
+               + sampledOut
+               + "]";
+    }
+}
@@ -18,10 +18,14 @@ import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.AttributeType;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Component(immediate = true)
 @Designate(ocd = PowerMatcherObserver.Config.class, factory = true)
 public class PowerMatcherObserver implements AgentObserver {
+    private static final Logger logger = LoggerFactory.getLogger(PowerMatcherObserver.class);
+
 	@ObjectClassDefinition
     public @interface Config {
         @AttributeDefinition(type = AttributeType.BOOLEAN,
@@ -38,6 +42,50 @@ public class PowerMatcherObserver implements AgentObserver {
 
         @AttributeDefinition(name = "agent.target")
         String agentTarget() default "";
+
+        @AttributeDefinition(type = AttributeType.BOOLEAN,
+                             required = false,
+                             description = "Whether events are published on a background thread instead of the thread of the agent")
+        boolean asyncPublishing() default true;
+
+        @AttributeDefinition(required = false,
+                             description = "Maximum number of events waiting to be published, further events are dropped")
+        int publishBufferCapacity() default 10000;
+
+        @AttributeDefinition(required = false, description = "Only publish every Nth outgoing price event of an agent")
+        int priceEventsEveryNth() default 1;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum time in milliseconds between two published price events of an agent")
+        long priceEventsMinimumIntervalMs() default 0;
+
+        @AttributeDefinition(required = false, description = "Only publish every Nth outgoing bid event of an agent")
+        int bidEventsEveryNth() default 1;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum time in milliseconds between two published bid events of an agent")
+        long bidEventsMinimumIntervalMs() default 0;
+
+        @AttributeDefinition(required = false, description = "Only publish every Nth aggregation event of an agent")
+        int aggregationEventsEveryNth() default 1;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum time in milliseconds between two published aggregation events of an agent")
+        long aggregationEventsMinimumIntervalMs() default 0;
+
+        @AttributeDefinition(type = AttributeType.BOOLEAN,
+                             required = false,
+                             description = "Whether bid and aggregation observations also contain the bid in the compact representation of breakpoints and levels")
+        boolean compactBids() default false;
+
+        @AttributeDefinition(type = AttributeType.BOOLEAN,
+                             required = false,
+                             description = "Whether the demand levels of compact bids are rounded to float precision")
+        boolean quantizeBids() default false;
+
+        @AttributeDefinition(required = false,
+                             description = "Every how many compact bids of an agent the complete bid is published, in between only the changed steps are published. 1 always publishes the complete bid.")
+        int fullBidInterval() default 1;
     }
 
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
@@ -49,25 +97,61 @@ public class PowerMatcherObserver implements AgentObserver {
         agent.removeObserver(this);
     }
 
-    private PriceObservationProvider pricePublisher = null;
-    private BidObservationProvider bidPublisher = null;
-    private AggregationObservationProvider aggregationPublisher;
+    private volatile PriceObservationProvider pricePublisher = null;
+    private volatile BidObservationProvider bidPublisher = null;
+    private volatile AggregationObservationProvider aggregationPublisher;
+
+    private EventSampler priceSampler, bidSampler, aggregationSampler;
+    private volatile AsyncEventPublisher<AgentEvent> asyncPublisher = null;
 
     @Activate
     public void activate(BundleContext context, final Config config) {
         if (config.publishPriceEvents()) {
             pricePublisher = new PriceObservationProvider(context);
+            priceSampler = new EventSampler(config.priceEventsEveryNth(), config.priceEventsMinimumIntervalMs());
         }
         if (config.publishBidEvents()) {
-            bidPublisher = new BidObservationProvider(context);
+            bidPublisher = new BidObservationProvider(context, createEncoder(config));
+            bidSampler = new EventSampler(config.bidEventsEveryNth(), config.bidEventsMinimumIntervalMs());
         }
         if (config.publishAggregationEvents()) {
-            aggregationPublisher = new AggregationObservationProvider(context);
+            aggregationPublisher = new AggregationObservationProvider(context, createEncoder(config));
+            aggregationSampler = new EventSampler(config.aggregationEventsEveryNth(),
+                                                  config.aggregationEventsMinimumIntervalMs());
+        }
+        if (config.asyncPublishing()) {
+            asyncPublisher = new AsyncEventPublisher<AgentEvent>(new AsyncEventPublisher.Sink<AgentEvent>() {
+                @Override
+                public void publish(AgentEvent event) {
+                    publishEvent(event);
+                }
+            }, config.publishBufferCapacity());
+            asyncPublisher.start("PowerMatcher observation publisher");
+        }
+    }
+
+    /**
+     * @return A new encoder for the compact bids, or null when the observations only contain the demand arrays
+     */
+    private static CompactBidEncoder createEncoder(Config config) {
+        if (config.compactBids()) {
+            return new CompactBidEncoder(config.quantizeBids(), config.fullBidInterval());
+        } else {
+            return null;
         }
     }
 
     @Deactivate
     public void deactivate() {
+        if (asyncPublisher != null) {
+            asyncPublisher.close();
+            logger.info("Stopped publishing observations: {}", asyncPublisher);
+            asyncPublisher = null;
+        }
+        long sampledOut = getSampledOutEvents();
+        if (sampledOut > 0) {
+            logger.info("{} events were not published because of sampling", sampledOut);
+        }
         if (pricePublisher != null) {
             pricePublisher.close();
             pricePublisher = null;
@@ -84,6 +168,37 @@ public class PowerMatcherObserver implements AgentObserver {
 
     @Override
     public void handleAgentEvent(AgentEvent event) {
+        EventSampler sampler = samplerFor(event);
+        if (sampler == null || !sampler.accept(event.getAgentId(), event.getTimestamp().getTime())) {
+            return;
+        }
+        AsyncEventPublisher<AgentEvent> publisher = asyncPublisher;
+        if (publisher == null) {
+            publishEvent(event);
+        } else {
+            publisher.offer(event);
+        }
+    }
+
+    /**
+     * @return The sampler of the type of the event, or <code>null</code> when events of this type are not published
+     */
+    private EventSampler samplerFor(AgentEvent event) {
+        if (event instanceof OutgoingPriceUpdateEvent) {
+            return priceSampler;
+        } else if (event instanceof OutgoingBidUpdateEvent) {
+            return bidSampler;
+        } else if (event instanceof AggregatedBidEvent) {
+            return aggregationSampler;
+        } else {
+            return null;
+        }
+    }
+
+    private void publishEvent(AgentEvent event) {
+        PriceObservationProvider pricePublisher = this.pricePublisher;
+        BidObservationProvider bidPublisher = this.bidPublisher;
+        AggregationObservationProvider aggregationPublisher = this.aggregationPublisher;
         if (pricePublisher != null && event instanceof OutgoingPriceUpdateEvent) {
             pricePublisher.publish((OutgoingPriceUpdateEvent) event);
         } else if (bidPublisher != null && event instanceof OutgoingBidUpdateEvent) {
@@ -92,4 +207,25 @@ public class PowerMatcherObserver implements AgentObserver {
             aggregationPublisher.publish((AggregatedBidEvent) event);
         }
     }
+
+    /**
+     * @return The number of events that were dropped because the publish buffer was full
+     */
+    public long getDroppedEvents() {
+        AsyncEventPublisher<AgentEvent> publisher = asyncPublisher;
+        return publisher == null ? 0 : publisher.getDropped();
+    }
+
+    /**
+     * @return The number of events that were not published because of the sampling configuration
+     */
+    public long getSampledOutEvents() {
+        long sampledOut = 0;
+        for (EventSampler sampler : new EventSampler[] { priceSampler, bidSampler, aggregationSampler }) {
+            if (sampler != null) {
+                sampledOut += sampler.getSampledOut();
+            }
+        }
+        return sampledOut;
+    }
 }
@@ -0,0 +1,172 @@
+package net.powermatcher.fpai.peakshaving;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Conditions the measured flow before it is given to the transforming concentrator. The samples of several sources are
+ * summed into one flow, the sum is smoothed (exponentially weighted or moving average) and a new value is only
+ * released when it differs at least the deadband from the previous released value and the minimum interval has
+ * passed. Every released value can trigger a new peak shaving calculation, so this keeps high-frequency meters from
+ * forcing a recalculation on every sample.
+ *
+ * This class is not thread-safe.
+ */
+public class MeasuredFlowFilter {
+
+    public enum Smoothing {
+        /** The sum of the last samples is used as is */
+        NONE,
+        /** Exponentially weighted moving average with a time constant */
+        EWMA,
+        /** Average of the last number of sums */
+        MOVING_AVERAGE
+    }
+
+    /** After this many incremental updates the sum is recalculated to get rid of rounding errors */
+    private static final int RECALCULATE_SUM_INTERVAL = 1000;
+
+    private final Smoothing smoothing;
+    private final long timeConstantMs;
+    private final double deadbandWatt;
+    private final long minimumIntervalMs;
+
+    private final Map<Object, Double> lastSamples = new HashMap<Object, Double>();
+    private double sum = 0;
+    private int updatesSinceRecalculation = 0;
+
+    /** Ring of the last sums for the moving average */
+    private final double[] window;
+    private int windowSize = 0;
+    private int windowIndex = 0;
+    private double windowSum = 0;
+
+    private double smoothed = Double.NaN;
+    private long lastSampleTime = Long.MIN_VALUE;
+
+    private double released = Double.NaN;
+    private long lastReleaseTime = Long.MIN_VALUE;
+
+    /**
+     * @param smoothing
+     *            The type of smoothing
+     * @param timeConstantMs
+     *            The time constant of the {@link Smoothing#EWMA} in milliseconds
+     * @param windowSamples
+     *            The number of samples of the {@link Smoothing#MOVING_AVERAGE}
+     * @param deadbandWatt
+     *            The minimum difference with the last released value before a new value is released, 0 releases every
+     *            change
+     * @param minimumIntervalMs
+     *            The minimum time between two released values, 0 for no minimum
+     */
+    public MeasuredFlowFilter(Smoothing smoothing,
+                              long timeConstantMs,
+                              int windowSamples,
+                              double deadbandWatt,
+                              long minimumIntervalMs) {
+        if (timeConstantMs < 0 || deadbandWatt < 0 || minimumIntervalMs < 0) {
+            throw new IllegalArgumentException("The time constant, deadband and minimum interval may not be negative");
+        }
+        if (smoothing == Smoothing.MOVING_AVERAGE && windowSamples < 1) {
+            throw new IllegalArgumentException("The moving average needs at least 1 sample");
+        }
+        this.smoothing = smoothing;
+        this.timeConstantMs = timeConstantMs;
+        this.deadbandWatt = deadbandWatt;
+        this.minimumIntervalMs = minimumIntervalMs;
+        window = new double[smoothing == Smoothing.MOVING_AVERAGE ? windowSamples : 0];
+    }
+
+    /**
+     * Adds a sample of one of the sources.
+     *
+     * @param source
+     *            The source of the sample
+     * @param watt
+     *            The measured flow of the source
+     * @param timeMs
+     *            The time of the sample
+     * @return The flow that should be given to the concentrator, or {@link Double#NaN} when nothing should be given
+     */
+    public double update(Object source, double watt, long timeMs) {
+        Double previous = lastSamples.put(source, watt);
+        sum += watt - (previous == null ? 0 : previous);
+        if (++updatesSinceRecalculation >= RECALCULATE_SUM_INTERVAL) {
+            recalculateSum();
+        }
+        return filter(timeMs);
+    }
+
+    /**
+     * Removes a source, its last sample is no longer part of the sum. This does not release a new value, the new sum is
+     * used from the next sample on.
+     */
+    public void remove(Object source) {
+        Double previous = lastSamples.remove(source);
+        if (previous != null) {
+            sum -= previous;
+        }
+    }
+
+    private void recalculateSum() {
+        sum = 0;
+        for (double sample : lastSamples.values()) {
+            sum += sample;
+        }
+        updatesSinceRecalculation = 0;
+    }
+
+    private double filter(long timeMs) {
+        switch (smoothing) {
+        case EWMA:
+            if (Double.isNaN(smoothed) || timeConstantMs == 0) {
+                smoothed = sum;
+            } else if (timeMs > lastSampleTime) {
+                double alpha = 1 - Math.exp(-(double) (timeMs - lastSampleTime) / timeConstantMs);
+                smoothed += alpha * (sum - smoothed);
+            }
+            break;
+        case MOVING_AVERAGE:
+            if (windowSize == window.length) {
+                windowSum -= window[windowIndex];
+            } else {
+                windowSize++;
+            }
+            window[windowIndex] = sum;
+            windowSum += sum;
+            windowIndex = (windowIndex + 1) % window.length;
+            if (windowIndex == 0) {
+                // Once per round, get rid of the rounding errors of the running sum
+                windowSum = 0;
+                for (int i = 0; i < windowSize; i++) {
+                    windowSum += window[i];
+                }
+            }
+            smoothed = windowSum / windowSize;
+            break;
+        default:
+            smoothed = sum;
+        }
+        lastSampleTime = Math.max(lastSampleTime, timeMs);
+
+        if (!Double.isNaN(released)) {
+            if (Math.abs(smoothed - released) < deadbandWatt || smoothed == released) {
+                return Double.NaN;
+            }
+            if (timeMs - lastReleaseTime < minimumIntervalMs) {
+                return Double.NaN;
+            }
+        }
+        released = smoothed;
+        lastReleaseTime = timeMs;
+        return released;
+    }
+
+    /**
+     * @return The last value that was released, or {@link Double#NaN} when nothing has been released yet
+     */
+    public double getReleased() {
+        return released;
+    }
+}
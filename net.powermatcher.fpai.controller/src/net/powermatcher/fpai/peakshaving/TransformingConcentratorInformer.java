@@ -1,16 +1,24 @@
 package net.powermatcher.fpai.peakshaving;
 
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
 import net.powermatcher.core.concentrator.TransformingConcentrator;
+import net.powermatcher.fpai.peakshaving.MeasuredFlowFilter.Smoothing;
 
 import org.flexiblepower.observation.Observation;
 import org.flexiblepower.observation.ObservationConsumer;
 import org.flexiblepower.observation.ObservationProvider;
 import org.flexiblepower.ral.drivers.uncontrolled.PowerState;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
 @Component(immediate = true)
 @Designate(ocd = TransformingConcentratorInformer.Config.class, factory = true)
@@ -20,29 +28,77 @@ public class TransformingConcentratorInformer implements ObservationConsumer<Pow
         @AttributeDefinition(description = "The filter that is used to determine which transforming concentrator should get the power values")
         String concentrator_target() default "(agentId=peakshavingconcentrator)";
 
-        @AttributeDefinition(description = "The filter that is used to determine which observation provider should be used to get the power values")
+        @AttributeDefinition(description = "The filter that is used to determine which observation providers should be used to get the power values. The values of all matching providers are summed.")
         String observationProvider_target() default "(org.flexiblepower.monitoring.observationOf=something)";
+
+        @AttributeDefinition(required = false,
+                             description = "How the measured flow is smoothed before it is given to the concentrator",
+                             options = { @Option(label = "None", value = "NONE"),
+                                         @Option(label = "Exponentially weighted moving average", value = "EWMA"),
+                                         @Option(label = "Moving average", value = "MOVING_AVERAGE") })
+        String smoothing() default "NONE";
+
+        @AttributeDefinition(required = false,
+                             description = "The time constant of the exponentially weighted moving average in seconds")
+        long smoothingTimeConstantSeconds() default 30;
+
+        @AttributeDefinition(required = false, description = "The number of samples of the moving average")
+        int movingAverageSamples() default 10;
+
+        @AttributeDefinition(required = false,
+                             description = "The measured flow is only given to the concentrator when it changed at least this many watt")
+        double deadbandWatt() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "Minimum time in seconds between two measured flows given to the concentrator")
+        long minimumIntervalSeconds() default 0;
     }
 
     private TransformingConcentrator concentrator;
+    private MeasuredFlowFilter filter;
+
+    @Activate
+    public synchronized void activate(Config config) {
+        filter = new MeasuredFlowFilter(Smoothing.valueOf(config.smoothing()),
+                                        config.smoothingTimeConstantSeconds() * 1000,
+                                        config.movingAverageSamples(),
+                                        config.deadbandWatt(),
+                                        config.minimumIntervalSeconds() * 1000);
+    }
 
     @Reference
     public void setConcentrator(TransformingConcentrator concentrator) {
         this.concentrator = concentrator;
     }
 
-    @Reference
-    public void setObservationProvider(ObservationProvider<PowerState> provider) {
+    @Reference(cardinality = ReferenceCardinality.AT_LEAST_ONE, policy = ReferencePolicy.DYNAMIC)
+    public void addObservationProvider(ObservationProvider<PowerState> provider) {
         provider.subscribe(this);
     }
 
-    public void unsetObservationProvider(ObservationProvider<PowerState> provider) {
+    public void removeObservationProvider(ObservationProvider<PowerState> provider) {
         provider.unsubscribe(this);
+        synchronized (this) {
+            if (filter != null) {
+                filter.remove(provider);
+            }
+        }
     }
 
     @Override
     public void consume(ObservationProvider<? extends PowerState> source,
                         Observation<? extends PowerState> observation) {
-        concentrator.setMeasuredFlow(observation.getValue().getCurrentUsage());
+        double watt = observation.getValue().getCurrentUsage().doubleValue(SI.WATT);
+        double measuredFlow;
+        synchronized (this) {
+            if (filter == null) {
+                // Not activated yet
+                return;
+            }
+            measuredFlow = filter.update(source, watt, observation.getObservedAt().getTime());
+        }
+        if (!Double.isNaN(measuredFlow)) {
+            concentrator.setMeasuredFlow(Measure.valueOf(measuredFlow, SI.WATT));
+        }
     }
 }
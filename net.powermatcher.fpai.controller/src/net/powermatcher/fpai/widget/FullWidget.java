@@ -1,10 +1,14 @@
 package net.powermatcher.fpai.widget;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.flexiblepower.ui.Widget;
 import org.osgi.service.component.annotations.Component;
@@ -28,11 +32,24 @@ import net.powermatcher.api.monitoring.events.IncomingPriceUpdateEvent;
 import net.powermatcher.api.monitoring.events.OutgoingBidUpdateEvent;
 import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
 
+/**
+ * Shows the bids and prices of all agents. The events of the agents only store the raw demand array, the coordinates
+ * of the plots are built when the dashboard asks for them. Every change gets a version number, so the dashboard can
+ * ask for only the agents that changed since its previous poll with {@link #updateSince(Since)}.
+ */
 @Component(property = { "widget.type=full", "widget.name=pmfullwidget" },
            service = Widget.class)
 @Designate(ocd = FullWidget.Config.class)
 public class FullWidget implements Widget, AgentObserver {
-    private final Map<String, AgentInfo> bids = new ConcurrentHashMap<String, AgentInfo>();
+    /** Maximum number of removed agents that are remembered for the delta queries */
+    private static final int MAX_REMOVED = 1000;
+
+    private final ConcurrentMap<String, AgentInfo> bids = new ConcurrentHashMap<String, AgentInfo>();
+    private final AtomicLong version = new AtomicLong();
+    /** The version at which agents were removed */
+    private final Map<String, Long> removed = new ConcurrentHashMap<String, Long>();
+    /** Clients with an older version than this may have missed removed agents and get a full update */
+    private volatile long removedSince = 0;
 
     @ObjectClassDefinition
     public @interface Config {
@@ -43,13 +60,24 @@ public class FullWidget implements Widget, AgentObserver {
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
     public void addAgent(ObservableAgent agent) {
         bids.put(agent.getAgentId(), new AgentInfo(agent.getAgentId()));
+        removed.remove(agent.getAgentId());
         agent.addObserver(this);
     }
 
     public void removeAgent(ObservableAgent agent) {
         agent.removeObserver(this);
-        bids.remove(agent.getAgentId());
-        bids.remove("Aggregated-" + agent.getAgentId());
+        remove(agent.getAgentId());
+        remove("Aggregated-" + agent.getAgentId());
+    }
+
+    private void remove(String key) {
+        if (bids.remove(key) != null) {
+            if (removed.size() >= MAX_REMOVED) {
+                removedSince = version.get();
+                removed.clear();
+            }
+            removed.put(key, version.incrementAndGet());
+        }
     }
 
     @Override
@@ -64,8 +92,8 @@ public class FullWidget implements Widget, AgentObserver {
                 AgentInfo aggregatedInfo = getAggregatedInfo(event.getAgentId());
                 aggregatedInfo.setBid(((AggregatedBidEvent) event).getAggregatedBid());
             } else if (event instanceof OutgoingPriceUpdateEvent) {
-                if (bids.containsKey("Aggregated-" + event.getAgentId())) {
-                    AgentInfo aggregatedInfo = getAggregatedInfo(event.getAgentId());
+                AgentInfo aggregatedInfo = bids.get("Aggregated-" + event.getAgentId());
+                if (aggregatedInfo != null) {
                     aggregatedInfo.setPrice(((OutgoingPriceUpdateEvent) event).getPriceUpdate());
                 }
             }
@@ -74,10 +102,15 @@ public class FullWidget implements Widget, AgentObserver {
 
     private AgentInfo getAggregatedInfo(String agentId) {
         String key = "Aggregated-" + agentId;
-        if (!bids.containsKey(key)) {
-            bids.put(key, new AgentInfo(key));
+        AgentInfo info = bids.get(key);
+        if (info == null) {
+            AgentInfo newInfo = new AgentInfo(key);
+            info = bids.putIfAbsent(key, newInfo);
+            if (info == null) {
+                info = newInfo;
+            }
         }
-        return bids.get(key);
+        return info;
     }
 
     @Override
@@ -85,54 +118,193 @@ public class FullWidget implements Widget, AgentObserver {
         return "PowerMatcher overview";
     }
 
-    public Map<String, AgentInfo> update() {
-        Map<String, AgentInfo> copy = new TreeMap<String, FullWidget.AgentInfo>(bids);
-        for (Iterator<AgentInfo> it = copy.values().iterator(); it.hasNext();) {
-            AgentInfo agentInfo = it.next();
-            if (agentInfo.priceBidNumber == 0 || agentInfo.coordinates.length == 0) {
-                it.remove();
+    /**
+     * @return All agents that have a bid and received a price
+     */
+    public Update update() {
+        return updateSince(new Since());
+    }
+
+    /**
+     * @param since
+     *            The version of the last update the client received
+     * @return The agents that changed after that version, or all agents when the client may have missed a removal
+     */
+    public Update updateSince(Since since) {
+        long currentVersion = version.get();
+        boolean full = since.version < removedSince || since.version > currentVersion;
+        long fromVersion = full ? -1 : since.version;
+
+        Map<String, AgentView> agents = new TreeMap<String, AgentView>();
+        for (AgentInfo info : bids.values()) {
+            if (info.version.get() > fromVersion) {
+                AgentView view = info.getView();
+                if (view != null) {
+                    agents.put(info.agentId, view);
+                }
+            }
+        }
+        List<String> removedAgents = new ArrayList<String>();
+        if (!full) {
+            for (Entry<String, Long> entry : removed.entrySet()) {
+                if (entry.getValue() > fromVersion) {
+                    removedAgents.add(entry.getKey());
+                }
             }
         }
-        return copy;
+        return new Update(currentVersion, full, agents, removedAgents);
+    }
+
+    /**
+     * The parameter of {@link FullWidget#updateSince(Since)}
+     */
+    public static class Since {
+        public long version = -1;
     }
 
-    public static class AgentInfo {
+    /**
+     * The answer to a poll of the dashboard
+     */
+    public static class Update {
+        public final long version;
+        /** When true the client should discard the agents it knows */
+        public final boolean full;
+        public final Map<String, AgentView> agents;
+        public final List<String> removed;
+
+        public Update(long version, boolean full, Map<String, AgentView> agents, List<String> removed) {
+            this.version = version;
+            this.full = full;
+            this.agents = agents;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * The plot of a single agent, as it is sent to the dashboard
+     */
+    public static class AgentView {
         public final String agentId;
-        public volatile double[][] coordinates;
-        public volatile int bidNumber;
-        public volatile double price;
-        public volatile int priceBidNumber;
-        public volatile double maxDemand;
+        public final double[][] coordinates;
+        public final int bidNumber;
+        public final double price;
+        public final int priceBidNumber;
+        public final double maxDemand;
+        private final transient long version;
 
-        public AgentInfo(String agentId) {
+        AgentView(String agentId,
+                  double[][] coordinates,
+                  int bidNumber,
+                  double price,
+                  int priceBidNumber,
+                  double maxDemand,
+                  long version) {
             this.agentId = agentId;
-            coordinates = new double[0][];
-            price = 0;
-            maxDemand = 1;
+            this.coordinates = coordinates;
+            this.bidNumber = bidNumber;
+            this.price = price;
+            this.priceBidNumber = priceBidNumber;
+            this.maxDemand = maxDemand;
+            this.version = version;
         }
+    }
 
-        public void setBid(Bid bid) {
-            double[] demand = bid.getDemand();
+    /** The last bid of an agent, as it was received */
+    private static class BidData {
+        private final double[] demand;
+        private final MarketBasis marketBasis;
+        private final int bidNumber;
 
-            double[][] coordinates = new double[demand.length][];
-            MarketBasis mb = bid.getMarketBasis();
-            maxDemand = 1;
-            for (int i = 0; i < demand.length; i++) {
-                coordinates[i] = new double[] { Price.fromPriceIndex(mb, i).getPriceValue(), demand[i] };
-                maxDemand = Math.max(Math.abs(demand[i]), maxDemand);
-            }
+        BidData(double[] demand, MarketBasis marketBasis, int bidNumber) {
+            this.demand = demand;
+            this.marketBasis = marketBasis;
+            this.bidNumber = bidNumber;
+        }
+    }
 
-            this.coordinates = coordinates;
+    /** The price an agent received */
+    private static class PriceData {
+        private final double price;
+        private final int bidNumber;
+
+        PriceData(double price, int bidNumber) {
+            this.price = price;
+            this.bidNumber = bidNumber;
+        }
+    }
+
+    private class AgentInfo {
+        private final String agentId;
+        private volatile BidData bid;
+        private volatile PriceData price;
+        private final AtomicLong version = new AtomicLong();
+        private volatile AgentView view;
+
+        AgentInfo(String agentId) {
+            this.agentId = agentId;
+        }
+
+        void setBid(Bid bid) {
+            setBid(bid, this.bid == null ? 0 : this.bid.bidNumber);
         }
 
-        public void setBid(BidUpdate bidUpdate) {
-            setBid(bidUpdate.getBid());
-            bidNumber = bidUpdate.getBidNumber();
+        void setBid(BidUpdate bidUpdate) {
+            setBid(bidUpdate.getBid(), bidUpdate.getBidNumber());
         }
 
-        public void setPrice(PriceUpdate priceUpdate) {
-            price = priceUpdate.getPrice().getPriceValue();
-            priceBidNumber = priceUpdate.getBidNumber();
+        private void setBid(Bid bid, int bidNumber) {
+            this.bid = new BidData(bid.getDemand(), bid.getMarketBasis(), bidNumber);
+            updateVersion();
+        }
+
+        void setPrice(PriceUpdate priceUpdate) {
+            price = new PriceData(priceUpdate.getPrice().getPriceValue(), priceUpdate.getBidNumber());
+            updateVersion();
+        }
+
+        /**
+         * Takes a new version of the widget. A concurrent update may have taken a newer version already, so the version
+         * of the agent never moves backwards.
+         */
+        private void updateVersion() {
+            long newVersion = FullWidget.this.version.incrementAndGet();
+            long currentVersion = version.get();
+            while (currentVersion < newVersion && !version.compareAndSet(currentVersion, newVersion)) {
+                currentVersion = version.get();
+            }
+        }
+
+        /**
+         * @return The plot of the current bid and price, or <code>null</code> when the agent has no bid or price yet
+         */
+        AgentView getView() {
+            long currentVersion = version.get();
+            AgentView view = this.view;
+            if (view != null && view.version == currentVersion) {
+                return view;
+            }
+
+            BidData bid = this.bid;
+            PriceData price = this.price;
+            if (bid == null || bid.demand.length == 0 || price == null || price.bidNumber == 0) {
+                return null;
+            }
+            double[][] coordinates = new double[bid.demand.length][];
+            double maxDemand = 1;
+            for (int i = 0; i < bid.demand.length; i++) {
+                coordinates[i] = new double[] { Price.fromPriceIndex(bid.marketBasis, i).getPriceValue(),
+                                                bid.demand[i] };
+                maxDemand = Math.max(Math.abs(bid.demand[i]), maxDemand);
+            }
+            view = new AgentView(agentId,
+                                 coordinates,
+                                 bid.bidNumber,
+                                 price.price,
+                                 price.bidNumber,
+                                 maxDemand,
+                                 currentVersion);
+            this.view = view;
+            return view;
         }
     }
 }
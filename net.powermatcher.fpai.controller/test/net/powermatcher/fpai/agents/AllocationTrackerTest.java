@@ -0,0 +1,57 @@
+package net.powermatcher.fpai.agents;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+public class AllocationTrackerTest extends TestCase {
+
+    private final BufferBidElement[] on = new BufferBidElement[] { new BufferBidElement(0, 1, 1000) };
+    private final BufferBidElement[] off = new BufferBidElement[] { new BufferBidElement(0, 0, 0) };
+
+    /**
+     * Test: Suppression is not configured
+     *
+     * Expected behavior: Every allocation is sent
+     */
+    public void testDisabled() {
+        AllocationTracker tracker = new AllocationTracker();
+        assertTrue(tracker.shouldSend(on, 0));
+        assertTrue(tracker.shouldSend(on, 1));
+        assertEquals(2, tracker.getSentAllocations());
+        assertEquals(0, tracker.getSuppressedAllocations());
+    }
+
+    /**
+     * Test: The same running mode is allocated repeatedly
+     *
+     * Expected behavior: It is only sent again after a change or after the re-assert period
+     */
+    public void testSuppression() {
+        AllocationTracker tracker = new AllocationTracker();
+        tracker.setReassertPeriodMs(10000);
+        assertTrue(tracker.shouldSend(on, 0));
+        assertFalse(tracker.shouldSend(on, 1000));
+        assertTrue(tracker.shouldSend(off, 2000));
+        assertFalse(tracker.shouldSend(off, 3000));
+        assertTrue(tracker.shouldSend(off, 12000));
+        assertEquals(3, tracker.getSentAllocations());
+        assertEquals(2, tracker.getSuppressedAllocations());
+    }
+
+    /**
+     * Test: The resource manager reports a different running mode, or rejects the allocation
+     *
+     * Expected behavior: The next allocation is sent again
+     */
+    public void testObservedRunningModeAndReset() {
+        AllocationTracker tracker = new AllocationTracker();
+        tracker.setReassertPeriodMs(10000);
+        assertTrue(tracker.shouldSend(on, 0));
+        tracker.runningModeObserved(0, 1);
+        assertFalse(tracker.shouldSend(on, 1000));
+        tracker.runningModeObserved(0, 0);
+        assertTrue(tracker.shouldSend(on, 2000));
+        tracker.reset();
+        assertTrue(tracker.shouldSend(on, 3000));
+    }
+}
@@ -263,6 +263,32 @@ public class BufferAgentTest extends TestCase {
         BidAnalyzer.assertFlatBidWithValue(bid, Measure.valueOf(NOMINAL_POWER_ON, SI.WATT));
     }
 
+    /**
+     * Test: Agent has two runningmodes, but the other is blocked by a timer that finishes after a while
+     *
+     * Expected behavior: Agent creates a bid with flexibility as soon as the timer finishes, without a new state update
+     */
+    public void testTimerExpiry() throws Exception {
+        BufferRegistration<Temperature> registration = singleActuatorRegistration();
+        agentSender.handleMessage(registration);
+        agentSender.handleMessage(systemDescription(registration));
+
+        TimerUpdate minOnTimer = new TimerUpdate(0, new Date(context.currentTimeMillis() + 5000)); // blocking
+        ActuatorUpdate au = new ActuatorUpdate(0, 1, Collections.singleton(minOnTimer)); // current running mode is on
+        agentSender.handleMessage(new BufferStateUpdate<Temperature>(registration,
+                                                                     context.currentTime(),
+                                                                     context.currentTime(),
+                                                                     Measure.valueOf(60, SI.CELSIUS),
+                                                                     Collections.singleton(au)));
+        BidAnalyzer.assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(NOMINAL_POWER_ON, SI.WATT));
+
+        // A bid update is scheduled at the end of the timer
+        assertEquals(context.currentTimeMillis() + 5000, context.getScheduleTime());
+        context.jump(5000);
+        context.doTaskOnce();
+        BidAnalyzer.assertNonFlatBid(session.getLastBid().getBid());
+    }
+
     /**
      * Test: Agent has two running modes, but they are not connected through a transition
      *
@@ -364,6 +390,34 @@ public class BufferAgentTest extends TestCase {
         BidAnalyzer.assertStepBid(bid2);
     }
 
+    /**
+     * Test: Agent uses a bid cache and receives two state updates with almost the same fill level.
+     *
+     * Expected behavior: The second bid comes from the cache and is the same as the first one.
+     */
+    public void testBidCache() {
+        BufferBidCache cache = new BufferBidCache(8, 0.1, 0.01);
+        agent.setBidCache(cache);
+
+        BufferRegistration<Temperature> registration = singleActuatorRegistration();
+        agentSender.handleMessage(registration);
+        agentSender.handleMessage(systemDescription(registration));
+
+        for (double fillLevel : new double[] { 35, 35.02 }) {
+            agentSender.handleMessage(new BufferStateUpdate<Temperature>(registration,
+                                                                         context.currentTime(),
+                                                                         context.currentTime(),
+                                                                         Measure.valueOf(fillLevel, SI.CELSIUS),
+                                                                         Collections.<ActuatorUpdate> singleton(new ActuatorUpdate(0,
+                                                                                                                                   1,
+                                                                                                                                   Collections.<TimerUpdate> emptySet()))));
+        }
+
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        BidAnalyzer.assertStepBid(session.getLastBid().getBid());
+    }
+
     /**
      * Test: The timer has just finished.
      *
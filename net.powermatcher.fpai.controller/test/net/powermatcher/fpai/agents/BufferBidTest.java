@@ -3,6 +3,8 @@ package net.powermatcher.fpai.agents;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
 import javax.measure.Measure;
 import javax.measure.unit.SI;
@@ -145,4 +147,86 @@ public class BufferBidTest extends TestCase {
             System.out.println(priority + ": " + new BufferBid(marketBasis, l, priority).toBid());
         }
     }
+
+    public void testSharedShaperMatchesLinearScan() {
+        MarketBasis largeMarketBasis = new MarketBasis("electricity", "EUR", 1000, 0.0, 0.9);
+        BufferBidShaper shaper = new BufferBidShaper();
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            List<BufferBidElement> l = new ArrayList<BufferBidElement>();
+            int runningModes = 1 + random.nextInt(40);
+            for (int i = 0; i < runningModes; i++) {
+                l.add(new BufferBidElement(1, i, (random.nextInt(41) - 20) * 100));
+            }
+            double priority = random.nextDouble() * 2.4 - 1.2;
+            BufferBid bb = new BufferBid(largeMarketBasis, l, priority, shaper);
+
+            TreeSet<BufferBidElement> sorted = new TreeSet<BufferBidElement>(l);
+            double cubedPriority = Math.pow(priority, 3);
+            double minFraction = cubedPriority >= 0 ? cubedPriority : 0.0;
+            double maxFraction = cubedPriority >= 0 ? 1.0 : cubedPriority + 1;
+            double[] rawDemand;
+            if (cubedPriority >= 1.0) {
+                rawDemand = Bid.flatDemand(largeMarketBasis, sorted.first().getDemandWatt()).getDemand();
+            } else if (cubedPriority <= -1.0) {
+                rawDemand = Bid.flatDemand(largeMarketBasis, sorted.last().getDemandWatt()).getDemand();
+            } else {
+                rawDemand = Bid.create(largeMarketBasis)
+                               .add(minFraction * 0.9, sorted.first().getDemandWatt())
+                               .add(maxFraction * 0.9, sorted.last().getDemandWatt())
+                               .build()
+                               .getDemand();
+            }
+
+            double[] demand = bb.toBid().getDemand();
+            for (int i = 0; i < rawDemand.length; i++) {
+                BufferBidElement expected = null;
+                double bestDistance = Double.MAX_VALUE;
+                for (BufferBidElement e : sorted) {
+                    double distance = Math.abs(rawDemand[i] - e.getDemandWatt());
+                    if (expected == null || distance < bestDistance) {
+                        expected = e;
+                        bestDistance = distance;
+                    }
+                }
+                Assert.assertSame(expected, bb.runningModeForPrice(Price.fromPriceIndex(largeMarketBasis, i)));
+                Assert.assertEquals(expected.getDemandWatt(), demand[i]);
+            }
+        }
+    }
+
+    public void testCombinedBidOfTwoActuators() {
+        BufferBidElement off1 = new BufferBidElement(1, 1, 0);
+        BufferBidElement on1 = new BufferBidElement(1, 2, 1000);
+        BufferBidElement off2 = new BufferBidElement(2, 1, 0);
+        BufferBidElement half2 = new BufferBidElement(2, 2, 250);
+        BufferBidElement on2 = new BufferBidElement(2, 3, 500);
+
+        BufferBidShaper shaper = new BufferBidShaper();
+        BufferBid bb1 = new BufferBid(marketBasis, Arrays.asList(new BufferBidElement[] { off1, on1 }), 0.0, shaper);
+        BufferBid bb2 = new BufferBid(marketBasis,
+                                      Arrays.asList(new BufferBidElement[] { off2, half2, on2 }),
+                                      0.5,
+                                      shaper);
+        CombinedBufferBid combined = new CombinedBufferBid(marketBasis, Arrays.asList(bb1, bb2));
+
+        double[] demand1 = bb1.toBid().getDemand();
+        double[] demand2 = bb2.toBid().getDemand();
+        double[] demand = combined.toBid().getDemand();
+        for (int i = 0; i < demand.length; i++) {
+            Price price = Price.fromPriceIndex(marketBasis, i);
+            Assert.assertEquals(demand1[i] + demand2[i], demand[i]);
+            if (i > 0) {
+                Assert.assertTrue(demand[i] <= demand[i - 1]);
+            }
+            BufferBidElement[] runningModes = combined.runningModesForPrice(price);
+            Assert.assertEquals(2, runningModes.length);
+            Assert.assertSame(bb1.runningModeForPrice(price), runningModes[0]);
+            Assert.assertSame(bb2.runningModeForPrice(price), runningModes[1]);
+        }
+
+        // Price steps with the same running modes share their table entry
+        Assert.assertSame(combined.runningModesForPrice(Price.fromPriceIndex(marketBasis, 0)),
+                          combined.runningModesForPrice(Price.fromPriceIndex(marketBasis, 1)));
+    }
 }
@@ -0,0 +1,50 @@
+package net.powermatcher.fpai.agents;
+
+import junit.framework.TestCase;
+
+public class CurtailmentTableTest extends TestCase {
+
+    public void testProductionIsCurtailedAtLowPrices() {
+        // 11 price steps, production is curtailed below the price index 5
+        CurtailmentTable table = new CurtailmentTable(new double[] { -1000, 0, -1000 }, 11, 0.5, true);
+
+        assertEquals(2, table.getLevelCount());
+        assertEquals(0, table.levelForPriceIndex(0));
+        assertEquals(0, table.levelForPriceIndex(2));
+        assertEquals(1, table.levelForPriceIndex(3));
+        assertEquals(1, table.levelForPriceIndex(4));
+        assertEquals(CurtailmentTable.NO_CURTAILMENT, table.levelForPriceIndex(5));
+        assertEquals(-1000.0, table.getSignedLimitWatt(1));
+
+        double[] demand = table.curtailedDemand(-3000);
+        assertEquals(0.0, demand[0]);
+        assertEquals(-1000.0, demand[4]);
+        assertEquals(-3000.0, demand[10]);
+        // The bid does not increase with the price
+        for (int i = 1; i < demand.length; i++) {
+            assertTrue(demand[i] <= demand[i - 1]);
+        }
+    }
+
+    public void testConsumptionIsCurtailedAtHighPrices() {
+        CurtailmentTable table = new CurtailmentTable(new double[] { 0, 500 }, 11, 0.5, false);
+
+        assertEquals(CurtailmentTable.NO_CURTAILMENT, table.levelForPriceIndex(5));
+        assertEquals(1, table.levelForPriceIndex(6));
+        assertEquals(0, table.levelForPriceIndex(10));
+
+        double[] demand = table.curtailedDemand(800);
+        assertEquals(800.0, demand[5]);
+        assertEquals(500.0, demand[6]);
+        assertEquals(0.0, demand[10]);
+        // A limit above the demand does not change it
+        assertEquals(200.0, table.curtailedDemand(6, 200));
+    }
+
+    public void testWithoutOptions() {
+        CurtailmentTable table = new CurtailmentTable(new double[0], 11, 0.5, true);
+        for (int i = 0; i < 11; i++) {
+            assertEquals(CurtailmentTable.NO_CURTAILMENT, table.levelForPriceIndex(i));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package net.powermatcher.fpai.agents;
+
+import junit.framework.TestCase;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+
+public class SharedBidsTest extends TestCase {
+
+    private final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 100, 0, 99);
+
+    public void testSharedPerMarketBasis() {
+        SharedBids sharedBids = SharedBids.of(marketBasis);
+        assertSame(sharedBids, SharedBids.of(new MarketBasis("electricity", "EUR", 100, 0, 99)));
+        assertNotSame(sharedBids, SharedBids.of(new MarketBasis("electricity", "EUR", 50, 0, 99)));
+    }
+
+    public void testZeroAndMustOff() {
+        SharedBids sharedBids = SharedBids.of(marketBasis);
+        assertEquals(Bid.flatDemand(marketBasis, 0), sharedBids.zero());
+        assertSame(sharedBids.zero(), sharedBids.flatDemand(0));
+        assertSame(sharedBids.zero(), sharedBids.flatDemand(-0.0));
+        for (double demand : sharedBids.mustOff().getDemand()) {
+            assertEquals(0, demand, 0);
+        }
+    }
+
+    public void testFlatDemandIsCanonical() {
+        SharedBids sharedBids = SharedBids.of(marketBasis);
+        Bid bid = sharedBids.flatDemand(1500);
+        assertEquals(Bid.flatDemand(marketBasis, 1500), bid);
+        assertSame(bid, sharedBids.flatDemand(1500));
+        assertNotSame(bid, sharedBids.flatDemand(1501));
+        assertTrue(sharedBids.flatBidCount() >= 2);
+    }
+}
@@ -14,6 +14,7 @@ import junit.framework.TestCase;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.fpai.test.BidAnalyzer;
 import net.powermatcher.fpai.test.MockAgentSender;
@@ -368,6 +369,43 @@ public class UnconstrainedAgentTest extends TestCase {
 
     }
 
+    /**
+     * Test: The matcher responds with a price before publishing the bid has finished.
+     *
+     * Expected behavior: The price is handled with the bid that is being published, so the device goes off at the
+     * maximum price.
+     */
+    public void testPriceWhilePublishing() {
+        MockAgentSender<UnconstrainedAgent> respondingSender = MockAgentSender.create(UnconstrainedAgent.class,
+                                                                                      "agent-2",
+                                                                                      "matcher");
+        final UnconstrainedAgent respondingAgent = respondingSender.getAgent();
+        respondingAgent.setContext(context);
+        respondingAgent.connectToMatcher(new MockSession(marketBasis) {
+            @Override
+            public void updateBid(BidUpdate newBid) {
+                super.updateBid(newBid);
+                respondingAgent.handlePriceUpdate(new PriceUpdate(new Price(marketBasis,
+                                                                            marketBasis.getMaximumPrice()),
+                                                                  newBid.getBidNumber()));
+            }
+        });
+
+        UnconstrainedRegistration registration = unconstrainedRegistration();
+        respondingSender.handleMessage(registration);
+        respondingSender.handleMessage(systemDescription(registration));
+        TimerUpdate minOnTimer = new TimerUpdate(0, new Date(context.currentTimeMillis() - 50)); // finished
+        respondingSender.handleMessage(new UnconstrainedStateUpdate(RESOURCE_ID,
+                                                                    context.currentTime(),
+                                                                    context.currentTime(),
+                                                                    1,
+                                                                    Collections.singleton(minOnTimer)));
+
+        Assert.assertEquals(Collections.<RunningModeSelector> singleton(new RunningModeSelector(0,
+                                                                                                context.currentTime())),
+                            (((UnconstrainedAllocation) (respondingSender.getLastMessage())).getRunningModeSelectors()));
+    }
+
     /**
      * Test: not implemented yet...
      */
@@ -24,6 +24,7 @@ import org.flexiblepower.ral.values.CommodityForecast;
 import org.flexiblepower.ral.values.CommodityMeasurables;
 import org.flexiblepower.ral.values.CommoditySet;
 import org.flexiblepower.ral.values.CommodityUncertainMeasurables;
+import org.flexiblepower.ral.values.ConstraintList;
 import org.flexiblepower.ral.values.ConstraintListMap;
 import org.flexiblepower.ral.values.UncertainMeasure;
 
@@ -104,7 +105,7 @@ public class UncontrolledAgentTest extends TestCase {
     /**
      * Test: Agent receives an {@link UncontrolledForecast}
      *
-     * Expected behavior: Agent ignores it; does not break and does not disconnect
+     * Expected behavior: Agent bids the forecast demand of the current element
      */
     public void testUncontrolledForecast() {
         agentSender.handleMessage(new UncontrolledRegistration("resourceId",
@@ -113,7 +114,7 @@ public class UncontrolledAgentTest extends TestCase {
                                                                CommoditySet.create().addElectricity().addGas().build(),
                                                                ConstraintListMap.EMPTY));
 
-        Date now = new Date();
+        Date now = context.currentTime();
         CommodityForecast forecast = CommodityForecast.create()
                                                       .duration(Measure.valueOf(10, NonSI.MINUTE))
                                                       .add(CommodityUncertainMeasurables.create()
@@ -122,6 +123,105 @@ public class UncontrolledAgentTest extends TestCase {
                                                                                         .build())
                                                       .build();
         agent.handleControlSpaceUpdate(new UncontrolledForecast("resourceId", now, now, forecast));
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(50, SI.WATT));
+    }
+
+    private void sendTwoElementForecast() {
+        agentSender.handleMessage(new UncontrolledRegistration("resourceId",
+                                                               new Date(),
+                                                               Measure.zero(SI.SECOND),
+                                                               CommoditySet.onlyElectricity,
+                                                               ConstraintListMap.EMPTY));
+        Date now = context.currentTime();
+        CommodityForecast forecast = CommodityForecast.create()
+                                                      .duration(Measure.valueOf(10, NonSI.MINUTE))
+                                                      .add(CommodityUncertainMeasurables.create()
+                                                                                        .electricity(new UncertainMeasure<Power>(1000,
+                                                                                                                                 SI.WATT))
+                                                                                        .build())
+                                                      .add(CommodityUncertainMeasurables.create()
+                                                                                        .electricity(new UncertainMeasure<Power>(200,
+                                                                                                                                 SI.WATT))
+                                                                                        .build())
+                                                      .build();
+        agentSender.handleMessage(new UncontrolledForecast("resourceId", now, now, forecast));
+    }
+
+    private void sendMeasurement(double demand) {
+        Date now = context.currentTime();
+        agentSender.handleMessage(new UncontrolledMeasurement("resourceId",
+                                                              now,
+                                                              now,
+                                                              CommodityMeasurables.electricity(Measure.valueOf(demand,
+                                                                                                               SI.WATT))));
+    }
+
+    /**
+     * Test: Agent has a forecast and receives measurements
+     *
+     * Expected behavior: Measurements within the band of the forecast do not change the bid, others do
+     */
+    public void testForecastBand() {
+        sendTwoElementForecast();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(1000, SI.WATT));
+        int bidNumber = session.getLastBid().getBidNumber();
+
+        // Within 10% of the forecast
+        sendMeasurement(1050);
+        sendMeasurement(960);
+        assertEquals(bidNumber, session.getLastBid().getBidNumber());
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(1000, SI.WATT));
+
+        // Outside the band the measurement is bid
+        sendMeasurement(1500);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(1500, SI.WATT));
+
+        // Back within the band
+        sendMeasurement(1010);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(1000, SI.WATT));
+    }
+
+    /**
+     * Test: Agent has a forecast and time passes to the next element
+     *
+     * Expected behavior: The bid is updated at the start of the next element without a new measurement
+     */
+    public void testForecastElementBoundary() {
+        sendTwoElementForecast();
+        assertEquals(context.currentTimeMillis() + 10 * 60 * 1000, context.getScheduleTime());
+
+        context.jump(10 * 60 * 1000);
+        context.doTaskOnce();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(200, SI.WATT));
+        // The end of the forecast is the next boundary
+        assertEquals(context.currentTimeMillis() + 10 * 60 * 1000, context.getScheduleTime());
+
+        // After the forecast the last measurement is bid again
+        sendMeasurement(300);
+        context.jump(10 * 60 * 1000);
+        context.doTaskOnce();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(300, SI.WATT));
+    }
+
+    /**
+     * Test: Agent of a curtailable PV panel
+     *
+     * Expected behavior: The bid curtails the production at low prices, strongest at the lowest prices
+     */
+    public void testCurtailment() {
+        ConstraintList<Power> options = ConstraintList.create(SI.WATT).addSingle(0).addSingle(-1000).build();
+        agentSender.handleMessage(new UncontrolledRegistration("resourceId",
+                                                               new Date(),
+                                                               Measure.zero(SI.SECOND),
+                                                               CommoditySet.onlyElectricity,
+                                                               ConstraintListMap.electricity(options)));
+        sendMeasurement(-3000);
+
+        // Below 20% of the price scale the production is curtailed, strongest at the lowest prices
+        double[] demand = session.getLastBid().getBid().getDemand();
+        assertEquals(0, demand[0], 0.001);
+        assertEquals(-1000, demand[15], 0.001);
+        assertEquals(-3000, demand[50], 0.001);
     }
 
     /**
@@ -151,4 +251,58 @@ public class UncontrolledAgentTest extends TestCase {
         }
 
     }
+
+    /**
+     * Test: Agent coalesces bids and receives a burst of {@link UncontrolledMeasurement}s
+     *
+     * Expected behavior: Agent publishes the first bid immediately and the last one after the minimum interval
+     */
+    public void testBidCoalescing() {
+        agent.setBidCoalescing(1000, 0, FpaiAgent.DEFAULT_THRESHOLD_DELAY_MS);
+        agentSender.handleMessage(new UncontrolledRegistration("resourceId",
+                                                               new Date(),
+                                                               Measure.zero(SI.SECOND),
+                                                               CommoditySet.onlyElectricity,
+                                                               ConstraintListMap.EMPTY));
+
+        for (double demand : new double[] { 100, 200, 300 }) {
+            Date now = context.currentTime();
+            agentSender.handleMessage(new UncontrolledMeasurement("resourceId",
+                                                                  now,
+                                                                  now,
+                                                                  CommodityMeasurables.electricity(Measure.valueOf(demand,
+                                                                                                                   SI.WATT))));
+        }
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+
+        context.jump(1000);
+        context.doTaskIfTimeIsRight();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(300, SI.WATT));
+    }
+
+    /**
+     * Test: Agent only has a demand threshold and the demand drifts in small steps
+     *
+     * Expected behavior: The small changes are held back, but the latest demand is published by the trailing bid update
+     */
+    public void testBidDemandThreshold() {
+        agent.setBidCoalescing(0, 50, 5000);
+        agentSender.handleMessage(new UncontrolledRegistration("resourceId",
+                                                               new Date(),
+                                                               Measure.zero(SI.SECOND),
+                                                               CommoditySet.onlyElectricity,
+                                                               ConstraintListMap.EMPTY));
+        sendMeasurement(100);
+        sendMeasurement(130);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+
+        // Still held back before the delay of the threshold
+        context.jump(4000);
+        context.doTaskIfTimeIsRight();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+
+        context.jump(1000);
+        context.doTaskIfTimeIsRight();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(130, SI.WATT));
+    }
 }
@@ -0,0 +1,108 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.uncontrolled.UncontrolledMeasurement;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+
+public class AgentMailboxTest extends TestCase {
+
+    /** Executor that only runs the submitted tasks when asked to. */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        public void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<Object> processed = new ArrayList<Object>();
+    private final AgentMailbox.Consumer consumer = new AgentMailbox.Consumer() {
+        @Override
+        public void process(Object message) {
+            processed.add(message);
+        }
+    };
+
+    private static UncontrolledMeasurement measurement(double demand) {
+        Date now = new Date();
+        return new UncontrolledMeasurement("resourceId",
+                                           now,
+                                           now,
+                                           CommodityMeasurables.electricity(Measure.valueOf(demand, SI.WATT)));
+    }
+
+    /**
+     * Test: Messages are offered to a mailbox
+     *
+     * Expected behavior: They are processed in order by a single task
+     */
+    public void testOrder() {
+        AgentMailbox mailbox = new AgentMailbox(consumer, executor, 100, AgentMailbox.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 50; i++) {
+            mailbox.offer(Integer.valueOf(i));
+        }
+        assertEquals(1, executor.tasks.size());
+        assertEquals(50, mailbox.getQueueDepth());
+
+        executor.runAll();
+        assertEquals(50, processed.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), processed.get(i));
+        }
+        assertEquals(0, mailbox.getQueueDepth());
+        assertEquals(50, mailbox.getProcessedMessages());
+        assertEquals(50, mailbox.getMaximumQueueDepth());
+    }
+
+    /**
+     * Test: A full mailbox receives a new update of a type that is already queued
+     *
+     * Expected behavior: The old update is removed and the new one is queued at the end
+     */
+    public void testCollapseUpdates() {
+        AgentMailbox mailbox = new AgentMailbox(consumer, executor, 2, AgentMailbox.OverflowPolicy.COLLAPSE_UPDATES);
+        UncontrolledMeasurement first = measurement(100);
+        UncontrolledMeasurement second = measurement(200);
+        mailbox.offer(first);
+        mailbox.offer("other");
+        mailbox.offer(second);
+
+        executor.runAll();
+        assertEquals(2, processed.size());
+        assertEquals("other", processed.get(0));
+        assertSame(second, processed.get(1));
+        assertEquals(1, mailbox.getCollapsedMessages());
+    }
+
+    /**
+     * Test: A message is offered to a closed mailbox
+     *
+     * Expected behavior: The message is dropped
+     */
+    public void testClosed() {
+        AgentMailbox mailbox = new AgentMailbox(consumer, executor, 2, AgentMailbox.OverflowPolicy.BLOCK);
+        mailbox.offer("message");
+        mailbox.close();
+        assertFalse(mailbox.offer("another message"));
+
+        executor.runAll();
+        assertTrue(processed.isEmpty());
+    }
+}
@@ -0,0 +1,161 @@
+package net.powermatcher.fpai.controller;
+
+import junit.framework.TestCase;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.fpai.agents.MockContext;
+import net.powermatcher.fpai.test.MockSession;
+
+public class LocalConcentratorTest extends TestCase {
+
+    private static class FlatAgent extends BaseAgentEndpoint {
+        private final MarketBasis marketBasis;
+        PriceUpdate lastPriceUpdate;
+
+        FlatAgent(String agentId, MarketBasis marketBasis) {
+            this.marketBasis = marketBasis;
+            init(agentId, "concentrator");
+        }
+
+        void bid(double demand) {
+            publishBid(Bid.flatDemand(marketBasis, demand));
+        }
+
+        int lastBidNumber() {
+            return getLastBidUpdate().getBidNumber();
+        }
+
+        @Override
+        public void handlePriceUpdate(PriceUpdate priceUpdate) {
+            super.handlePriceUpdate(priceUpdate);
+            lastPriceUpdate = priceUpdate;
+        }
+    }
+
+    private final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 100, 0, 99);
+    private final MockSession session = new MockSession(marketBasis);
+    private final MockContext context = new MockContext(System.currentTimeMillis());
+
+    private LocalConcentrator concentrator;
+    private FlatAgent agent1, agent2;
+
+    @Override
+    protected void setUp() throws Exception {
+        concentrator = new LocalConcentrator("concentrator", "matcher", 1000);
+        concentrator.setContext(context);
+        agent1 = new FlatAgent("agent-1", marketBasis);
+        agent2 = new FlatAgent("agent-2", marketBasis);
+        concentrator.addAgent(agent1);
+        concentrator.connectToMatcher(session);
+        concentrator.addAgent(agent2);
+    }
+
+    /**
+     * Test: Two local agents send a bid, after which the price is sent back
+     *
+     * Expected behavior: A single aggregated bid is sent upstream after the interval and the price reaches both agents
+     * with the number of their own bid
+     */
+    public void testAggregation() {
+        assertEquals(2, concentrator.getAgentCount());
+        agent1.bid(100);
+        agent2.bid(200);
+        agent2.bid(250);
+        assertNull(session.getLastBid());
+
+        context.doTaskOnce();
+        assertEquals(350, session.getLastBid().getBid().getDemandAt(new Price(marketBasis, 50)), 1e-9);
+
+        int bidNumber = session.getLastBid().getBidNumber();
+
+        // Nothing changed, so nothing is sent
+        session.reset();
+        context.doTaskOnce();
+        assertNull(session.getLastBid());
+
+        concentrator.handlePriceUpdate(new PriceUpdate(new Price(marketBasis, 42), bidNumber));
+        assertEquals(42, agent1.lastPriceUpdate.getPrice().getPriceValue(), 1e-9);
+        assertEquals(agent1.lastBidNumber(), agent1.lastPriceUpdate.getBidNumber());
+        assertEquals(agent2.lastBidNumber(), agent2.lastPriceUpdate.getBidNumber());
+    }
+
+    /**
+     * Test: The upstream matcher responds with a price before publishing the aggregated bid has finished
+     *
+     * Expected behavior: The price reaches the local agents
+     */
+    public void testPriceWhilePublishing() {
+        concentrator = new LocalConcentrator("concentrator", "matcher", 1000);
+        concentrator.setContext(context);
+        agent1 = new FlatAgent("agent-1", marketBasis);
+        concentrator.addAgent(agent1);
+        concentrator.connectToMatcher(new MockSession(marketBasis) {
+            @Override
+            public void updateBid(BidUpdate newBid) {
+                super.updateBid(newBid);
+                concentrator.handlePriceUpdate(new PriceUpdate(new Price(marketBasis, 42), newBid.getBidNumber()));
+            }
+        });
+        agent1.bid(100);
+
+        context.doTaskOnce();
+        assertNotNull(agent1.lastPriceUpdate);
+        assertEquals(agent1.lastBidNumber(), agent1.lastPriceUpdate.getBidNumber());
+    }
+
+    /**
+     * Test: The local agents bid again, but the aggregated bid stays the same
+     *
+     * Expected behavior: Nothing is sent upstream, but a price on the published bid reaches the agents with the
+     * numbers of their new bids
+     */
+    public void testUnchangedAggregation() {
+        agent1.bid(100);
+        agent2.bid(200);
+        context.doTaskOnce();
+        int bidNumber = session.getLastBid().getBidNumber();
+
+        agent1.bid(200);
+        agent2.bid(100);
+        session.reset();
+        context.doTaskOnce();
+        assertNull(session.getLastBid());
+
+        concentrator.handlePriceUpdate(new PriceUpdate(new Price(marketBasis, 42), bidNumber));
+        assertEquals(agent1.lastBidNumber(), agent1.lastPriceUpdate.getBidNumber());
+        assertEquals(agent2.lastBidNumber(), agent2.lastPriceUpdate.getBidNumber());
+    }
+
+    /**
+     * Test: A local agent is removed
+     *
+     * Expected behavior: Its bid is removed from the aggregated bid
+     */
+    public void testRemoveAgent() {
+        agent1.bid(100);
+        agent2.bid(200);
+        context.doTaskOnce();
+
+        concentrator.removeAgent(agent2);
+        context.doTaskOnce();
+        assertEquals(1, concentrator.getAgentCount());
+        assertEquals(100, session.getLastBid().getBid().getDemandAt(new Price(marketBasis, 50)), 1e-9);
+    }
+
+    /**
+     * Test: The concentrator connects to the matcher again without a disconnect
+     *
+     * Expected behavior: The publishing task of the first connection is cancelled
+     */
+    public void testReconnect() {
+        MockContext.MockFuture firstTask = context.getMockFuture();
+        concentrator.connectToMatcher(session);
+        assertTrue(firstTask.isCancelled());
+        assertNotSame(firstTask, context.getMockFuture());
+        assertFalse(context.getMockFuture().isCancelled());
+    }
+}
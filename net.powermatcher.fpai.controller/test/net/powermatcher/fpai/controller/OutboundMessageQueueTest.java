@@ -0,0 +1,137 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.unconstrained.RunningModeSelector;
+import org.flexiblepower.efi.unconstrained.UnconstrainedAllocation;
+import org.flexiblepower.efi.unconstrained.UnconstrainedStateUpdate;
+import org.flexiblepower.efi.util.TimerUpdate;
+
+public class OutboundMessageQueueTest extends TestCase {
+
+    /** Executor that only runs the submitted tasks when asked to. */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        public void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<Object> sent = new ArrayList<Object>();
+    private final AgentMailbox.Consumer sender = new AgentMailbox.Consumer() {
+        @Override
+        public void process(Object message) {
+            sent.add(message);
+        }
+    };
+
+    private static UnconstrainedAllocation allocation(int runningModeId) {
+        Date now = new Date();
+        UnconstrainedStateUpdate update = new UnconstrainedStateUpdate("resourceId",
+                                                                       now,
+                                                                       now,
+                                                                       0,
+                                                                       Collections.<TimerUpdate> emptySet());
+        return new UnconstrainedAllocation(update,
+                                           now,
+                                           false,
+                                           Collections.singleton(new RunningModeSelector(runningModeId, now)));
+    }
+
+    /**
+     * Test: Messages are offered to the queue
+     *
+     * Expected behavior: Nothing is sent on the offering thread, they are sent in order by the executor
+     */
+    public void testOrder() {
+        OutboundMessageQueue queue = new OutboundMessageQueue(sender, executor, 100);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(queue.offer(Integer.valueOf(i)));
+        }
+        assertTrue(sent.isEmpty());
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(50, sent.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), sent.get(i));
+        }
+        assertEquals(50, queue.getSentMessages());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    /**
+     * Test: Several allocations are queued before the sender runs
+     *
+     * Expected behavior: Only the latest of consecutive allocations is sent
+     */
+    public void testCollapseAllocations() {
+        OutboundMessageQueue queue = new OutboundMessageQueue(sender, executor, 100);
+        UnconstrainedAllocation last = allocation(2);
+        queue.offer(allocation(0));
+        queue.offer(allocation(1));
+        queue.offer("revoke");
+        queue.offer(allocation(1));
+        queue.offer(last);
+
+        executor.runAll();
+        assertEquals(3, sent.size());
+        assertEquals("revoke", sent.get(1));
+        assertSame(last, sent.get(2));
+        assertEquals(2, queue.getCollapsedMessages());
+    }
+
+    /**
+     * Test: The queue is full or has been closed
+     *
+     * Expected behavior: New messages are dropped without blocking
+     */
+    public void testDropWhenFullOrClosed() {
+        OutboundMessageQueue queue = new OutboundMessageQueue(sender, executor, 2);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals(1, queue.getDroppedMessages());
+
+        queue.close();
+        assertFalse(queue.offer("d"));
+        executor.runAll();
+        assertTrue(sent.isEmpty());
+    }
+
+    /**
+     * Test: An allocation is offered to a full queue
+     *
+     * Expected behavior: The allocation is queued and the oldest other message is dropped instead
+     */
+    public void testAllocationWhenFull() {
+        OutboundMessageQueue queue = new OutboundMessageQueue(sender, executor, 2);
+        UnconstrainedAllocation first = allocation(1);
+        UnconstrainedAllocation second = allocation(2);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer(second));
+        assertEquals(1, queue.getDroppedMessages());
+        assertEquals(2, queue.getQueueDepth());
+
+        executor.runAll();
+        assertEquals(2, sent.size());
+        assertSame(first, sent.get(0));
+        assertSame(second, sent.get(1));
+    }
+}
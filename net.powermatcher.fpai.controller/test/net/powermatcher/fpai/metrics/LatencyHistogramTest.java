@@ -0,0 +1,53 @@
+package net.powermatcher.fpai.metrics;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        for (long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("value " + value, LatencyHistogram.highestValue(index) >= value);
+            if (index > 0) {
+                assertTrue("value " + value, LatencyHistogram.highestValue(index - 1) < value);
+            }
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean());
+        assertEquals(1000000, histogram.getMax());
+        // Accurate to one sub-bucket, which is 1/16th of the power of two
+        assertEquals(500000, histogram.getPercentile(50), 500000 / 16);
+        assertEquals(990000, histogram.getPercentile(99), 990000 / 16);
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    public void testSwitchedOff() {
+        ControllerMetrics.setEnabled(false);
+        assertEquals(0, ControllerMetrics.startTime());
+        ControllerMetrics.recordBidCreation(String.class, ControllerMetrics.startTime());
+        ControllerMetrics.countBidPublished(String.class);
+        assertTrue(ControllerMetrics.snapshot().getBidCreation().isEmpty());
+        assertTrue(ControllerMetrics.snapshot().getBidsPublished().isEmpty());
+
+        ControllerMetrics.setEnabled(true);
+        try {
+            ControllerMetrics.recordBidCreation(String.class, ControllerMetrics.startTime());
+            ControllerMetrics.countBidPublished(String.class);
+            MetricsSnapshot snapshot = ControllerMetrics.snapshot();
+            assertEquals(1, snapshot.getBidCreation().get("String").getCount());
+            assertEquals(Long.valueOf(1), snapshot.getBidsPublished().get("String"));
+            assertTrue(snapshot.toJson().startsWith("{\"enabled\":true,\"messageHandling\":{},\"bidCreation\":{\"String\":{\"count\":1,"));
+        } finally {
+            ControllerMetrics.setEnabled(false);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CompactBidTest extends TestCase {
+
+    private static double[] stepCurve(int priceSteps, int... breakpointsAndLevels) {
+        double[] demand = new double[priceSteps];
+        for (int i = 0; i < breakpointsAndLevels.length; i += 2) {
+            Arrays.fill(demand, breakpointsAndLevels[i], priceSteps, breakpointsAndLevels[i + 1]);
+        }
+        return demand;
+    }
+
+    public void testEncode() {
+        double[] demand = stepCurve(1000, 0, 500, 300, 200, 700, -100);
+        CompactBid bid = CompactBid.encode(demand, false);
+
+        assertFalse(bid.isDelta());
+        assertEquals(1000, bid.getPriceSteps());
+        assertTrue(Arrays.equals(new int[] { 0, 300, 700 }, bid.getBreakpoints()));
+        assertTrue(Arrays.equals(new double[] { 500, 200, -100 }, bid.getLevels()));
+        assertTrue(Arrays.equals(demand, bid.decode(null)));
+    }
+
+    public void testQuantize() {
+        double[] demand = new double[] { 1000.0, 1000.0 + 1e-9, 1000.0 - 1e-9, 0.1 };
+        assertEquals(4, CompactBid.encode(demand, false).getBreakpoints().length);
+
+        CompactBid quantized = CompactBid.encode(demand, true);
+        assertTrue(Arrays.equals(new int[] { 0, 3 }, quantized.getBreakpoints()));
+        assertEquals((double) 0.1f, quantized.getLevels()[1]);
+    }
+
+    public void testDelta() {
+        CompactBid previous = CompactBid.encode(stepCurve(100, 0, 500, 30, 200, 70, 0), false);
+        double[] demand = stepCurve(100, 0, 500, 50, 200, 70, 0);
+        CompactBid delta = CompactBid.delta(previous, CompactBid.encode(demand, false));
+
+        assertTrue(delta.isDelta());
+        // Only the steps from 30 to 50 changed
+        assertTrue(Arrays.equals(new int[] { 0, 30, 50 }, delta.getBreakpoints()));
+        assertTrue(Double.isNaN(delta.getLevels()[0]));
+        assertEquals(500.0, delta.getLevels()[1]);
+        assertTrue(Double.isNaN(delta.getLevels()[2]));
+        assertTrue(Arrays.equals(demand, delta.decode(previous.decode(null))));
+    }
+
+    public void testEncoderAndDecoder() {
+        CompactBidEncoder encoder = new CompactBidEncoder(false, 3);
+        CompactBidDecoder decoder = new CompactBidDecoder();
+
+        double[][] bids = new double[][] { stepCurve(100, 0, 500, 30, 0),
+                                           stepCurve(100, 0, 500, 40, 0),
+                                           stepCurve(100, 0, 400, 40, 0),
+                                           stepCurve(100, 0, 400, 60, 0) };
+        for (int i = 0; i < bids.length; i++) {
+            CompactBidEncoder.Frame frame = encoder.encode("agent", bids[i]);
+            assertEquals(i, frame.getSequence());
+            assertEquals(i % 3 == 0 ? -1 : i - 1, frame.getBaseSequence());
+            assertTrue(Arrays.equals(bids[i], decoder.decode(frame)));
+        }
+    }
+
+    public void testDemandOfDeltaFrame() {
+        CompactBidEncoder encoder = new CompactBidEncoder(false, 3);
+
+        encoder.encode("agent", stepCurve(100, 0, 500, 30, 0));
+        double[] demand = stepCurve(100, 0, 400, 30, 0);
+        CompactBidEncoder.Frame frame = encoder.encode("agent", demand);
+        assertEquals(0, frame.getBaseSequence());
+        assertTrue(Arrays.equals(demand, frame.getDemand()));
+    }
+
+    public void testDecoderMissesBase() {
+        CompactBidEncoder encoder = new CompactBidEncoder(false, 3);
+        CompactBidDecoder decoder = new CompactBidDecoder();
+
+        decoder.decode(encoder.encode("agent", stepCurve(10, 0, 1)));
+        // The second observation is lost
+        encoder.encode("agent", stepCurve(10, 0, 2));
+        assertNull(decoder.decode(encoder.encode("agent", stepCurve(10, 0, 3))));
+        // Decoding continues at the next complete bid
+        double[] demand = stepCurve(10, 0, 4);
+        assertTrue(Arrays.equals(demand, decoder.decode(encoder.encode("agent", demand))));
+    }
+}
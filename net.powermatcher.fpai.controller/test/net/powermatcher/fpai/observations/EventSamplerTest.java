@@ -0,0 +1,87 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class EventSamplerTest extends TestCase {
+
+    public void testAcceptEverything() {
+        EventSampler sampler = new EventSampler(1, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sampler.accept("agent", 0));
+        }
+        assertEquals(0, sampler.getSampledOut());
+    }
+
+    public void testEveryNth() {
+        EventSampler sampler = new EventSampler(3, 0);
+        int accepted = 0;
+        for (int i = 0; i < 9; i++) {
+            if (sampler.accept("agent", i)) {
+                accepted++;
+            }
+        }
+        assertEquals(3, accepted);
+        assertEquals(6, sampler.getSampledOut());
+    }
+
+    public void testEveryNthPerAgent() {
+        EventSampler sampler = new EventSampler(2, 0);
+        // Interleaved events of two agents, the first of each agent is accepted
+        assertTrue(sampler.accept("a", 0));
+        assertTrue(sampler.accept("b", 0));
+        assertFalse(sampler.accept("a", 1));
+        assertFalse(sampler.accept("b", 1));
+        assertTrue(sampler.accept("a", 2));
+        assertTrue(sampler.accept("b", 2));
+        assertEquals(2, sampler.getSampledOut());
+    }
+
+    public void testMinimumIntervalPerAgent() {
+        EventSampler sampler = new EventSampler(1, 1000);
+        assertTrue(sampler.accept("a", 0));
+        assertTrue(sampler.accept("b", 500));
+        assertFalse(sampler.accept("a", 999));
+        assertTrue(sampler.accept("a", 1000));
+        assertFalse(sampler.accept("b", 1400));
+        assertTrue(sampler.accept("b", 1500));
+        assertEquals(2, sampler.getSampledOut());
+    }
+
+    public void testAsyncPublisher() throws InterruptedException {
+        final List<String> published = new ArrayList<String>();
+        AsyncEventPublisher.Sink<String> sink = new AsyncEventPublisher.Sink<String>() {
+            @Override
+            public void publish(String event) {
+                synchronized (published) {
+                    published.add(event);
+                    published.notifyAll();
+                }
+            }
+        };
+
+        AsyncEventPublisher<String> publisher = new AsyncEventPublisher<String>(sink, 100);
+        // Events are not accepted before the publisher is started
+        assertFalse(publisher.offer("too early"));
+        publisher.start("test publisher");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(publisher.offer("event-" + i));
+        }
+        synchronized (published) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (published.size() < 10 && System.currentTimeMillis() < deadline) {
+                published.wait(100);
+            }
+        }
+        publisher.close();
+        assertFalse(publisher.offer("too late"));
+
+        assertEquals(10, published.size());
+        assertEquals("event-0", published.get(0));
+        assertEquals("event-9", published.get(9));
+        assertEquals(10, publisher.getPublished());
+        assertEquals(0, publisher.getDropped());
+    }
+}
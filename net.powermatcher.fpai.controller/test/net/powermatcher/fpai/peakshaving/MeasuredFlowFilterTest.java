@@ -0,0 +1,53 @@
+package net.powermatcher.fpai.peakshaving;
+
+import junit.framework.TestCase;
+import net.powermatcher.fpai.peakshaving.MeasuredFlowFilter.Smoothing;
+
+public class MeasuredFlowFilterTest extends TestCase {
+
+    public void testSumOfSources() {
+        MeasuredFlowFilter filter = new MeasuredFlowFilter(Smoothing.NONE, 0, 0, 0, 0);
+        Object a = new Object(), b = new Object();
+
+        assertEquals(100.0, filter.update(a, 100, 0));
+        assertEquals(300.0, filter.update(b, 200, 1000));
+        assertEquals(250.0, filter.update(a, 50, 2000));
+        // Unchanged sum is not released again
+        assertTrue(Double.isNaN(filter.update(a, 50, 3000)));
+
+        filter.remove(b);
+        assertEquals(60.0, filter.update(a, 60, 4000));
+    }
+
+    public void testDeadbandAndInterval() {
+        MeasuredFlowFilter filter = new MeasuredFlowFilter(Smoothing.NONE, 0, 0, 10, 5000);
+        Object meter = new Object();
+
+        assertEquals(100.0, filter.update(meter, 100, 0));
+        // Within the deadband
+        assertTrue(Double.isNaN(filter.update(meter, 105, 1000)));
+        // Too soon after the last released value
+        assertTrue(Double.isNaN(filter.update(meter, 200, 2000)));
+        assertEquals(100.0, filter.getReleased());
+        assertEquals(200.0, filter.update(meter, 200, 5000));
+    }
+
+    public void testEwma() {
+        MeasuredFlowFilter filter = new MeasuredFlowFilter(Smoothing.EWMA, 1000, 0, 0, 0);
+        Object meter = new Object();
+
+        assertEquals(0.0, filter.update(meter, 0, 0));
+        // After one time constant, the step has 1 - 1/e of its effect
+        assertEquals(1000 * (1 - Math.exp(-1)), filter.update(meter, 1000, 1000), 1e-9);
+    }
+
+    public void testMovingAverage() {
+        MeasuredFlowFilter filter = new MeasuredFlowFilter(Smoothing.MOVING_AVERAGE, 0, 2, 0, 0);
+        Object meter = new Object();
+
+        assertEquals(100.0, filter.update(meter, 100, 0));
+        assertEquals(150.0, filter.update(meter, 200, 1000));
+        assertEquals(250.0, filter.update(meter, 300, 2000));
+        assertEquals(350.0, filter.update(meter, 400, 3000));
+    }
+}